@@ -0,0 +1,93 @@
+package bench.nachos;
+
+import nachos.machine.*;
+
+/**
+ * Runs benchmarks inside a booted Nachos machine and reports their results.
+ * A benchmark is an operation that the harness runs
+ * <tt>Bench.warmups</tt> times to warm up the JIT compiler, and then
+ * <tt>Bench.iterations</tt> times while timing it. Each run returns how many
+ * operations it performed, so the results are per operation:
+ *
+ * <pre>
+ * bench yield: 843.2 +- 12.7 ns/op (1185977 ops/s), 1.0 ticks/op
+ * </pre>
+ *
+ * <p>
+ * The host time is the mean over the timed iterations, followed by its
+ * standard deviation. The simulated ticks per operation do not depend on the
+ * host, so any change in them is a change in what the kernel does.
+ * <tt>Bench.filter</tt>, if set, runs only the benchmarks whose names
+ * contain it. <tt>Bench.suffix</tt>, if set, is appended to every name, so
+ * that suites which run the same benchmarks report them apart.
+ */
+public final class Harness {
+    private Harness() {
+    }
+
+    /**
+     * One benchmark.
+     */
+    public interface Benchmark {
+        /**
+         * Run the benchmark once.
+         *
+         * @return the number of operations performed.
+         */
+        long run();
+    }
+
+    /**
+     * Warm up and then time the specified benchmark, and print the result,
+     * unless <tt>Bench.filter</tt> excludes it.
+     *
+     * @param    name        the name of the benchmark.
+     * @param    benchmark    the benchmark.
+     */
+    public static void measure(String name, Benchmark benchmark) {
+        String filter = Config.getString("Bench.filter", null);
+        if (filter != null && !name.contains(filter))
+            return;
+
+        name += Config.getString("Bench.suffix", "");
+
+        int warmups = Config.getInteger("Bench.warmups", 5);
+        int iterations = Config.getInteger("Bench.iterations", 10);
+        Lib.assertTrue(warmups >= 0 && iterations > 0);
+
+        for (int i = 0; i < warmups; i++)
+            benchmark.run();
+
+        double[] nanosPerOp = new double[iterations];
+        long totalOps = 0, totalTicks = 0;
+
+        for (int i = 0; i < iterations; i++) {
+            long startTicks = Machine.timer().getTime();
+            long startTime = System.nanoTime();
+
+            long ops = benchmark.run();
+
+            nanosPerOp[i] = (double) (System.nanoTime() - startTime) / ops;
+            totalTicks += Machine.timer().getTime() - startTicks;
+            totalOps += ops;
+        }
+
+        double mean = 0;
+        for (int i = 0; i < iterations; i++)
+            mean += nanosPerOp[i] / iterations;
+
+        double variance = 0;
+        for (int i = 0; i < iterations; i++)
+            variance += (nanosPerOp[i] - mean) * (nanosPerOp[i] - mean);
+        double deviation = Math.sqrt(variance / Math.max(iterations - 1, 1));
+
+        System.out.println("bench " + name + ": " + format(mean) + " +- " +
+                format(deviation) + " ns/op (" + Math.round(1e9 / mean) +
+                " ops/s), " + format((double) totalTicks / totalOps) +
+                " ticks/op");
+    }
+
+    private static String format(double value) {
+        return Double.toString(Math.round(value * 10) / 10.0);
+    }
+}
@@ -0,0 +1,328 @@
+package bench.nachos;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Benchmarks the thread system: context switches, forks, locks,
+ * communicators, the alarm, and how soon a thread that sleeps runs again
+ * while others compute. Run it with <tt>threads.conf</tt>, or with
+ * <tt>priority.conf</tt>, <tt>lottery.conf</tt>, <tt>stride.conf</tt>, or
+ * <tt>mlfq.conf</tt> to use the priority, lottery, stride, or MLFQ
+ * scheduler. <tt>spin.conf</tt> runs
+ * only the context switches, with threads spinning before they park, and
+ * <tt>unpooled.conf</tt> runs only the forks, with a new JVM thread for
+ * every TCB.
+ *
+ * <p>
+ * If <tt>ThreadsBenchmark.readyThreads</tt> is set, that many threads of the
+ * lowest priority stay ready while the benchmarks run, so that the scheduler
+ * has to pick the benchmark threads out of a long ready queue.
+ */
+public class ThreadsBenchmark extends ThreadedKernel {
+    public void selfTest() {
+    }
+
+    public void run() {
+        KThread[] background = startBackground(
+                Config.getInteger("ThreadsBenchmark.readyThreads", 0));
+
+        Harness.measure("yield", new Harness.Benchmark() {
+            public long run() {
+                return pingPong(100000);
+            }
+        });
+        Harness.measure("fork", new Harness.Benchmark() {
+            public long run() {
+                return forkJoinEach(10000);
+            }
+        });
+        Harness.measure("lock", new Harness.Benchmark() {
+            public long run() {
+                return contendLock(4, 20000);
+            }
+        });
+        Harness.measure("communicator", new Harness.Benchmark() {
+            public long run() {
+                return speakListen(20000);
+            }
+        });
+        Harness.measure("alarm", new Harness.Benchmark() {
+            public long run() {
+                return waitUntil(4, 2000);
+            }
+        });
+        Harness.measure("queue", new Harness.Benchmark() {
+            public long run() {
+                return cycleQueue(4096, 100000);
+            }
+        });
+        Harness.measure("donation", new Harness.Benchmark() {
+            public long run() {
+                return donateThroughChain(64, 100000);
+            }
+        });
+
+        Harness.measure("interactive", new Harness.Benchmark() {
+            public long run() {
+                return wakeUnderLoad(4, 100, 1000);
+            }
+        });
+
+        backgroundDone = true;
+        for (int i = 0; i < background.length; i++)
+            background[i].join();
+
+        Machine.halt();
+    }
+
+    /**
+     * Move threads through a scheduler queue that holds the specified
+     * number of them, without running any of them: each operation takes the
+     * next thread out, puts it back, and changes the priority of a thread
+     * that is still waiting. The priorities stay above zero, so that they
+     * are also valid numbers of lottery tickets.
+     */
+    private long cycleQueue(int waiting, int ops) {
+        KThread[] threads = create(null, waiting);
+        ThreadQueue queue = ThreadedKernel.scheduler.newThreadQueue(false);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        for (int i = 0; i < waiting; i++) {
+            ThreadedKernel.scheduler.setPriority(threads[i],
+                    1 + i % PriorityScheduler.priorityMaximum);
+            queue.waitForAccess(threads[i]);
+        }
+
+        for (int i = 0; i < ops; i++) {
+            queue.waitForAccess(queue.nextThread());
+
+            KThread thread = threads[(i * 7919) % waiting];
+            int priority = ThreadedKernel.scheduler.getPriority(thread);
+            ThreadedKernel.scheduler.setPriority(thread,
+                    1 + priority % PriorityScheduler.priorityMaximum);
+        }
+
+        for (int i = 0; i < waiting; i++)
+            queue.nextThread();
+
+        Machine.interrupt().restore(intStatus);
+
+        return ops;
+    }
+
+    /**
+     * Build a chain of the specified number of locks, in which each thread
+     * holds one lock and waits for the previous one, without running any of
+     * them. Each operation raises or lowers the priority of the thread at
+     * the end of the chain, which the scheduler may have to donate all the
+     * way to the thread at the start.
+     */
+    private long donateThroughChain(int depth, int ops) {
+        KThread[] threads = create(null, depth + 1);
+        ThreadQueue[] locks = new ThreadQueue[depth];
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        for (int i = 0; i < depth; i++) {
+            locks[i] = ThreadedKernel.scheduler.newThreadQueue(true);
+            locks[i].acquire(threads[i]);
+            if (i > 0)
+                locks[i - 1].waitForAccess(threads[i]);
+        }
+        locks[depth - 1].waitForAccess(threads[depth]);
+
+        for (int i = 0; i < ops; i++) {
+            ThreadedKernel.scheduler.setPriority(threads[depth],
+                    (i % 2 == 0) ? PriorityScheduler.priorityMaximum :
+                            PriorityScheduler.priorityDefault);
+        }
+
+        for (int i = 0; i < depth; i++)
+            locks[i].nextThread();
+
+        Machine.interrupt().restore(intStatus);
+
+        return ops;
+    }
+
+    /**
+     * Fork the specified number of lowest-priority threads that yield until
+     * the benchmarks are done. They only run when no benchmark thread is
+     * ready.
+     */
+    private KThread[] startBackground(int count) {
+        KThread[] threads = create(new Runnable() {
+            public void run() {
+                while (!backgroundDone)
+                    KThread.yield();
+            }
+        }, count);
+
+        boolean intStatus = Machine.interrupt().disable();
+        for (int i = 0; i < count; i++) {
+            ThreadedKernel.scheduler.setPriority(threads[i],
+                    PriorityScheduler.priorityMinimum);
+            threads[i].fork();
+        }
+        Machine.interrupt().restore(intStatus);
+
+        return threads;
+    }
+
+    /**
+     * Two threads yield to each other until they have switched the
+     * specified number of times.
+     */
+    private long pingPong(final int switches) {
+        Runnable player = new Runnable() {
+            public void run() {
+                for (int i = 0; i < switches / 2; i++)
+                    KThread.yield();
+            }
+        };
+
+        forkJoin(create(player, 2));
+        return switches;
+    }
+
+    /**
+     * Fork the specified number of threads that do nothing, one at a time,
+     * joining each before forking the next, so that each operation starts
+     * and destroys a TCB.
+     */
+    private long forkJoinEach(int forks) {
+        Runnable nothing = new Runnable() {
+            public void run() {
+            }
+        };
+
+        for (int i = 0; i < forks; i++)
+            forkJoin(create(nothing, 1));
+
+        return forks;
+    }
+
+    /**
+     * The specified number of threads acquire the same lock, yielding while
+     * they hold it so that the others have to wait for it.
+     */
+    private long contendLock(int threads, final int acquires) {
+        final Lock lock = new Lock();
+        final int each = acquires / threads;
+
+        forkJoin(create(new Runnable() {
+            public void run() {
+                for (int i = 0; i < each; i++) {
+                    lock.acquire();
+                    KThread.yield();
+                    lock.release();
+                }
+            }
+        }, threads));
+
+        return (long) each * threads;
+    }
+
+    /**
+     * One thread speaks the specified number of words to another.
+     */
+    private long speakListen(final int words) {
+        final Communicator communicator = new Communicator();
+
+        KThread speaker = new KThread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < words; i++)
+                    communicator.speak(i);
+            }
+        });
+        KThread listener = new KThread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < words; i++)
+                    Lib.assertTrue(communicator.listen() == i);
+            }
+        });
+
+        forkJoin(new KThread[]{speaker, listener});
+        return words;
+    }
+
+    /**
+     * The specified number of threads each wait for 100 ticks, over and
+     * over, until they have been woken up the specified number of times.
+     */
+    private long waitUntil(int threads, final int wakeups) {
+        final int each = wakeups / threads;
+
+        forkJoin(create(new Runnable() {
+            public void run() {
+                for (int i = 0; i < each; i++)
+                    ThreadedKernel.alarm.waitUntil(100);
+            }
+        }, threads));
+
+        return (long) each * threads;
+    }
+
+    /**
+     * One thread waits for the specified number of ticks, over and over,
+     * until it has been woken up the specified number of times, while the
+     * specified number of threads compute without ever blocking. Each
+     * operation takes the time slept plus the time the woken thread waits
+     * to run again, which stays short if the scheduler favours threads that
+     * mostly sleep.
+     */
+    private long wakeUnderLoad(int hogs, final int wakeups, final int sleep) {
+        KThread[] hogThreads = create(new Runnable() {
+            public void run() {
+                // burn simulated time without ever blocking or yielding
+                while (!hogsDone) {
+                    Machine.interrupt().disable();
+                    Machine.interrupt().enable();
+                }
+            }
+        }, hogs);
+        KThread sleeper = new KThread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < wakeups; i++)
+                    ThreadedKernel.alarm.waitUntil(sleep);
+            }
+        }).setName("bench sleeper");
+
+        hogsDone = false;
+        for (int i = 0; i < hogs; i++)
+            hogThreads[i].fork();
+
+        forkJoin(new KThread[]{sleeper});
+
+        hogsDone = true;
+        for (int i = 0; i < hogs; i++)
+            hogThreads[i].join();
+
+        return wakeups;
+    }
+
+    private boolean backgroundDone = false;
+    private boolean hogsDone = false;
+
+    /**
+     * Create the specified number of threads that run the same target.
+     */
+    private static KThread[] create(Runnable target, int count) {
+        KThread[] threads = new KThread[count];
+        for (int i = 0; i < count; i++)
+            threads[i] = new KThread(target).setName("bench " + i);
+        return threads;
+    }
+
+    /**
+     * Fork the specified threads and wait for all of them to finish.
+     */
+    private static void forkJoin(KThread[] threads) {
+        for (int i = 0; i < threads.length; i++)
+            threads[i].fork();
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+    }
+}
@@ -0,0 +1,140 @@
+package bench.nachos;
+
+import nachos.machine.*;
+import nachos.userprog.*;
+
+/**
+ * Benchmarks user programs: how fast the processor interprets MIPS code, and
+ * how long a system call takes from the <tt>syscall</tt> instruction back to
+ * the user program. Run it with <tt>user.conf</tt>, or with
+ * <tt>ticking.conf</tt> to measure the same programs with the clock ticked
+ * after every instruction (<tt>Processor.eventHorizon = false</tt>).
+ */
+public class UserBenchmark extends UserKernel {
+    public void selfTest() {
+    }
+
+    public void run() {
+        final String program = Config.getString("UserBenchmark.program",
+                "matmult.coff");
+        String suffix =
+                Config.getBoolean("Processor.eventHorizon", true) ? "" :
+                        "-ticking";
+
+        /* matmult spends nearly all its time computing, so nearly every
+         * tick is one user instruction, and ops/s is the number of
+         * instructions per second.
+         */
+        Harness.measure("interpreter" + suffix, new Harness.Benchmark() {
+            public long run() {
+                long startTicks = Machine.timer().getTime();
+                for (int i = 0; i < 10; i++)
+                    runProcess(new UserProcess(), program);
+                return Machine.timer().getTime() - startTicks;
+            }
+        });
+        Harness.measure("syscall" + suffix, new Harness.Benchmark() {
+            public long run() {
+                runProcess(new SyscallLoop(100000), "halt.coff");
+                return 100000;
+            }
+        });
+
+        Machine.halt();
+    }
+
+    private static void runProcess(UserProcess process, String program) {
+        Lib.assertTrue(process.execute(program, new String[]{program}));
+        process.join();
+    }
+
+    /**
+     * A process that makes the same system call over and over and then
+     * exits. There is no MIPS compiler here, so instead of running the
+     * program it loads, it runs a loop that <tt>load()</tt> assembles into
+     * the bottom of its stack:
+     *
+     * <pre>
+     *         li      t0, count
+     * loop:   li      v0, syscallWrite
+     *         li      a0, 1
+     *         li      a1, 0
+     *         li      a2, 0
+     *         syscall
+     *         addiu   t0, t0, -1
+     *         bne     t0, zero, loop
+     *         nop
+     *         li      v0, syscallExit
+     *         li      a0, 0
+     *         syscall
+     * </pre>
+     *
+     * <p>
+     * Writing nothing to standard output does no work, so the loop measures
+     * the cost of getting in and out of the kernel.
+     */
+    private static class SyscallLoop extends UserProcess {
+        SyscallLoop(int count) {
+            this.count = count;
+        }
+
+        protected boolean load(String name, String[] args) {
+            if (!super.load(name, args))
+                return false;
+
+            int[] code = {
+                    lui(t0, count >>> 16),
+                    ori(t0, t0, count & 0xFFFF),
+                    addiu(v0, zero, syscallWrite),
+                    addiu(a0, zero, 1),
+                    addiu(a1, zero, 0),
+                    addiu(a2, zero, 0),
+                    syscall,
+                    addiu(t0, t0, -1),
+                    bne(t0, zero, -7),
+                    nop,
+                    addiu(v0, zero, syscallExit),
+                    addiu(a0, zero, 0),
+                    syscall
+            };
+
+            byte[] data = new byte[code.length * 4];
+            for (int i = 0; i < code.length; i++)
+                Lib.bytesFromInt(data, i * 4, code[i]);
+
+            int vaddr = initialSP - stackPages * Processor.pageSize;
+            if (writeVirtualMemory(vaddr, data) != data.length)
+                return false;
+
+            initialPC = vaddr;
+            return true;
+        }
+
+        private static int immediate(int op, int rs, int rt, int value) {
+            return (op << 26) | (rs << 21) | (rt << 16) | (value & 0xFFFF);
+        }
+
+        private static int lui(int rt, int value) {
+            return immediate(0x0F, 0, rt, value);
+        }
+
+        private static int ori(int rt, int rs, int value) {
+            return immediate(0x0D, rs, rt, value);
+        }
+
+        private static int addiu(int rt, int rs, int value) {
+            return immediate(0x09, rs, rt, value);
+        }
+
+        private static int bne(int rs, int rt, int offset) {
+            return immediate(0x05, rs, rt, offset);
+        }
+
+        private static final int zero = 0, v0 = 2, a0 = 4, a1 = 5, a2 = 6,
+                t0 = 8;
+        private static final int syscall = 0x0000000C, nop = 0;
+        private static final int syscallExit = 1, syscallWrite = 7;
+
+        private int count;
+    }
+}
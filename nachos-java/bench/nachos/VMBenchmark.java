@@ -0,0 +1,42 @@
+package bench.nachos;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+/**
+ * Benchmarks demand paging: how long the kernel takes to service a page
+ * fault, including any swapping, when a program needs more pages than there
+ * is physical memory. Run it with <tt>vm.conf</tt>.
+ */
+public class VMBenchmark extends VMKernel {
+    public void selfTest() {
+    }
+
+    public void run() {
+        final String program = Config.getString("VMBenchmark.program",
+                "matmult.coff");
+        final Metrics.Histogram faults = Machine.metrics().histogram(
+                "nachos_page_fault_service_ticks",
+                "Ticks to make a faulting page resident, including swapping.");
+
+        /* The time per fault includes running the program between faults,
+         * which the interpreter benchmark measures on its own.
+         */
+        Harness.measure("fault", new Harness.Benchmark() {
+            public long run() {
+                long startFaults = faults.count();
+
+                for (int i = 0; i < 5; i++) {
+                    VMProcess process = new VMProcess();
+                    Lib.assertTrue(process.execute(program,
+                            new String[]{program}));
+                    process.join();
+                }
+
+                return Math.max(faults.count() - startFaults, 1);
+            }
+        });
+
+        Machine.halt();
+    }
+}
@@ -0,0 +1,348 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Assembles a class file with no fields and a few methods, for the block
+ * compiler in <tt>Processor</tt>. Only the constants and instructions that
+ * the compiler needs are supported.
+ *
+ * <p>
+ * The class file is version 49, so the JVM verifies it by type inference
+ * and no stack map frames need to be computed.
+ */
+class ClassAssembler {
+    /**
+     * Start a new public final class.
+     *
+     * @param name      the internal name of the class, such as
+     *                  <tt>nachos/machine/Processor$Block</tt>.
+     * @param superName the internal name of its superclass.
+     */
+    ClassAssembler(String name, String superName) {
+        thisClass = classConstant(name);
+        superClass = classConstant(superName);
+    }
+
+    /**
+     * Add a method to the class. Its code is assembled into the returned
+     * object, and must be complete before <tt>toByteArray()</tt> is called.
+     *
+     * @param access     the access flags of the method.
+     * @param name       the name of the method.
+     * @param descriptor the descriptor of the method.
+     * @param maxStack   the maximum depth of the operand stack, in words.
+     * @param maxLocals  the number of local variable words, including the
+     *                   parameters.
+     * @return the code of the method.
+     */
+    Code addMethod(int access, String name, String descriptor,
+                   int maxStack, int maxLocals) {
+        Code code = new Code(access, utf8Constant(name),
+                utf8Constant(descriptor), maxStack, maxLocals);
+        methods.add(code);
+        return code;
+    }
+
+    /**
+     * Return the assembled class file.
+     *
+     * @return the bytes of the class file.
+     */
+    byte[] toByteArray() {
+        // make sure every constant exists before the pool is written
+        int codeAttribute = utf8Constant("Code");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+
+            out.writeShort(poolSize);
+            out.write(pool.toByteArray());
+
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);    // interfaces
+            out.writeShort(0);    // fields
+
+            out.writeShort(methods.size());
+            for (Code code : methods) {
+                code.resolve();
+
+                out.writeShort(code.access);
+                out.writeShort(code.name);
+                out.writeShort(code.descriptor);
+                out.writeShort(1);
+
+                out.writeShort(codeAttribute);
+                out.writeInt(12 + code.bytes.size());
+                out.writeShort(code.maxStack);
+                out.writeShort(code.maxLocals);
+                out.writeInt(code.bytes.size());
+                out.write(code.bytes.toByteArray());
+                out.writeShort(0);    // exception table
+                out.writeShort(0);    // attributes
+            }
+
+            out.writeShort(0);    // attributes
+        } catch (IOException e) {
+            Lib.assertNotReached();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private int methodConstant(String owner, String name, String descriptor) {
+        return constant("M" + owner + "." + name + descriptor, 10,
+                classConstant(owner),
+                nameAndTypeConstant(name, descriptor));
+    }
+
+    private int classConstant(String name) {
+        return constant("C" + name, 7, utf8Constant(name), -1);
+    }
+
+    private int nameAndTypeConstant(String name, String descriptor) {
+        return constant("N" + name + ":" + descriptor, 12,
+                utf8Constant(name), utf8Constant(descriptor));
+    }
+
+    private int utf8Constant(String value) {
+        Integer index = constants.get("U" + value);
+        if (index != null)
+            return index;
+
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        pool.write(1);
+        writeShort(pool, utf8.length);
+        pool.write(utf8, 0, utf8.length);
+
+        constants.put("U" + value, poolSize);
+        return poolSize++;
+    }
+
+    private int intConstant(int value) {
+        Integer index = constants.get("I" + value);
+        if (index != null)
+            return index;
+
+        pool.write(3);
+        writeShort(pool, value >>> 16);
+        writeShort(pool, value);
+
+        constants.put("I" + value, poolSize);
+        return poolSize++;
+    }
+
+    /**
+     * Add a constant that refers to one or two other constants, unless it
+     * has already been added, and return its index.
+     */
+    private int constant(String key, int tag, int first, int second) {
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+
+        pool.write(tag);
+        writeShort(pool, first);
+        if (second != -1)
+            writeShort(pool, second);
+
+        constants.put(key, poolSize);
+        return poolSize++;
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /**
+     * The code of one method. Branches go to <tt>Label</tt>s, which are
+     * resolved once the method is complete.
+     */
+    class Code {
+        private Code(int access, int name, int descriptor,
+                     int maxStack, int maxLocals) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        /**
+         * Emit an instruction that has no operands.
+         */
+        void op(int opcode) {
+            bytes.write(opcode);
+        }
+
+        /**
+         * Emit an instruction that loads or stores a local variable.
+         */
+        void local(int opcode, int index) {
+            bytes.write(opcode);
+            bytes.write(index);
+        }
+
+        /**
+         * Emit the shortest instruction that pushes an <tt>int</tt> constant.
+         */
+        void push(int value) {
+            if (value >= -1 && value <= 5) {
+                bytes.write(ICONST_0 + value);
+            } else if (value == (byte) value) {
+                bytes.write(BIPUSH);
+                bytes.write(value);
+            } else if (value == (short) value) {
+                bytes.write(SIPUSH);
+                writeShort(bytes, value);
+            } else {
+                bytes.write(LDC_W);
+                writeShort(bytes, intConstant(value));
+            }
+        }
+
+        /**
+         * Emit a call to a method.
+         */
+        void invoke(int opcode, String owner, String name,
+                    String descriptor) {
+            bytes.write(opcode);
+            writeShort(bytes, methodConstant(owner, name, descriptor));
+        }
+
+        /**
+         * Emit a conditional or unconditional branch to a label.
+         */
+        void jump(int opcode, Label label) {
+            label.uses.add(bytes.size());
+            bytes.write(opcode);
+            writeShort(bytes, 0);
+        }
+
+        /**
+         * Place a label at the next instruction.
+         */
+        void mark(Label label) {
+            Lib.assertTrue(label.position == -1);
+            label.position = bytes.size();
+        }
+
+        private void resolve() {
+            byte[] code = bytes.toByteArray();
+
+            for (Label label : labels) {
+                Lib.assertTrue(label.position != -1);
+
+                for (int use : label.uses) {
+                    int offset = label.position - use;
+                    Lib.assertTrue(offset == (short) offset);
+                    code[use + 1] = (byte) (offset >> 8);
+                    code[use + 2] = (byte) offset;
+                }
+            }
+
+            bytes.reset();
+            bytes.write(code, 0, code.length);
+            labels.clear();
+        }
+
+        /**
+         * Create a label in this method.
+         */
+        Label newLabel() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+
+        private final int access, name, descriptor, maxStack, maxLocals;
+        private final ByteArrayOutputStream bytes =
+                new ByteArrayOutputStream();
+        private final ArrayList<Label> labels = new ArrayList<Label>();
+    }
+
+    /**
+     * A position in the code of a method.
+     */
+    static class Label {
+        private int position = -1;
+        private final ArrayList<Integer> uses = new ArrayList<Integer>();
+    }
+
+    private final int thisClass, superClass;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private int poolSize = 1;
+    private final HashMap<String, Integer> constants =
+            new HashMap<String, Integer>();
+
+    private final ArrayList<Code> methods = new ArrayList<Code>();
+
+    static final int
+            ACC_PUBLIC = 0x0001,
+            ACC_FINAL = 0x0010,
+            ACC_SUPER = 0x0020;
+
+    static final int
+            ICONST_0 = 0x03,
+            BIPUSH = 0x10,
+            SIPUSH = 0x11,
+            LDC_W = 0x13,
+            ILOAD = 0x15,
+            LLOAD = 0x16,
+            ALOAD = 0x19,
+            IALOAD = 0x2E,
+            ISTORE = 0x36,
+            LSTORE = 0x37,
+            IASTORE = 0x4F,
+            POP = 0x57,
+            POP2 = 0x58,
+            DUP2 = 0x5C,
+            IADD = 0x60,
+            LADD = 0x61,
+            ISUB = 0x64,
+            LSUB = 0x65,
+            LMUL = 0x69,
+            ISHL = 0x78,
+            LSHL = 0x79,
+            ISHR = 0x7A,
+            LSHR = 0x7B,
+            LUSHR = 0x7D,
+            IAND = 0x7E,
+            LAND = 0x7F,
+            IOR = 0x80,
+            IXOR = 0x82,
+            I2L = 0x85,
+            L2I = 0x88,
+            LCMP = 0x94,
+            IFEQ = 0x99,
+            IFNE = 0x9A,
+            IFLT = 0x9B,
+            IFGE = 0x9C,
+            IFGT = 0x9D,
+            IFLE = 0x9E,
+            IF_ICMPEQ = 0x9F,
+            IF_ICMPNE = 0xA0,
+            IF_ICMPLT = 0xA1,
+            IF_ICMPGE = 0xA2,
+            GOTO = 0xA7,
+            IRETURN = 0xAC,
+            RETURN = 0xB1,
+            INVOKEVIRTUAL = 0xB6,
+            INVOKESPECIAL = 0xB7;
+}
@@ -92,6 +92,16 @@ public class Coff {
 	}
     }
 
+    /**
+     * Return the name of the executable file.
+     *
+     * @return	the name of the executable file, or <tt>null</tt> if it is not
+     *		known.
+     */
+    public String getName() {
+	return (file == null) ? null : file.getName();
+    }
+
     /**
      * Return the number of sections in the executable.
      *
@@ -178,27 +178,8 @@ public class CoffSection {
         Lib.assertTrue(spn >= 0 && spn < numPages);
         Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
 
-        int pageSize = Processor.pageSize;
-        byte[] memory = Machine.processor().getMemory();
-        int paddr = ppn * pageSize;
-        int faddr = contentOffset + spn * pageSize;
-        int initlen;
-
-        if (!initialized)
-            initlen = 0;
-        else if (spn == numPages - 1)
-        /** initlen = size % pageSize;
-         *  Bug identified by Steven Schlansker 3/20/08
-         *  Bug fix by Michael Rauser
-         */
-            initlen = (size == pageSize) ? pageSize : (size % pageSize);
-        else
-            initlen = pageSize;
-
-        if (initlen > 0)
-            Lib.strictReadFile(file, faddr, memory, paddr, initlen);
-
-        Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+        Machine.processor().writePhysMemory(ppn * Processor.pageSize,
+                loadPage(spn), 0, Processor.pageSize);
     }
 
     public byte[] loadPage(int spn) {
@@ -91,7 +91,7 @@ public final class Config {
 	System.exit(1);
     }
 
-    private static void configError(String message) {
+    static void configError(String message) {
 	System.err.println("");
 	System.err.println("Error in " + configFile + ": " + message);
 	System.exit(1);
@@ -4,9 +4,12 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -38,6 +41,19 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program
  * would fail in real life, you should still write properly synchronized code.
+ *
+ * <p>
+ * On a multiprocessor, each processor runs on its own host thread, and only
+ * one of them runs the kernel at a time. A processor that runs the kernel
+ * holds the kernel lock exclusively, so disabling interrupts still gives the
+ * kernel mutual exclusion. Processors that execute user code share the lock,
+ * so they run in parallel, but only while no processor runs the kernel.
+ * A processor that has run the kernel for a whole timer period lets the
+ * processors waiting for the kernel lock have it the next time it enables
+ * interrupts, so processors that only run kernel threads take turns too.
+ * Each processor ticks its own clock, and <tt>Stats.totalTicks</tt> is the
+ * one furthest ahead. Interrupts are taken by whichever processor ticks when
+ * they are due.
  */
 public final class Interrupt {
     /**
@@ -53,7 +69,9 @@ public final class Interrupt {
         privilege.interrupt = new InterruptPrivilege();
 
         enabled = false;
-        pending = new TreeSet<PendingInterrupt>();
+        growSlots(initialSlots);
+
+        tickless = Config.getBoolean("Interrupt.tickless", false);
     }
 
     /**
@@ -120,17 +138,382 @@ public final class Interrupt {
         return !enabled;
     }
 
-    private void schedule(long when, String type, Runnable handler) {
+    /**
+     * Called by the idle thread when no other thread can run. In tickless
+     * mode, selected by <tt>Interrupt.tickless</tt>, this advances the
+     * simulated time straight to the next pending interrupt and invokes the
+     * handlers that are then due, instead of letting the idle thread tick
+     * towards it one <tt>Stats.KernelTick</tt> at a time. The ticks skipped
+     * are counted in <tt>Stats.idleTicks</tt>. Otherwise this does nothing.
+     *
+     * <p>
+     * If <i>canPark</i> is <tt>true</tt> and the only pending interrupts are
+     * timer interrupts and devices polling for external input, no amount of
+     * simulated time can make a thread runnable, so the host thread blocks
+     * until the console or the network has input.
+     *
+     * <p>
+     * On a multiprocessor, only the last processor to call this without
+     * being woken up does any of that. The others let the rest run the
+     * kernel until <tt>wake()</tt> is called for them.
+     *
+     * @param    canPark    <tt>true</tt> if no thread is waiting for
+     *                      simulated time to pass.
+     */
+    public void idle(boolean canPark) {
+        Lib.assertTrue(enabled);
+
+        // only the last processor to run out of work waits for simulated
+        // time; the others wait for a thread to become ready
+        if (kernelLock != null) {
+            int processor = Machine.processor().getNumber();
+            if (numWaiting < userStart.length - 1) {
+                waitForWork(processor);
+                return;
+            }
+
+            // this processor has nothing left to do until now
+            catchUp(processor);
+        }
+
+        // when every tick is being traced, don't let any be skipped
+        if (!tickless || Lib.test(dbgInt))
+            return;
+
+        if (canPark)
+            park();
+
+        if (numPending == 0)
+            return;
+
+        Stats stats = privilege.stats;
+        long time = slotTime[heap[0]];
+
+        if (time > stats.totalTicks) {
+            stats.idleTicks += time - stats.totalTicks;
+            stats.totalTicks = time;
+        }
+
+        if (kernelLock != null)
+            catchUp(Machine.processor().getNumber());
+
+        enabled = false;
+        checkIfDue();
+        enabled = true;
+    }
+
+    /**
+     * Wake up the specified processor if it is waiting in <tt>idle()</tt>
+     * for a thread to become ready, or make its next call to <tt>idle()</tt>
+     * return at once if it is not. The kernel calls this when it makes a
+     * thread ready to run on that processor. Does nothing on a
+     * uniprocessor.
+     *
+     * @param    processor    the number of the processor.
+     */
+    public void wake(int processor) {
+        if (kernelLock == null)
+            return;
+
+        if (!waiting[processor]) {
+            // it may not have looked at its ready queue since
+            wakePending[processor] = true;
+            return;
+        }
+
+        waiting[processor] = false;
+        numWaiting--;
+        wakeups[processor].release();
+    }
+
+    /**
+     * Set up the kernel lock for the specified number of processors. The
+     * first processor starts out running the kernel. Nothing is needed on a
+     * uniprocessor.
+     *
+     * @param    numProcessors    the number of processors.
+     */
+    void setNumProcessors(int numProcessors) {
+        Lib.assertTrue(kernelLock == null && numProcessors > 0);
+
+        if (numProcessors == 1)
+            return;
+
+        kernelLock = new StampedLock();
+        kernelMode = kernelLock.asWriteLock();
+        userMode = kernelLock.asReadLock();
+
+        userStart = new long[numProcessors];
+        Arrays.fill(userStart, -1);
+        processorTicks = new long[numProcessors];
+        kernelHeld = new long[numProcessors];
+
+        waiting = new boolean[numProcessors];
+        wakePending = new boolean[numProcessors];
+        wakeups = new Semaphore[numProcessors];
+        processorHandlers = new ArrayList<ArrayList<Runnable>>();
+        for (int i = 0; i < numProcessors; i++) {
+            wakeups[i] = new Semaphore(0);
+            processorHandlers.add(new ArrayList<Runnable>());
+        }
+
+        kernelMode.lock();
+    }
+
+    /**
+     * Invoke the specified handler on every other processor, the next time
+     * each of them ticks. Does nothing on a uniprocessor.
+     *
+     * @param    handler    the interrupt handler.
+     */
+    void interruptOtherProcessors(Runnable handler) {
+        if (kernelLock == null)
+            return;
+
+        int current = Machine.processor().getNumber();
+        for (int i = 0; i < processorHandlers.size(); i++) {
+            ArrayList<Runnable> handlers = processorHandlers.get(i);
+            if (i != current && !handlers.contains(handler))
+                handlers.add(handler);
+        }
+    }
+
+    /**
+     * Let other processors run the kernel until the specified processor is
+     * woken up by <tt>wake()</tt>.
+     */
+    private void waitForWork(int processor) {
+        if (wakePending[processor]) {
+            wakePending[processor] = false;
+            return;
+        }
+
+        Lib.debug(dbgInt, "Processor " + processor + " waiting for work");
+
+        waiting[processor] = true;
+        numWaiting++;
+
+        kernelMode.unlock();
+        wakeups[processor].acquireUninterruptibly();
+        lockKernel(processor);
+
+        // the thread that woke us up was not ready any earlier
+        catchUp(processor);
+    }
+
+    /**
+     * Get the kernel lock for the specified processor, which must not hold
+     * it already.
+     */
+    private void lockKernel(int processor) {
+        kernelWaiters.incrementAndGet();
+        kernelMode.lock();
+        kernelWaiters.decrementAndGet();
+
+        kernelEntries++;
+        kernelHeld[processor] = 0;
+    }
+
+    /**
+     * If the current processor has run the kernel for a whole timer period
+     * and another processor is waiting to run it, let that processor have
+     * the kernel lock, and wait to get it back. Interrupts must be enabled,
+     * since that is what every processor expects when it gets the lock.
+     */
+    private void shareKernel() {
+        int processor = Machine.processor().getNumber();
+        if (kernelHeld[processor] < Stats.TimerTicks ||
+                kernelWaiters.get() == 0)
+            return;
+
+        Lib.debug(dbgInt, "Processor " + processor + " sharing the kernel");
+
+        // the lock is not fair, so make sure somebody else gets it first
+        long entries = kernelEntries;
+        kernelMode.unlock();
+        while (kernelEntries == entries && kernelWaiters.get() > 0)
+            Thread.yield();
+        lockKernel(processor);
+    }
+
+    /**
+     * Advance the clock of the specified processor to the current time, if
+     * it is behind.
+     */
+    private void catchUp(int processor) {
+        processorTicks[processor] = Math.max(processorTicks[processor],
+                privilege.stats.totalTicks);
+    }
+
+    /**
+     * Advance the clock of the current processor, and the time, by the
+     * specified number of ticks.
+     */
+    private void advance(long ticks) {
+        Stats stats = privilege.stats;
+
+        if (kernelLock == null) {
+            stats.totalTicks += ticks;
+            return;
+        }
+
+        int processor = Machine.processor().getNumber();
+        processorTicks[processor] += ticks;
+        kernelHeld[processor] += ticks;
+        stats.totalTicks = Math.max(stats.totalTicks,
+                processorTicks[processor]);
+    }
+
+    private void enterUser(int processor) {
+        if (kernelLock == null)
+            return;
+
+        Lib.assertTrue(enabled && userStart[processor] == -1);
+        userStart[processor] = processorTicks[processor];
+
+        // processors waiting to run the kernel go first
+        kernelMode.unlock();
+        userMode.lock();
+    }
+
+    private void exitUser(int processor, long numTicks) {
+        if (kernelLock == null || userStart[processor] == -1) {
+            tickUser(numTicks);
+            return;
+        }
+
+        userMode.unlock();
+        lockKernel(processor);
+
+        Stats stats = privilege.stats;
+
+        processorTicks[processor] = userStart[processor] +
+                numTicks * Stats.UserTick;
+        stats.userTicks += numTicks * Stats.UserTick;
+        stats.totalTicks = Math.max(stats.totalTicks,
+                processorTicks[processor]);
+
+        userStart[processor] = -1;
+    }
+
+    private void startProcessor(int processor) {
+        Lib.assertTrue(kernelLock != null && processor > 0);
+
+        lockKernel(processor);
+        catchUp(processor);
+    }
+
+    /**
+     * A device that receives input from outside Nachos.
+     */
+    interface InputSource {
+        /**
+         * Test whether input has arrived that the device has not yet
+         * delivered.
+         *
+         * @return    <tt>true</tt> if input is waiting.
+         */
+        boolean inputAvailable();
+    }
+
+    /**
+     * Mark an interrupt handler as background work, which never makes a
+     * thread runnable unless simulated time or external input requires it.
+     *
+     * @param    handler    the interrupt handler.
+     */
+    void addBackgroundHandler(Runnable handler) {
+        backgroundHandlers.add(handler);
+    }
+
+    /**
+     * Register a device whose input can wake up a parked idle thread. Its
+     * polling interrupt handler should also be marked as background work.
+     *
+     * @param    source    the device.
+     */
+    void addInputSource(InputSource source) {
+        inputSources.add(source);
+    }
+
+    /**
+     * Wake up the idle thread if it is parked. May be called from any host
+     * thread.
+     */
+    void inputArrived() {
+        synchronized (inputMonitor) {
+            inputMonitor.notifyAll();
+        }
+    }
+
+    private void park() {
+        if (inputSources.isEmpty())
+            return;
+
+        for (int i = 0; i < numPending; i++) {
+            if (!backgroundHandlers.contains(slotHandler[heap[i]]))
+                return;
+        }
+
+        Lib.debug(dbgInt, "Parking until external input arrives");
+
+        // the console has no host thread to call inputArrived(), so poll
+        synchronized (inputMonitor) {
+            while (!inputAvailable()) {
+                try {
+                    inputMonitor.wait(parkPollMillis);
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+    }
+
+    private boolean inputAvailable() {
+        for (InputSource source : inputSources) {
+            if (source.inputAvailable())
+                return true;
+        }
+
+        return false;
+    }
+
+    private long schedule(long when, String type, Runnable handler) {
         Lib.assertTrue(when > 0);
 
         long time = privilege.stats.totalTicks + when;
-        PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
         Lib.debug(dbgInt,
                 "Scheduling the " + type +
                         " interrupt handler at time = " + time);
 
-        pending.add(toOccur);
+        if (freeSlot == -1)
+            growSlots(slotTime.length * 2);
+
+        int slot = freeSlot;
+        freeSlot = slotPosition[slot];
+
+        slotTime[slot] = time;
+        slotOrder[slot] = numPendingInterruptsCreated++;
+        slotType[slot] = type;
+        slotHandler[slot] = handler;
+
+        heap[numPending] = slot;
+        siftUp(numPending++);
+
+        return ((long) slotGeneration[slot] << 32) | slot;
+    }
+
+    private boolean cancel(long handle) {
+        int slot = (int) handle;
+        if (slot < 0 || slot >= slotTime.length ||
+                slotGeneration[slot] != (int) (handle >>> 32))
+            return false;
+
+        Lib.debug(dbgInt, "Cancelling the " + slotType[slot] +
+                " interrupt handler at time = " + slotTime[slot]);
+
+        removeAt(slotPosition[slot]);
+        return true;
     }
 
     private void tick(boolean inKernelMode) {
@@ -138,10 +521,10 @@ public final class Interrupt {
 
         if (inKernelMode) {
             stats.kernelTicks += Stats.KernelTick;
-            stats.totalTicks += Stats.KernelTick;
+            advance(Stats.KernelTick);
         } else {
             stats.userTicks += Stats.UserTick;
-            stats.totalTicks += Stats.UserTick;
+            advance(Stats.UserTick);
         }
 
         if (Lib.test(dbgInt))
@@ -150,6 +533,33 @@ public final class Interrupt {
         enabled = false;
         checkIfDue();
         enabled = true;
+
+        if (kernelLock != null)
+            shareKernel();
+    }
+
+    private long ticksUntilDue() {
+        // when every tick is being traced, don't let any be skipped
+        if (Lib.test(dbgInt))
+            return 0;
+
+        if (numPending == 0)
+            return Long.MAX_VALUE;
+
+        long time = privilege.stats.totalTicks;
+        if (kernelLock != null)
+            time = processorTicks[Machine.processor().getNumber()];
+
+        return Math.max(0, slotTime[heap[0]] - time - 1);
+    }
+
+    private void tickUser(long numTicks) {
+        Lib.assertTrue(numTicks * Stats.UserTick <= ticksUntilDue());
+
+        Stats stats = privilege.stats;
+
+        stats.userTicks += numTicks * Stats.UserTick;
+        advance(numTicks * Stats.UserTick);
     }
 
     private void checkIfDue() {
@@ -160,75 +570,162 @@ public final class Interrupt {
         if (Lib.test(dbgInt))
             print();
 
-        if (pending.isEmpty())
-            return;
+        if (processorHandlers != null)
+            invokeProcessorHandlers();
 
-        if (((PendingInterrupt) pending.first()).time > time)
+        if (numPending == 0 || slotTime[heap[0]] > time)
             return;
 
         Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-        while (!pending.isEmpty() &&
-                ((PendingInterrupt) pending.first()).time <= time) {
-            PendingInterrupt next = (PendingInterrupt) pending.first();
-            pending.remove(next);
-
-            Lib.assertTrue(next.time <= time);
+        while (numPending > 0 && slotTime[heap[0]] <= time) {
+            int slot = heap[0];
+            String type = slotType[slot];
+            Runnable handler = slotHandler[slot];
+            removeAt(0);
 
             if (privilege.processor != null)
                 privilege.processor.flushPipe();
 
-            Lib.debug(dbgInt, "  " + next.type);
+            Lib.debug(dbgInt, "  " + type);
 
-            next.handler.run();
+            handler.run();
         }
 
         Lib.debug(dbgInt, "  (end of list)");
     }
 
+    /**
+     * Invoke the handlers that other processors sent to the current one.
+     * A handler can switch to a thread that continues on another processor,
+     * so the current processor is looked up again after each one.
+     */
+    private void invokeProcessorHandlers() {
+        while (true) {
+            ArrayList<Runnable> handlers =
+                    processorHandlers.get(Machine.processor().getNumber());
+            if (handlers.isEmpty())
+                return;
+
+            Runnable handler = handlers.remove(0);
+
+            privilege.processor.flushPipe();
+
+            Lib.debug(dbgInt, "  processor interrupt");
+
+            handler.run();
+        }
+    }
+
     private void print() {
         System.out.println("Time: " + privilege.stats.totalTicks
                 + ", interrupts " + (enabled ? "on" : "off"));
         System.out.println("Pending interrupts:");
 
-        for (Iterator i = pending.iterator(); i.hasNext(); ) {
-            PendingInterrupt toOccur = (PendingInterrupt) i.next();
-            System.out.println("  " + toOccur.type +
-                    ", scheduled at " + toOccur.time);
+        int[] sorted = Arrays.copyOf(heap, numPending);
+        for (int i = 1; i < sorted.length; i++) {
+            int slot = sorted[i], j = i;
+            for (; j > 0 && before(slot, sorted[j - 1]); j--)
+                sorted[j] = sorted[j - 1];
+            sorted[j] = slot;
+        }
+
+        for (int slot : sorted) {
+            System.out.println("  " + slotType[slot] +
+                    ", scheduled at " + slotTime[slot]);
         }
 
         System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-        PendingInterrupt(long time, String type, Runnable handler) {
-            this.time = time;
-            this.type = type;
-            this.handler = handler;
-            this.id = numPendingInterruptsCreated++;
+    /**
+     * Test whether the interrupt in one slot occurs before the interrupt in
+     * another. Interrupts due at the same time occur in the order they were
+     * scheduled.
+     */
+    private boolean before(int slot1, int slot2) {
+        long time1 = slotTime[slot1], time2 = slotTime[slot2];
+
+        return time1 < time2 ||
+                (time1 == time2 && slotOrder[slot1] < slotOrder[slot2]);
+    }
+
+    private void siftUp(int position) {
+        int slot = heap[position];
+
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (!before(slot, heap[parent]))
+                break;
+
+            place(heap[parent], position);
+            position = parent;
+        }
+
+        place(slot, position);
+    }
+
+    private void siftDown(int position) {
+        int slot = heap[position];
+
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= numPending)
+                break;
+            if (child + 1 < numPending && before(heap[child + 1], heap[child]))
+                child++;
+            if (!before(heap[child], slot))
+                break;
+
+            place(heap[child], position);
+            position = child;
         }
 
-        public int compareTo(Object o) {
-            PendingInterrupt toOccur = (PendingInterrupt) o;
+        place(slot, position);
+    }
+
+    private void place(int slot, int position) {
+        heap[position] = slot;
+        slotPosition[slot] = position;
+    }
 
-            // can't return 0 for unequal objects, so check all fields
-            if (time < toOccur.time)
-                return -1;
-            else if (time > toOccur.time)
-                return 1;
-            else if (id < toOccur.id)
-                return -1;
-            else if (id > toOccur.id)
-                return 1;
-            else
-                return 0;
+    /**
+     * Remove the interrupt at the specified position in the heap, and return
+     * its slot to the free list.
+     */
+    private void removeAt(int position) {
+        int slot = heap[position];
+
+        int last = heap[--numPending];
+        if (position < numPending) {
+            place(last, position);
+            siftUp(position);
+            siftDown(slotPosition[last]);
         }
 
-        long time;
-        String type;
-        Runnable handler;
+        // bump the generation so that old handles no longer match
+        slotGeneration[slot]++;
+        slotType[slot] = null;
+        slotHandler[slot] = null;
+        slotPosition[slot] = freeSlot;
+        freeSlot = slot;
+    }
+
+    private void growSlots(int numSlots) {
+        int oldSlots = (heap == null) ? 0 : heap.length;
+
+        heap = (heap == null) ? new int[numSlots] : Arrays.copyOf(heap, numSlots);
+        slotTime = (slotTime == null) ? new long[numSlots] : Arrays.copyOf(slotTime, numSlots);
+        slotOrder = (slotOrder == null) ? new long[numSlots] : Arrays.copyOf(slotOrder, numSlots);
+        slotPosition = (slotPosition == null) ? new int[numSlots] : Arrays.copyOf(slotPosition, numSlots);
+        slotGeneration = (slotGeneration == null) ? new int[numSlots] : Arrays.copyOf(slotGeneration, numSlots);
+        slotType = (slotType == null) ? new String[numSlots] : Arrays.copyOf(slotType, numSlots);
+        slotHandler = (slotHandler == null) ? new Runnable[numSlots] : Arrays.copyOf(slotHandler, numSlots);
 
-        private long id;
+        for (int slot = numSlots - 1; slot >= oldSlots; slot--) {
+            slotPosition[slot] = freeSlot;
+            freeSlot = slot;
+        }
     }
 
     private long numPendingInterruptsCreated = 0;
@@ -236,17 +733,108 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    /**
+     * Pending interrupts are kept in a binary heap of slot numbers, ordered by
+     * time and then by the order they were scheduled. The state of each
+     * interrupt is kept in parallel arrays indexed by slot, so scheduling an
+     * interrupt allocates nothing once the arrays are large enough. A free
+     * slot's position holds the next free slot.
+     */
+    private int[] heap = null;
+    private int numPending = 0;
+    private int freeSlot = -1;
+
+    private long[] slotTime = null;
+    private long[] slotOrder = null;
+    private int[] slotPosition = null;
+    private int[] slotGeneration = null;
+    private String[] slotType = null;
+    private Runnable[] slotHandler = null;
+
+    private static final int initialSlots = 16;
+
+    private boolean tickless;
+    private ArrayList<Runnable> backgroundHandlers = new ArrayList<Runnable>();
+    private ArrayList<InputSource> inputSources = new ArrayList<InputSource>();
+    private final Object inputMonitor = new Object();
+
+    private static final long parkPollMillis = 10;
+
+    /**
+     * On a multiprocessor, a processor holds the kernel lock exclusively to
+     * run the kernel, and shared to execute user code. It is not owned by a
+     * host thread, since a processor keeps it while it switches from one TCB
+     * to another. <tt>null</tt> on a uniprocessor.
+     */
+    private StampedLock kernelLock = null;
+    private Lock kernelMode, userMode;
+    /**
+     * The time each processor started executing user code at, or -1 if it
+     * is running the kernel.
+     */
+    private long[] userStart;
+    /**
+     * The time on each processor's own clock. Processors execute user code
+     * at the same time as each other, so the time is the clock that is
+     * furthest ahead; one that is behind catches up when it runs out of
+     * work.
+     */
+    private long[] processorTicks;
+    /**
+     * How many processors are waiting for the kernel lock, how many times a
+     * processor has got it, and how many ticks each processor has run for
+     * since it last got it.
+     */
+    private final AtomicInteger kernelWaiters = new AtomicInteger();
+    private volatile long kernelEntries = 0;
+    private long[] kernelHeld;
+    /**
+     * Whether each processor is waiting in <tt>idle()</tt> for
+     * <tt>wake()</tt>, and how many are, and whether <tt>wake()</tt> was
+     * called for each processor while it was not waiting.
+     */
+    private boolean[] waiting, wakePending;
+    private Semaphore[] wakeups;
+    private int numWaiting = 0;
+    /**
+     * The handlers that each processor invokes the next time it ticks.
+     */
+    private ArrayList<ArrayList<Runnable>> processorHandlers = null;
 
     private static final char dbgInt = 'i';
 
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
-        public void schedule(long when, String type, Runnable handler) {
-            Interrupt.this.schedule(when, type, handler);
+        public long schedule(long when, String type, Runnable handler) {
+            return Interrupt.this.schedule(when, type, handler);
+        }
+
+        public boolean cancel(long handle) {
+            return Interrupt.this.cancel(handle);
         }
 
         public void tick(boolean inKernelMode) {
             Interrupt.this.tick(inKernelMode);
         }
+
+        public long ticksUntilDue() {
+            return Interrupt.this.ticksUntilDue();
+        }
+
+        public void tickUser(long numTicks) {
+            Interrupt.this.tickUser(numTicks);
+        }
+
+        public void enterUser(int processor) {
+            Interrupt.this.enterUser(processor);
+        }
+
+        public void exitUser(int processor, long numTicks) {
+            Interrupt.this.exitUser(processor, numTicks);
+        }
+
+        public void startProcessor(int processor) {
+            Interrupt.this.startProcessor(processor);
+        }
     }
 }
@@ -0,0 +1,106 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Timespan;
+
+/**
+ * A Java Flight Recorder event that records something the Nachos kernel did,
+ * both in simulated clock ticks and in host time, so that a single recording
+ * shows how long each operation took for Nachos and for the JVM running it.
+ *
+ * <p>
+ * Use an event like this:
+ *
+ * <pre>
+ * SyscallEvent event = new SyscallEvent();
+ * event.start();
+ * ...
+ * event.syscall = syscall;
+ * event.finish();
+ * </pre>
+ *
+ * <p>
+ * When the event is not being recorded, <tt>start()</tt> and
+ * <tt>finish()</tt> return at once, and the JIT compiler removes the
+ * allocation, so the event costs nothing.
+ */
+@Category("Nachos")
+public abstract class KernelEvent extends Event {
+    /**
+     * Register the kernel's events with the Flight Recorder. Registering an
+     * event needs permissions that kernel code does not have, so it is done
+     * here, before <tt>Machine</tt> enables the security manager. Events that
+     * are not listed here cannot be recorded.
+     */
+    static void initialize() {
+        if (!FlightRecorder.isAvailable())
+            return;
+
+        for (int i = 0; i < eventClassNames.length; i++) {
+            Class<?> loaded = Lib.tryLoadClass(eventClassNames[i]);
+            if (loaded == null)
+                continue;
+
+            Class<? extends Event> eventClass = loaded.asSubclass(Event.class);
+            FlightRecorder.register(eventClass);
+        }
+    }
+
+    private static final String[] eventClassNames = {
+            "nachos.threads.ContextSwitchEvent",
+            "nachos.userprog.SyscallEvent",
+            "nachos.vm.TLBMissEvent",
+            "nachos.vm.PageFaultEvent",
+            "nachos.vm.SwapEvent",
+            "nachos.network.RetransmitEvent"
+    };
+
+    /**
+     * Start timing this event.
+     */
+    public final void start() {
+        if (!isEnabled())
+            return;
+
+        startTick = Machine.timer().getTime();
+        hostStart = System.nanoTime();
+        started = true;
+        begin();
+    }
+
+    /**
+     * Stop timing this event and record it, if it was started while
+     * recording.
+     */
+    public final void finish() {
+        if (!started)
+            return;
+
+        end();
+        ticks = Machine.timer().getTime() - startTick;
+        hostNanos = System.nanoTime() - hostStart;
+        commit();
+    }
+
+    @Label("Start Tick")
+    @Description("The simulated time when the event started")
+    public long startTick;
+
+    @Label("Simulated Ticks")
+    @Description("The simulated time the event took, in clock ticks")
+    public long ticks;
+
+    @Label("Host Time")
+    @Description("The host time the event took")
+    @Timespan(Timespan.NANOSECONDS)
+    public long hostNanos;
+
+    private transient long hostStart;
+    private transient boolean started = false;
+}
@@ -51,6 +51,8 @@ public final class Machine {
         TCB.givePrivilege(privilege);
         privilege.stats = stats;
 
+        KernelEvent.initialize();
+
         securityManager.enable();
         createDevices();
         checkUserClasses();
@@ -162,6 +164,7 @@ public final class Machine {
     private static void createDevices() {
         interrupt = new Interrupt(privilege);
         timer = new Timer(privilege);
+        metrics = new Metrics(privilege);
 
         if (Config.getBoolean("Machine.bank"))
             bank = new ElevatorBank(privilege);
@@ -169,7 +172,16 @@ public final class Machine {
         if (Config.getBoolean("Machine.processor")) {
             if (numPhysPages == -1)
                 numPhysPages = Config.getInteger("Processor.numPhysPages");
-            processor = new Processor(privilege, numPhysPages);
+            processors = new Processor[Config.getInteger("Machine.numProcessors", 1)];
+            Lib.assertTrue(processors.length > 0);
+
+            // every processor shares the first one's physical memory
+            processors[0] = new Processor(privilege, numPhysPages);
+            for (int i = 1; i < processors.length; i++)
+                processors[i] = new Processor(privilege, processors[0], i);
+
+            processor = processors[0];
+            interrupt.setNumProcessors(processors.length);
         }
 
         if (Config.getBoolean("Machine.console"))
@@ -305,6 +317,15 @@ public final class Machine {
         return timer;
     }
 
+    /**
+     * Return the metrics registry.
+     *
+     * @return the metrics registry.
+     */
+    public static Metrics metrics() {
+        return metrics;
+    }
+
     /**
      * Return the hardware elevator bank.
      *
@@ -316,12 +337,42 @@ public final class Machine {
     }
 
     /**
-     * Return the MIPS processor.
+     * Return the MIPS processor that the current thread is running on. A
+     * thread that is not a Nachos thread gets the first processor.
      *
      * @return the MIPS processor, or <tt>null</tt> if it is not present.
      */
     public static Processor processor() {
-        return processor;
+        if (processors == null || processors.length == 1)
+            return processor;
+
+        TCB tcb = TCB.currentTCB();
+        return processors[(tcb == null) ? 0 : tcb.getProcessor()];
+    }
+
+    /**
+     * Return the specified MIPS processor. The machine has
+     * <tt>Machine.numProcessors</tt> processors, which all share the same
+     * physical memory but have their own registers and TLB or page table.
+     * Each processor runs the threads the kernel dispatches to it on its own
+     * host thread; see <tt>Interrupt</tt> for how they share the kernel.
+     *
+     * @param number the processor to return.
+     * @return the specified MIPS processor.
+     */
+    public static Processor processor(int number) {
+        Lib.assertTrue(number >= 0 && number < numProcessors());
+
+        return processors[number];
+    }
+
+    /**
+     * Return the number of MIPS processors.
+     *
+     * @return the number of processors, or 0 if there are none.
+     */
+    public static int numProcessors() {
+        return (processors == null) ? 0 : processors.length;
     }
 
     /**
@@ -362,8 +413,10 @@ public final class Machine {
 
     private static Interrupt interrupt = null;
     private static Timer timer = null;
+    private static Metrics metrics = null;
     private static ElevatorBank bank = null;
     private static Processor processor = null;
+    private static Processor[] processors = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
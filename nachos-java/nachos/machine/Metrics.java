@@ -0,0 +1,436 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A registry of named metrics that any part of Nachos can update: counters,
+ * gauges, and histograms of durations measured in clock ticks. The
+ * <tt>Stats</tt> totals are registered as gauges when the registry is
+ * created.
+ *
+ * <p>
+ * Metrics follow the Prometheus data model. Each metric has a name and may
+ * have one label, so that, for example, one histogram name can hold the
+ * latency of each system call separately. Registering a metric that already
+ * exists returns the existing one, so every instance of a class can register
+ * the same metric.
+ *
+ * <p>
+ * If <tt>Metrics.file</tt> is set, the metrics are written to that file when
+ * Nachos exits and, if <tt>Metrics.interval</tt> is set, every that many
+ * ticks. <tt>Metrics.format</tt> selects the format: <tt>prometheus</tt> (the
+ * default) rewrites the file with the current values in the Prometheus text
+ * format, and <tt>csv</tt> appends one <tt>ticks,metric,labels,value</tt>
+ * line per sample.
+ */
+public final class Metrics {
+    /**
+     * Allocate a new metrics registry.
+     *
+     * @param    privilege encapsulates privileged access to the Nachos
+     * machine.
+     */
+    public Metrics(Privilege privilege) {
+        this.privilege = privilege;
+
+        registerStats(privilege.stats);
+
+        String fileName = Config.getString("Metrics.file", null);
+        if (fileName == null)
+            return;
+
+        file = new File(fileName);
+        String format = Config.getString("Metrics.format", "prometheus");
+        Lib.assertTrue(format.equals("prometheus") || format.equals("csv"),
+                "unknown metrics format: " + format);
+        csv = format.equals("csv");
+
+        interval = Config.getInteger("Metrics.interval", 0);
+        Lib.assertTrue(interval >= 0);
+
+        if (csv)
+            write(false, "ticks,metric,labels,value");
+
+        privilege.addExitNotificationHandler(new Runnable() {
+            public void run() {
+                export();
+            }
+        });
+
+        if (interval > 0) {
+            exportInterrupt = new Runnable() {
+                public void run() {
+                    exportInterrupt();
+                }
+            };
+            Machine.interrupt().addBackgroundHandler(exportInterrupt);
+            scheduleExport();
+        }
+    }
+
+    /**
+     * A metric whose value only goes up.
+     */
+    public static final class Counter {
+        private Counter() {
+        }
+
+        /**
+         * Add one to this counter.
+         */
+        public void increment() {
+            value++;
+        }
+
+        /**
+         * Add the specified amount to this counter.
+         *
+         * @param    amount    the amount to add, which must not be negative.
+         */
+        public void add(long amount) {
+            Lib.assertTrue(amount >= 0);
+            value += amount;
+        }
+
+        /**
+         * Return the value of this counter.
+         *
+         * @return the value of this counter.
+         */
+        public long value() {
+            return value;
+        }
+
+        private long value = 0;
+    }
+
+    /**
+     * A metric whose value is read when the metrics are exported.
+     */
+    public interface Gauge {
+        /**
+         * Return the current value of this gauge.
+         *
+         * @return the current value.
+         */
+        long value();
+    }
+
+    /**
+     * A distribution of durations, in clock ticks. Durations are counted in
+     * buckets whose upper bounds are the powers of two up to
+     * 2<sup>30</sup>, plus one bucket for longer durations.
+     */
+    public static final class Histogram {
+        private Histogram() {
+        }
+
+        /**
+         * Record one duration.
+         *
+         * @param    ticks    the duration, in clock ticks.
+         */
+        public void observe(long ticks) {
+            int bucket = (ticks <= 1) ? 0 : 64 - Long.numberOfLeadingZeros(ticks - 1);
+
+            buckets[Math.min(bucket, numBuckets - 1)]++;
+            count++;
+            sum += ticks;
+        }
+
+        /**
+         * Return the number of durations recorded.
+         *
+         * @return the number of durations recorded.
+         */
+        public long count() {
+            return count;
+        }
+
+        /**
+         * Return the sum of the durations recorded.
+         *
+         * @return the sum of the durations, in clock ticks.
+         */
+        public long sum() {
+            return sum;
+        }
+
+        private static final int numBuckets = 32;
+
+        private long[] buckets = new long[numBuckets];
+        private long count = 0, sum = 0;
+    }
+
+    /**
+     * Return the counter with the specified name, registering it if needed.
+     *
+     * @param    name    the name of the counter.
+     * @param    help    a description of what is counted.
+     * @return the counter.
+     */
+    public Counter counter(String name, String help) {
+        return counter(name, help, null, null);
+    }
+
+    /**
+     * Return the counter with the specified name and label, registering it
+     * if needed.
+     *
+     * @param    name    the name of the counter.
+     * @param    help    a description of what is counted.
+     * @param    label   the name of the label.
+     * @param    value   the value of the label.
+     * @return the counter.
+     */
+    public Counter counter(String name, String help, String label, String value) {
+        Family family = family(name, help, "counter");
+        String labels = labels(label, value);
+
+        Object metric = family.metrics.get(labels);
+        if (metric == null) {
+            metric = new Counter();
+            family.metrics.put(labels, metric);
+        }
+
+        Lib.assertTrue(metric instanceof Counter);
+        return (Counter) metric;
+    }
+
+    /**
+     * Register a gauge, replacing any gauge with the same name and label.
+     *
+     * @param    name    the name of the gauge.
+     * @param    help    a description of what is measured.
+     * @param    label   the name of the label, or <tt>null</tt> for none.
+     * @param    value   the value of the label.
+     * @param    gauge   the gauge.
+     */
+    public void gauge(String name, String help, String label, String value,
+                      Gauge gauge) {
+        family(name, help, "gauge").metrics.put(labels(label, value), gauge);
+    }
+
+    /**
+     * Return the histogram with the specified name, registering it if
+     * needed.
+     *
+     * @param    name    the name of the histogram.
+     * @param    help    a description of what is measured.
+     * @return the histogram.
+     */
+    public Histogram histogram(String name, String help) {
+        return histogram(name, help, null, null);
+    }
+
+    /**
+     * Return the histogram with the specified name and label, registering it
+     * if needed.
+     *
+     * @param    name    the name of the histogram.
+     * @param    help    a description of what is measured.
+     * @param    label   the name of the label.
+     * @param    value   the value of the label.
+     * @return the histogram.
+     */
+    public Histogram histogram(String name, String help, String label,
+                               String value) {
+        Family family = family(name, help, "histogram");
+        String labels = labels(label, value);
+
+        Object metric = family.metrics.get(labels);
+        if (metric == null) {
+            metric = new Histogram();
+            family.metrics.put(labels, metric);
+        }
+
+        Lib.assertTrue(metric instanceof Histogram);
+        return (Histogram) metric;
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = new Family(help, type);
+            families.put(name, family);
+        }
+
+        Lib.assertTrue(family.type.equals(type),
+                name + " is already registered as a " + family.type);
+        return family;
+    }
+
+    private static String labels(String label, String value) {
+        if (label == null)
+            return "";
+
+        return label + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private void registerStats(final Stats stats) {
+        String ticks = "Simulated time that has passed, in clock ticks.";
+
+        gauge("nachos_ticks", ticks, "mode", "total", new Gauge() {
+            public long value() { return stats.totalTicks; }
+        });
+        gauge("nachos_ticks", ticks, "mode", "kernel", new Gauge() {
+            public long value() { return stats.kernelTicks; }
+        });
+        gauge("nachos_ticks", ticks, "mode", "user", new Gauge() {
+            public long value() { return stats.userTicks; }
+        });
+        gauge("nachos_ticks", ticks, "mode", "idle", new Gauge() {
+            public long value() { return stats.idleTicks; }
+        });
+
+        String disk = "Sectors transferred to or from the simulated disk.";
+        gauge("nachos_disk_sectors", disk, "op", "read", new Gauge() {
+            public long value() { return stats.numDiskReads; }
+        });
+        gauge("nachos_disk_sectors", disk, "op", "write", new Gauge() {
+            public long value() { return stats.numDiskWrites; }
+        });
+
+        String console = "Bytes transferred through the console.";
+        gauge("nachos_console_bytes", console, "op", "read", new Gauge() {
+            public long value() { return stats.numConsoleReads; }
+        });
+        gauge("nachos_console_bytes", console, "op", "write", new Gauge() {
+            public long value() { return stats.numConsoleWrites; }
+        });
+
+        gauge("nachos_page_faults", "Page faults.", null, null, new Gauge() {
+            public long value() { return stats.numPageFaults; }
+        });
+        gauge("nachos_tlb_misses", "TLB misses.", null, null, new Gauge() {
+            public long value() { return stats.numTLBMisses; }
+        });
+
+        String network = "Packets transferred through the network link.";
+        gauge("nachos_network_packets", network, "op", "received", new Gauge() {
+            public long value() { return stats.numPacketsReceived; }
+        });
+        gauge("nachos_network_packets", network, "op", "sent", new Gauge() {
+            public long value() { return stats.numPacketsSent; }
+        });
+    }
+
+    private void scheduleExport() {
+        privilege.interrupt.schedule(interval, "metrics", exportInterrupt);
+    }
+
+    private void exportInterrupt() {
+        export();
+        scheduleExport();
+    }
+
+    private void export() {
+        StringBuilder text = new StringBuilder();
+        long time = privilege.stats.totalTicks;
+
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+
+            if (!csv) {
+                text.append("# HELP ").append(name).append(' ')
+                        .append(family.help).append('\n');
+                text.append("# TYPE ").append(name).append(' ')
+                        .append(family.type).append('\n');
+            }
+
+            for (Map.Entry<String, Object> sample : family.metrics.entrySet()) {
+                String labels = sample.getKey();
+                Object metric = sample.getValue();
+
+                if (metric instanceof Counter) {
+                    sample(text, time, name, labels, ((Counter) metric).value());
+                } else if (metric instanceof Gauge) {
+                    sample(text, time, name, labels, ((Gauge) metric).value());
+                } else {
+                    Histogram histogram = (Histogram) metric;
+                    String separator = labels.isEmpty() ? "" : ",";
+                    long cumulative = 0;
+
+                    for (int k = 0; k < Histogram.numBuckets; k++) {
+                        cumulative += histogram.buckets[k];
+                        String le = (k == Histogram.numBuckets - 1) ?
+                                "+Inf" : Long.toString(1L << k);
+
+                        sample(text, time, name + "_bucket",
+                                labels + separator + "le=\"" + le + "\"",
+                                cumulative);
+                    }
+
+                    sample(text, time, name + "_sum", labels, histogram.sum);
+                    sample(text, time, name + "_count", labels, histogram.count);
+                }
+            }
+        }
+
+        write(csv, text.toString());
+    }
+
+    private void sample(StringBuilder text, long time, String name,
+                        String labels, long value) {
+        if (csv) {
+            text.append(time).append(',').append(name).append(",\"")
+                    .append(labels.replace("\"", "\"\"")).append("\",")
+                    .append(value).append('\n');
+        } else {
+            text.append(name);
+            if (!labels.isEmpty())
+                text.append('{').append(labels).append('}');
+            text.append(' ').append(value).append('\n');
+        }
+    }
+
+    private void write(final boolean append, final String text) {
+        privilege.doPrivileged(new Runnable() {
+            public void run() {
+                // write the whole file at once so readers never see half of it
+                File target = append ? file : new File(file.getPath() + ".tmp");
+
+                try (PrintWriter out = new PrintWriter(new FileWriter(target, append))) {
+                    out.print(text);
+                    if (!text.endsWith("\n"))
+                        out.println();
+                } catch (IOException e) {
+                    System.out.println("could not write metrics to " + file);
+                    return;
+                }
+
+                if (!append && !target.renameTo(file) &&
+                        !(file.delete() && target.renameTo(file)))
+                    System.out.println("could not write metrics to " + file);
+            }
+        });
+    }
+
+    private static class Family {
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+
+        String help, type;
+        LinkedHashMap<String, Object> metrics = new LinkedHashMap<String, Object>();
+    }
+
+    private Privilege privilege;
+    private LinkedHashMap<String, Family> families = new LinkedHashMap<String, Family>();
+
+    private File file = null;
+    private boolean csv = false;
+    private long interval = 0;
+    private Runnable exportInterrupt;
+}
@@ -116,6 +116,15 @@ public class NetworkLink {
             }
         };
 
+        Machine.interrupt().addBackgroundHandler(receiveInterrupt);
+        Machine.interrupt().addInputSource(new Interrupt.InputSource() {
+            public boolean inputAvailable() {
+                synchronized (NetworkLink.this) {
+                    return incomingBytes != null;
+                }
+            }
+        });
+
         scheduleReceiveInterrupt();
 
         Thread receiveThread = new Thread(new Runnable() {
@@ -236,6 +245,8 @@ public class NetworkLink {
             synchronized (this) {
                 incomingBytes = packetBytes;
             }
+
+            Machine.interrupt().inputArrived();
         }
     }
 
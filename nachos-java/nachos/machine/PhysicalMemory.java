@@ -0,0 +1,284 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.PrivilegedAction;
+
+/**
+ * The physical memory attached to a <tt>Processor</tt>. Memory is stored in
+ * one of several backends, selected by <tt>Processor.memory</tt>:
+ *
+ * <ul>
+ * <li><tt>heap</tt> (the default) stores memory in a byte array on the Java
+ * heap. Only this backend supports <tt>Processor.getMemory()</tt>.
+ * <li><tt>direct</tt> stores memory in a direct <tt>ByteBuffer</tt>, outside
+ * the Java heap, so that large memories do not have to be scanned by the
+ * garbage collector.
+ * <li><tt>mapped</tt> maps the file named by <tt>Processor.memoryFile</tt>
+ * into memory, so that the host operating system pages memory in and out.
+ * </ul>
+ *
+ * <p>
+ * Words and halfwords are stored little-endian, as for
+ * <tt>Lib.bytesToInt()</tt>. Since physical addresses are ints, memory is
+ * limited to 2GB whatever the backend.
+ */
+abstract class PhysicalMemory {
+    /**
+     * Allocate physical memory of the specified size, using the backend named
+     * by <tt>Processor.memory</tt>.
+     *
+     * @param privilege encapsulates privileged access to the Nachos machine,
+     *                  which is needed to map a file.
+     * @param size      the size of the memory, in bytes. A size above
+     *                  <tt>Integer.MAX_VALUE</tt> is a configuration error.
+     * @return the new memory.
+     */
+    static PhysicalMemory create(Privilege privilege, long size) {
+        if (size > Integer.MAX_VALUE)
+            Config.configError("physical memory of " + size + " bytes is "
+                    + "too large; the limit is " + Integer.MAX_VALUE);
+
+        return create(privilege, (int) size);
+    }
+
+    private static PhysicalMemory create(Privilege privilege, int size) {
+        String backend = Config.getString("Processor.memory", "heap");
+
+        if (backend.equals("heap"))
+            return new HeapMemory(size);
+        else if (backend.equals("direct"))
+            return new BufferMemory(ByteBuffer.allocateDirect(size));
+        else if (backend.equals("mapped"))
+            return new BufferMemory(map(privilege,
+                    Config.getString("Processor.memoryFile"), size));
+
+        Lib.assertNotReached("unknown physical memory backend: " + backend);
+        return null;
+    }
+
+    private static ByteBuffer map(Privilege privilege, final String fileName,
+                                  final int size) {
+        MappedByteBuffer buffer = (MappedByteBuffer)
+                privilege.doPrivileged(new PrivilegedAction<MappedByteBuffer>() {
+                    public MappedByteBuffer run() {
+                        try (FileChannel channel = FileChannel.open(
+                                new File(fileName).toPath(),
+                                StandardOpenOption.READ,
+                                StandardOpenOption.WRITE,
+                                StandardOpenOption.CREATE,
+                                StandardOpenOption.TRUNCATE_EXISTING)) {
+                            return channel.map(FileChannel.MapMode.READ_WRITE,
+                                    0, size);
+                        } catch (IOException e) {
+                            return null;
+                        }
+                    }
+                });
+
+        Lib.assertTrue(buffer != null, "could not map " + fileName);
+        return buffer;
+    }
+
+    /**
+     * Return the size of this memory, in bytes.
+     *
+     * @return the size of this memory.
+     */
+    abstract int size();
+
+    /**
+     * Return the byte array that holds this memory, or <tt>null</tt> if it is
+     * not stored in a byte array.
+     *
+     * @return the backing array, or <tt>null</tt>.
+     */
+    byte[] array() {
+        return null;
+    }
+
+    abstract byte readByte(int paddr);
+
+    abstract short readShort(int paddr);
+
+    abstract int readInt(int paddr);
+
+    abstract void writeByte(int paddr, byte value);
+
+    abstract void writeShort(int paddr, short value);
+
+    abstract void writeInt(int paddr, int value);
+
+    /**
+     * Copy bytes from this memory into an array.
+     *
+     * @param paddr  the first physical address to copy from.
+     * @param data   the array to copy into.
+     * @param offset the first index in the array to copy into.
+     * @param length the number of bytes to copy.
+     */
+    abstract void read(int paddr, byte[] data, int offset, int length);
+
+    /**
+     * Copy bytes from an array into this memory.
+     *
+     * @param paddr  the first physical address to copy to.
+     * @param data   the array to copy from.
+     * @param offset the first index in the array to copy from.
+     * @param length the number of bytes to copy.
+     */
+    abstract void write(int paddr, byte[] data, int offset, int length);
+
+    /**
+     * Read a value of the specified size, in the same way as
+     * <tt>Lib.bytesToInt(array, offset, size)</tt>.
+     *
+     * @param paddr the physical address to read.
+     * @param size  the number of bytes to read (1, 2, or 4).
+     * @return the value read.
+     */
+    final int read(int paddr, int size) {
+        switch (size) {
+            case 1:
+                return readByte(paddr);
+            case 2:
+                return readShort(paddr);
+            default:
+                return readInt(paddr);
+        }
+    }
+
+    /**
+     * Write a value of the specified size, in the same way as
+     * <tt>Lib.bytesFromInt(array, offset, size, value)</tt>.
+     *
+     * @param paddr the physical address to write.
+     * @param size  the number of bytes to write (1, 2, or 4).
+     * @param value the value to write.
+     */
+    final void write(int paddr, int size, int value) {
+        switch (size) {
+            case 1:
+                writeByte(paddr, (byte) value);
+                break;
+            case 2:
+                writeShort(paddr, (short) value);
+                break;
+            default:
+                writeInt(paddr, value);
+                break;
+        }
+    }
+
+    /**
+     * Physical memory stored in a byte array on the Java heap.
+     */
+    private static class HeapMemory extends PhysicalMemory {
+        HeapMemory(int size) {
+            memory = new byte[size];
+        }
+
+        int size() {
+            return memory.length;
+        }
+
+        byte[] array() {
+            return memory;
+        }
+
+        byte readByte(int paddr) {
+            return memory[paddr];
+        }
+
+        short readShort(int paddr) {
+            return Lib.bytesToShort(memory, paddr);
+        }
+
+        int readInt(int paddr) {
+            return Lib.bytesToInt(memory, paddr);
+        }
+
+        void writeByte(int paddr, byte value) {
+            memory[paddr] = value;
+        }
+
+        void writeShort(int paddr, short value) {
+            Lib.bytesFromShort(memory, paddr, value);
+        }
+
+        void writeInt(int paddr, int value) {
+            Lib.bytesFromInt(memory, paddr, value);
+        }
+
+        void read(int paddr, byte[] data, int offset, int length) {
+            System.arraycopy(memory, paddr, data, offset, length);
+        }
+
+        void write(int paddr, byte[] data, int offset, int length) {
+            System.arraycopy(data, offset, memory, paddr, length);
+        }
+
+        private byte[] memory;
+    }
+
+    /**
+     * Physical memory stored in a direct or mapped <tt>ByteBuffer</tt>. Bulk
+     * copies move the buffer's position, which is safe because only the
+     * running Nachos thread touches physical memory.
+     */
+    private static class BufferMemory extends PhysicalMemory {
+        BufferMemory(ByteBuffer buffer) {
+            this.buffer = buffer;
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        int size() {
+            return buffer.capacity();
+        }
+
+        byte readByte(int paddr) {
+            return buffer.get(paddr);
+        }
+
+        short readShort(int paddr) {
+            return buffer.getShort(paddr);
+        }
+
+        int readInt(int paddr) {
+            return buffer.getInt(paddr);
+        }
+
+        void writeByte(int paddr, byte value) {
+            buffer.put(paddr, value);
+        }
+
+        void writeShort(int paddr, short value) {
+            buffer.putShort(paddr, value);
+        }
+
+        void writeInt(int paddr, int value) {
+            buffer.putInt(paddr, value);
+        }
+
+        void read(int paddr, byte[] data, int offset, int length) {
+            buffer.position(paddr);
+            buffer.get(data, offset, length);
+        }
+
+        void write(int paddr, byte[] data, int offset, int length) {
+            buffer.position(paddr);
+            buffer.put(data, offset, length);
+        }
+
+        private ByteBuffer buffer;
+    }
+}
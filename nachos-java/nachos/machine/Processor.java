@@ -4,6 +4,14 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.security.PrivilegedAction;
+import java.util.Arrays;
+import java.util.HashMap;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -29,10 +37,38 @@ public final class Processor {
      *                     attach.
      */
     public Processor(Privilege privilege, int numPhysPages) {
+        this(privilege, numPhysPages,
+                PhysicalMemory.create(privilege,
+                        (long) pageSize * numPhysPages), 0);
+    }
+
+    /**
+     * Allocate another MIPS processor for a multiprocessor machine. It has
+     * its own registers and TLB, but shares physical memory with the
+     * specified processor.
+     *
+     * @param privilege encapsulates privileged access to the Nachos machine.
+     * @param first     the processor whose physical memory to share.
+     * @param number    the number of the new processor.
+     */
+    Processor(Privilege privilege, Processor first, int number) {
+        this(privilege, first.numPhysPages, first.mainMemory, number);
+
+        code = first.code;
+        profiler = first.profiler;
+    }
+
+    private Processor(Privilege privilege, int numPhysPages,
+                      PhysicalMemory mainMemory, int number) {
         System.out.print(" processor");
 
         this.privilege = privilege;
-        privilege.processor = new ProcessorPrivilege();
+        this.number = number;
+        if (number == 0)
+            privilege.processor = new ProcessorPrivilege();
+
+        // a translation traced with -d p must be traced on every access
+        cachingTranslations = !Lib.test(dbgProcessor);
 
         Class<?> clsKernel = Lib.loadClass(Config.getString("Kernel.kernel"));
         Class<?> clsVMKernel = Lib.tryLoadClass("nachos.vm.VMKernel");
@@ -42,20 +78,74 @@ public final class Processor {
 
         this.numPhysPages = numPhysPages;
 
+        hotBlockThreshold = Config.getInteger("Processor.hotBlockThreshold",
+                defaultHotBlockThreshold);
+        if (hotBlockThreshold > 0 && !findHiddenClasses())
+            hotBlockThreshold = 0;
+        eventHorizon = Config.getBoolean("Processor.eventHorizon", true);
+
+        if (number == 0 && Config.getBoolean("Processor.profile", false))
+            profiler = new Profiler(privilege);
+
         for (int i = 0; i < numUserRegisters; i++)
             registers[i] = 0;
 
-        mainMemory = new byte[pageSize * numPhysPages];
+        this.mainMemory = mainMemory;
+        code = new CodeCache(numPhysPages);
 
         if (usingTLB) {
+            // the classic TLB has 4 entries and is fully associative
+            tlbSize = 4;
+            tlbAssociativity = tlbSize;
+
+            if (Config.getBoolean("Processor.variableTLB", false)) {
+                tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+                tlbAssociativity = Config.getInteger(
+                        "Processor.tlbAssociativity", tlbSize);
+            }
+
+            // an instruction and the data it accesses can need two entries
+            // in the same set; with only one they would evict each other
+            // forever
+            if (tlbAssociativity < 2 || tlbSize % tlbAssociativity != 0)
+                Config.configError("Processor.tlbAssociativity should be at "
+                        + "least 2 and divide Processor.tlbSize");
+            numTLBSets = tlbSize / tlbAssociativity;
+
             translations = new TranslationEntry[tlbSize];
             for (int i = 0; i < tlbSize; i++)
                 translations[i] = new TranslationEntry();
+
+            tlbIndex = new TLBIndex(tlbSize);
         } else {
             translations = null;
         }
     }
 
+    /**
+     * Return the number of this processor, which is between <tt>0</tt> and
+     * <tt>Machine.numProcessors() - 1</tt>.
+     *
+     * @return the number of this processor.
+     */
+    public int getNumber() {
+        return number;
+    }
+
+    /**
+     * Note the executable that the current thread's user program was loaded
+     * from. The kernel calls this when it dispatches a thread that runs user
+     * code, so that the profiler enabled by <tt>Processor.profile</tt> can
+     * charge instructions to the right program. It has no other effect.
+     *
+     * @param program the executable of the program about to run, or
+     *                <tt>null</tt> if it is not known.
+     */
+    public void setProgram(Coff program) {
+        if (profiler != null)
+            profiler.setProgram(number, program);
+    }
+
     /**
      * Set the exception handler, called whenever a user exception occurs.
      *
@@ -82,6 +172,11 @@ public final class Processor {
 
     /**
      * Start executing instructions at the current PC. Never returns.
+     *
+     * <p>
+     * Whenever the kernel runs, it may switch the current thread to another
+     * processor, whose registers it has loaded with the thread's. Execution
+     * then continues on that processor.
      */
     public void run() {
         Lib.debug(dbgProcessor, "starting program in current thread");
@@ -90,16 +185,96 @@ public final class Processor {
 
         Machine.autoGrader().runProcessor(privilege);
 
-        Instruction inst = new Instruction();
+        // compiled blocks do not disassemble or profile, so only use them
+        // when neither is wanted
+        boolean tiered = hotBlockThreshold > 0 && profiler == null &&
+                !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble) &&
+                !Lib.test(dbgFullDisassemble);
+
+        // the kernel may have changed any translation before starting us
+        translationEpoch++;
+
+        // instructions that can run before an interrupt might be due
+        long horizon = 0;
+
+        Processor processor = this;
+
+        while (true) {
+            processor.execute(horizon, tiered);
+
+            privilege.interrupt.tick(false);
+
+            if (eventHorizon)
+                horizon = privilege.interrupt.ticksUntilDue() / Stats.UserTick;
+
+            processor = Machine.processor();
+        }
+    }
+
+    /**
+     * Execute instructions until one causes an exception, and handle it, or
+     * until the next one might run when an interrupt is due. On a
+     * multiprocessor, other processors execute user code at the same time,
+     * unless the profiler is counting instructions.
+     *
+     * @param horizon the number of instructions that can run before an
+     *                interrupt might be due.
+     * @param tiered  <tt>true</tt> to run compiled blocks.
+     */
+    private void execute(long horizon, boolean tiered) {
+        // instructions that have run without ticking the clock yet
+        long deferred = 0;
+
+        if (profiler == null)
+            privilege.interrupt.enterUser(number);
 
         while (true) {
+            int pc = registers[regPC];
+            int executed = 1;
+
             try {
-                inst.run();
+                if (tiered)
+                    executed = step(horizon - deferred);
+                else
+                    interpreter.run();
+
+                if (profiler != null)
+                    profiler.executed(number, pc, registers[regRA]);
             } catch (MipsException e) {
-                e.handle();
+                // count the instructions of a compiled block that completed
+                // before the one that caused the exception
+                deferred += (registers[regPC] - pc) / 4;
+
+                // the kernel must see the time the exception happened at
+                privilege.interrupt.exitUser(number, deferred);
+
+                if (profiler == null) {
+                    e.handle();
+                } else {
+                    int cause = e.cause;
+                    if (cause == exceptionSyscall)
+                        profiler.executed(number, pc, registers[regRA]);
+
+                    long start = privilege.stats.totalTicks;
+                    e.handle();
+                    // the handler may have switched this thread to another
+                    // processor
+                    profiler.exception(Machine.processor().getNumber(), pc,
+                            cause, privilege.stats.totalTicks - start);
+                }
+
+                // the handler may have changed translations, or switched to
+                // another thread that did before switching back
+                translationEpoch++;
+                return;
             }
 
-            privilege.interrupt.tick(false);
+            if (deferred + executed > horizon) {
+                privilege.interrupt.exitUser(number, deferred);
+                return;
+            }
+
+            deferred += executed;
         }
     }
 
@@ -173,6 +348,7 @@ public final class Processor {
         Lib.assertTrue(!usingTLB);
 
         this.translations = pageTable;
+        translationEpoch++;
     }
 
     /**
@@ -187,7 +363,36 @@ public final class Processor {
     }
 
     /**
-     * Returns the specified TLB entry.
+     * Return the number of entries in each set of this processor's TLB. The
+     * TLB is fully associative if this is the same as <tt>getTLBSize()</tt>.
+     *
+     * @return the associativity of this processor's TLB.
+     */
+    public int getTLBAssociativity() {
+        Lib.assertTrue(usingTLB);
+
+        return tlbAssociativity;
+    }
+
+    /**
+     * Return the TLB set that can hold a translation for the specified virtual
+     * page. Set <i>s</i> consists of TLB entries
+     * <tt>s*getTLBAssociativity()</tt> through
+     * <tt>(s+1)*getTLBAssociativity()-1</tt>.
+     *
+     * @param vpn the virtual page number.
+     * @return the set that a translation for <i>vpn</i> must be written to.
+     */
+    public int getTLBSet(int vpn) {
+        Lib.assertTrue(usingTLB);
+        Lib.assertTrue(vpn >= 0);
+
+        return vpn % numTLBSets;
+    }
+
+    /**
+     * Returns the specified TLB entry. The entry is a copy, so
+     * <tt>readTLBEntries()</tt> is cheaper when reading many entries.
      *
      * @param number the index into the TLB.
      * @return the contents of the specified TLB entry.
@@ -203,17 +408,122 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * A valid entry must be written to the set returned by
+     * <tt>getTLBSet()</tt> for its virtual page. If the TLB is fully
+     * associative, there is only one set, and the location of an entry within
+     * the TLB does not affect anything. Lookups use a hash index over the
+     * valid entries, so they take the same time whatever the size of the TLB.
      *
      * @param number the index into the TLB.
      * @param entry  the new contents of the TLB entry.
      */
     public void writeTLBEntry(int number, TranslationEntry entry) {
+        writeTLBEntry(number, entry.vpn, entry.ppn, entry.valid,
+                entry.readOnly, entry.used, entry.dirty);
+    }
+
+    /**
+     * Fill the specified TLB entry, without allocating anything. The entry
+     * must obey the same rules as for <tt>writeTLBEntry(int,
+     * TranslationEntry)</tt>.
+     *
+     * @param number the index into the TLB.
+     * @param vpn    the virtual page number.
+     * @param ppn    the physical page number.
+     * @param flags  any combination of <tt>tlbValid</tt>,
+     *               <tt>tlbReadOnly</tt>, <tt>tlbUsed</tt> and
+     *               <tt>tlbDirty</tt>.
+     */
+    public void writeTLBEntry(int number, int vpn, int ppn, int flags) {
+        writeTLBEntry(number, vpn, ppn, (flags & tlbValid) != 0,
+                (flags & tlbReadOnly) != 0, (flags & tlbUsed) != 0,
+                (flags & tlbDirty) != 0);
+    }
+
+    /**
+     * Copy <i>count</i> consecutive TLB entries, starting with entry
+     * <i>first</i>, into the specified arrays. Entry <tt>first+i</tt> is
+     * stored at index <i>i</i> of each array. Any of the arrays may be
+     * <tt>null</tt> if the caller does not need that field.
+     *
+     * @param first the index of the first TLB entry to read.
+     * @param count the number of entries to read.
+     * @param vpns  receives the virtual page numbers.
+     * @param ppns  receives the physical page numbers.
+     * @param flags receives the flags, as for <tt>writeTLBEntry()</tt>.
+     */
+    public void readTLBEntries(int first, int count, int[] vpns, int[] ppns,
+                               int[] flags) {
+        Lib.assertTrue(usingTLB);
+        Lib.assertTrue(first >= 0 && count >= 0 && first + count <= tlbSize);
+
+        for (int i = 0; i < count; i++) {
+            TranslationEntry entry = translations[first + i];
+
+            if (vpns != null)
+                vpns[i] = entry.vpn;
+            if (ppns != null)
+                ppns[i] = entry.ppn;
+            if (flags != null)
+                flags[i] = (entry.valid ? tlbValid : 0) |
+                        (entry.readOnly ? tlbReadOnly : 0) |
+                        (entry.used ? tlbUsed : 0) |
+                        (entry.dirty ? tlbDirty : 0);
+        }
+    }
+
+    /**
+     * Fill <i>count</i> consecutive TLB entries, starting with entry
+     * <i>first</i>, from index <i>i</i> of the specified arrays, as if by
+     * calling <tt>writeTLBEntry()</tt> for each.
+     *
+     * @param first the index of the first TLB entry to write.
+     * @param count the number of entries to write.
+     * @param vpns  the virtual page numbers.
+     * @param ppns  the physical page numbers.
+     * @param flags the flags, as for <tt>writeTLBEntry()</tt>.
+     */
+    public void writeTLBEntries(int first, int count, int[] vpns, int[] ppns,
+                                int[] flags) {
+        Lib.assertTrue(usingTLB);
+        Lib.assertTrue(first >= 0 && count >= 0 && first + count <= tlbSize);
+
+        for (int i = 0; i < count; i++)
+            writeTLBEntry(first + i, vpns[i], ppns[i], flags[i]);
+    }
+
+    /**
+     * Invalidate every entry in the TLB.
+     */
+    public void invalidateTLB() {
+        Lib.assertTrue(usingTLB);
+
+        for (int i = 0; i < tlbSize; i++)
+            writeTLBEntry(i, 0, 0, false, false, false, false);
+    }
+
+    private void writeTLBEntry(int number, int vpn, int ppn, boolean valid,
+                               boolean readOnly, boolean used, boolean dirty) {
         Lib.assertTrue(usingTLB);
         Lib.assertTrue(number >= 0 && number < tlbSize);
+        Lib.assertTrue(!valid || getTLBSet(vpn) == number / tlbAssociativity);
+
+        // update the existing entry in place, so that refills allocate nothing
+        TranslationEntry entry = translations[number];
+        if (entry.valid)
+            tlbIndex.remove(entry.vpn, number);
+
+        entry.vpn = vpn;
+        entry.ppn = ppn;
+        entry.valid = valid;
+        entry.readOnly = readOnly;
+        entry.used = used;
+        entry.dirty = dirty;
 
-        translations[number] = new TranslationEntry(entry);
+        if (valid)
+            tlbIndex.add(vpn, number);
+
+        translationEpoch++;
     }
 
     /**
@@ -230,10 +540,65 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * Writes to the array are not seen by the processor's decode cache, so
+     * once this has been called, every instruction fetch reads memory again
+     * to check it. <tt>writePhysMemory()</tt> does not have this cost.
+     *
+     * <p>
+     * Physical memory is only stored in an array if <tt>Processor.memory</tt>
+     * is <tt>heap</tt>, the default. Code that should work with any memory
+     * backend must use <tt>readPhysMemory()</tt> and
+     * <tt>writePhysMemory()</tt> instead.
+     *
      * @return the main memory array.
      */
     public byte[] getMemory() {
-        return mainMemory;
+        Lib.assertTrue(mainMemory.array() != null,
+                "physical memory is not stored in an array");
+
+        // writes to the array bypass the decode cache, so check every cached
+        // instruction against memory from now on
+        code.verify = true;
+
+        return mainMemory.array();
+    }
+
+    /**
+     * Copy <i>length</i> bytes of physical memory, starting at physical
+     * address <i>paddr</i>, into the specified array.
+     *
+     * @param paddr  the first physical address to read.
+     * @param data   the array to copy into.
+     * @param offset the first index in the array to copy into.
+     * @param length the number of bytes to copy.
+     */
+    public void readPhysMemory(int paddr, byte[] data, int offset,
+                               int length) {
+        Lib.assertTrue(paddr >= 0 && length >= 0 &&
+                paddr + length <= mainMemory.size());
+        Lib.assertTrue(offset >= 0 && offset + length <= data.length);
+
+        mainMemory.read(paddr, data, offset, length);
+    }
+
+    /**
+     * Copy <i>length</i> bytes from the specified array into physical
+     * memory, starting at physical address <i>paddr</i>.
+     *
+     * @param paddr  the first physical address to write.
+     * @param data   the array to copy from.
+     * @param offset the first index in the array to copy from.
+     * @param length the number of bytes to copy.
+     */
+    public void writePhysMemory(int paddr, byte[] data, int offset,
+                                int length) {
+        Lib.assertTrue(paddr >= 0 && length >= 0 &&
+                paddr + length <= mainMemory.size());
+        Lib.assertTrue(offset >= 0 && offset + length <= data.length);
+
+        mainMemory.write(paddr, data, offset, length);
+        code.written(paddr, length);
     }
 
     /**
@@ -273,7 +638,7 @@ public final class Processor {
         return (int) (((long) address & 0xFFFFFFFFL) % pageSize);
     }
 
-    private void finishLoad() {
+    void finishLoad() {
         delayedLoad(0, 0, 0);
     }
 
@@ -299,7 +664,7 @@ public final class Processor {
         // check alignment
         if ((vaddr & (size - 1)) != 0) {
             Lib.debug(dbgProcessor, "\t\talignment error");
-            throw new MipsException(exceptionAddressError, vaddr);
+            throw raise(exceptionAddressError, vaddr);
         }
 
         // calculate virtual page number and offset from the virtual address
@@ -313,39 +678,34 @@ public final class Processor {
             if (translations == null || vpn >= translations.length ||
                     translations[vpn] == null ||
                     !translations[vpn].valid) {
-                privilege.stats.numPageFaults++;
                 Lib.debug(dbgProcessor, "\t\tpage fault");
-                throw new MipsException(exceptionPageFault, vaddr);
+                throw raise(exceptionPageFault, vaddr);
             }
 
             entry = translations[vpn];
         }
-        // else, look through all TLB entries for matching vpn
+        // else, look up the TLB entry for this vpn in the index
         else {
-            for (int i = 0; i < tlbSize; i++) {
-                if (translations[i].valid && translations[i].vpn == vpn) {
-                    entry = translations[i];
-                    break;
-                }
-            }
-            if (entry == null) {
-                privilege.stats.numTLBMisses++;
+            int number = tlbIndex.find(vpn);
+            if (number != -1)
+                entry = translations[number];
+            else {
                 Lib.debug(dbgProcessor, "\t\tTLB miss");
-                throw new MipsException(exceptionTLBMiss, vaddr);
+                throw raise(exceptionTLBMiss, vaddr);
             }
         }
 
         // check if trying to write a read-only page
         if (entry.readOnly && writing) {
             Lib.debug(dbgProcessor, "\t\tread-only exception");
-            throw new MipsException(exceptionReadOnly, vaddr);
+            throw raise(exceptionReadOnly, vaddr);
         }
 
         // check if physical page number is out of range
         int ppn = entry.ppn;
         if (ppn < 0 || ppn >= numPhysPages) {
             Lib.debug(dbgProcessor, "\t\tbad ppn");
-            throw new MipsException(exceptionBusError, vaddr);
+            throw raise(exceptionBusError, vaddr);
         }
 
         // set used and dirty bits as appropriate
@@ -376,8 +736,7 @@ public final class Processor {
 
         Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-        int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-                size);
+        int value = mainMemory.read(translateData(vaddr, size, false), size);
 
         if (Lib.test(dbgProcessor))
             System.out.println("\t\tvalue read=0x" +
@@ -404,8 +763,343 @@ public final class Processor {
 
         Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-        Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-                value);
+        int paddr = translateData(vaddr, size, true);
+
+        mainMemory.write(paddr, size, value);
+        code.written(paddr, size);
+    }
+
+    /**
+     * Translate the virtual address of a load or a store. Like
+     * <tt>fetch()</tt>, this remembers the last page read and the last page
+     * written, and their translations, and only calls <tt>translate()</tt>
+     * for an address on another page, or once <tt>translationEpoch</tt> has
+     * advanced. A page that was written can also be read.
+     *
+     * @param vaddr   the virtual address to translate.
+     * @param size    the size of the memory reference (must be 1, 2, or 4).
+     * @param writing <tt>true</tt> if the memory reference is a write.
+     * @return the physical address.
+     * @throws MipsException if a translation error occurred.
+     */
+    private int translateData(int vaddr, int size, boolean writing)
+            throws MipsException {
+        int vpn = pageFromAddress(vaddr);
+
+        if ((vaddr & (size - 1)) == 0) {
+            if (vpn == writeVPN && writeEpoch == translationEpoch)
+                return writePPN * pageSize + offsetFromAddress(vaddr);
+            if (!writing && vpn == readVPN && readEpoch == translationEpoch)
+                return readPPN * pageSize + offsetFromAddress(vaddr);
+        }
+
+        int paddr = translate(vaddr, size, writing);
+
+        if (cachingTranslations) {
+            if (writing) {
+                writeVPN = vpn;
+                writePPN = paddr / pageSize;
+                writeEpoch = translationEpoch;
+            } else {
+                readVPN = vpn;
+                readPPN = paddr / pageSize;
+                readEpoch = translationEpoch;
+            }
+        }
+
+        return paddr;
+    }
+
+    /**
+     * Fetch and decode the instruction at virtual address <i>vaddr</i>.
+     *
+     * <p>
+     * The processor remembers the page it last fetched from, and its
+     * translation. While <tt>translationEpoch</tt> is unchanged, a fetch from
+     * the same page neither translates the address again nor reads memory:
+     * it takes the decoded instruction straight from the decode cache, which
+     * drops an instruction whenever its word of memory is written. Nothing
+     * but the kernel can change a translation or its used bit, and the
+     * epoch advances every time the processor returns from the kernel, and
+     * whenever the kernel changes the page table or the TLB.
+     *
+     * @param vaddr the virtual address of the instruction.
+     * @return the decoded instruction.
+     * @throws MipsException if the address could not be translated.
+     */
+    private DecodedInstruction fetch(int vaddr) throws MipsException {
+        int vpn = pageFromAddress(vaddr);
+
+        if (vpn == fetchVPN && fetchEpoch == translationEpoch &&
+                (vaddr & 0x3) == 0) {
+            int index = offsetFromAddress(vaddr) / 4;
+            DecodedInstruction decoded = fetchPage[index];
+
+            if (decoded != null && !code.verify)
+                return decoded;
+
+            return fetchDecoded(fetchPPN * pageSize + index * 4);
+        }
+
+        int paddr = translate(vaddr, 4, false);
+
+        if (cachingTranslations) {
+            fetchVPN = vpn;
+            fetchPPN = paddr / pageSize;
+            fetchPage = code.page(fetchPPN);
+            fetchEpoch = translationEpoch;
+        }
+
+        return fetchDecoded(paddr);
+    }
+
+    /**
+     * Return the decoded form of the instruction stored at physical address
+     * <i>paddr</i>, decoding it only if it is not already cached.
+     *
+     * @param paddr the word-aligned physical address of the instruction.
+     * @return the decoded instruction.
+     */
+    private DecodedInstruction fetchDecoded(int paddr) {
+        DecodedInstruction[] page = code.page(paddr / pageSize);
+        int index = (paddr % pageSize) / 4;
+
+        DecodedInstruction decoded = page[index];
+        if (decoded == null ||
+                (code.verify && decoded.value != mainMemory.readInt(paddr))) {
+            decoded = new DecodedInstruction(mainMemory.readInt(paddr));
+            page[index] = decoded;
+        }
+
+        return decoded;
+    }
+
+    /**
+     * Execute the instruction at the current PC, or the compiled block that
+     * starts there if it is no longer than <i>room</i> instructions.
+     *
+     * <p>
+     * A block is only entered when the interrupt controller has none due
+     * within <i>room</i> instructions, so that running the whole block has
+     * the same effect as interpreting it one instruction at a time. A block
+     * never crosses a page, so every instruction in it shares the
+     * translation <tt>fetch()</tt> made for the first.
+     *
+     * @param room the number of instructions that can run before an
+     *             interrupt might be due.
+     * @return the number of instructions executed.
+     * @throws MipsException if an instruction caused an exception. The PC
+     *                       is then the address of that instruction.
+     */
+    private int step(long room) throws MipsException {
+        int pc = registers[regPC];
+
+        DecodedInstruction decoded = fetch(pc);
+
+        CompiledBlock block = decoded.block;
+        if (block == null && ++decoded.heat == hotBlockThreshold &&
+                !code.verify) {
+            block = compileBlock(pc, fetchPPN * pageSize +
+                    offsetFromAddress(pc));
+            decoded.block = block;
+        }
+
+        // the block assumes that it was not entered from a delay slot
+        if (block != null && block.length <= room && block.pc == pc &&
+                registers[regNextPC] == pc + 4 && !code.verify)
+            return block.run(this, registers);
+
+        interpreter.run(decoded);
+        return 1;
+    }
+
+    /**
+     * Compile the basic block starting at virtual address <i>pc</i>, which
+     * is physical address <i>paddr</i>. The block extends up to and
+     * including the delay slot of the first branch or jump, up to the first
+     * instruction that the compiler leaves to the interpreter, or up to the
+     * end of the page, whichever comes first.
+     *
+     * @param pc    the virtual address of the first instruction.
+     * @param paddr the physical address of the first instruction.
+     * @return the compiled block, or <tt>null</tt> if there is nothing to
+     *         compile.
+     */
+    private CompiledBlock compileBlock(int pc, int paddr) {
+        int pageEnd = (paddr / pageSize + 1) * pageSize;
+        int end = Math.min(pageEnd, paddr + maxBlockLength * 4);
+
+        DecodedInstruction[] instructions =
+                new DecodedInstruction[maxBlockLength + 1];
+        int length = 0;
+
+        for (int addr = paddr; addr < end; addr += 4) {
+            DecodedInstruction decoded = fetchDecoded(addr);
+            if (!BlockCompiler.canCompile(decoded))
+                break;
+
+            if (Lib.test(Mips.BRANCH, decoded.flags)) {
+                // include the delay slot, if it is on this page
+                if (addr + 4 < pageEnd) {
+                    DecodedInstruction slot = fetchDecoded(addr + 4);
+                    if (!BlockCompiler.canCompile(slot) ||
+                            Lib.test(Mips.BRANCH, slot.flags))
+                        break;
+
+                    instructions[length++] = decoded;
+                    instructions[length++] = slot;
+                } else {
+                    instructions[length++] = decoded;
+                }
+                break;
+            }
+
+            instructions[length++] = decoded;
+        }
+
+        if (length == 0)
+            return null;
+
+        int[] words = new int[length + 1];
+        words[0] = pc;
+        for (int i = 0; i < length; i++)
+            words[i + 1] = instructions[i].value;
+
+        // the same program is often loaded more than once, and other
+        // processors may be compiling blocks at the same time
+        String key = Arrays.toString(words);
+        CompiledBlock block;
+        synchronized (compiledBlocks) {
+            block = compiledBlocks.get(key);
+            if (block == null) {
+                block = defineBlock(BlockCompiler.compile(pc, instructions,
+                        length));
+                block.pc = pc;
+                block.length = length;
+
+                if (compiledBlocks.size() == maxCompiledBlocks)
+                    compiledBlocks.clear();
+                compiledBlocks.put(key, block);
+            }
+        }
+
+        code.compiled(paddr, length);
+        return block;
+    }
+
+    /**
+     * Look up <tt>MethodHandles.Lookup.defineHiddenClass()</tt>, which
+     * older JDKs do not have, so it has to be found through reflection. It
+     * is called through a method handle, because after a few calls
+     * <tt>Method.invoke()</tt> creates a class loader, which the Nachos
+     * security manager forbids.
+     *
+     * @return <tt>true</tt> if hidden classes are available.
+     */
+    private static boolean findHiddenClasses() {
+        if (defineHiddenClass != null)
+            return true;
+
+        try {
+            Class<?> optionClass = Class.forName(
+                    "java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            Object options = Array.newInstance(optionClass, 0);
+
+            defineHiddenClass = lookup.unreflect(
+                    MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+                            byte[].class, boolean.class, options.getClass()))
+                    .asFixedArity();
+            hiddenClassOptions = options;
+            return true;
+        } catch (Exception e) {
+            System.out.print("\nhidden classes are not available, "
+                    + "interpreting every instruction\n");
+            return false;
+        }
+    }
+
+    /**
+     * Define a compiled block as a hidden class in this package, and return
+     * an instance of it.
+     *
+     * @param classFile the class file produced by <tt>BlockCompiler</tt>.
+     * @return the compiled block.
+     */
+    private CompiledBlock defineBlock(final byte[] classFile) {
+        return (CompiledBlock) privilege.doPrivileged(
+                new PrivilegedAction<CompiledBlock>() {
+                    public CompiledBlock run() {
+                        try {
+                            MethodHandles.Lookup defined =
+                                    (MethodHandles.Lookup)
+                                            defineHiddenClass.invoke(lookup,
+                                                    classFile, true,
+                                                    hiddenClassOptions);
+
+                            return (CompiledBlock) defined.findConstructor(
+                                    defined.lookupClass(),
+                                    MethodType.methodType(void.class))
+                                    .invoke();
+                        } catch (Throwable e) {
+                            Lib.assertNotReached(
+                                    "could not define a compiled block: " + e);
+                            return null;
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Load a byte, halfword, or word for a compiled block, and schedule it
+     * as the delayed load into <i>target</i>.
+     */
+    void blockLoad(int vaddr, int size, boolean extend, int target)
+            throws MipsException {
+        int value = readMem(vaddr, size);
+
+        if (extend)
+            value = Lib.extend(value, 0, size * 8);
+
+        delayedLoad(target, value, 0xFFFFFFFF);
+    }
+
+    /**
+     * Store a byte, halfword, or word for a compiled block.
+     *
+     * @return <tt>true</tt> if the store overwrote compiled code, which the
+     *         block must not go on to execute.
+     */
+    boolean blockStore(int vaddr, int size, int value) throws MipsException {
+        int paddr = translateData(vaddr, size, true);
+
+        mainMemory.write(paddr, size, value);
+        return code.written(paddr, size);
+    }
+
+    /**
+     * Raise an overflow exception for a compiled block.
+     */
+    void blockOverflow() throws MipsException {
+        throw raise(exceptionOverflow);
+    }
+
+    /**
+     * Divide <i>src1</i> by <i>src2</i>, leaving the quotient in
+     * <tt>lo</tt> and the remainder in <tt>hi</tt>.
+     *
+     * @param src1 the dividend.
+     * @param src2 the divisor.
+     * @throws MipsException if the quotient does not fit in a register.
+     */
+    void divide(long src1, long src2) throws MipsException {
+        try {
+            registers[regLo] = (int) (src1 / src2);
+            registers[regHi] = (int) (src1 % src2);
+            if (registers[regLo] * src2 + registers[regHi] != src1)
+                throw new ArithmeticException();
+        } catch (ArithmeticException e) {
+            throw raise(exceptionOverflow);
+        }
     }
 
     /**
@@ -508,6 +1202,23 @@ public final class Processor {
             "illegal inst "
     };
 
+    /**
+     * TLB entry flag used by the primitive TLB methods: the valid bit.
+     */
+    public static final int tlbValid = 0x01;
+    /**
+     * TLB entry flag used by the primitive TLB methods: the read-only bit.
+     */
+    public static final int tlbReadOnly = 0x02;
+    /**
+     * TLB entry flag used by the primitive TLB methods: the used bit.
+     */
+    public static final int tlbUsed = 0x04;
+    /**
+     * TLB entry flag used by the primitive TLB methods: the dirty bit.
+     */
+    public static final int tlbDirty = 0x08;
+
     /**
      * Index of return value register 0.
      */
@@ -598,14 +1309,30 @@ public final class Processor {
      */
     private boolean usingTLB;
     /**
-     * Number of TLB entries.
+     * Number of TLB entries. Set from <tt>Processor.tlbSize</tt> if
+     * <tt>Processor.variableTLB</tt> is <tt>true</tt>.
      */
-    private int tlbSize = 4;
+    private int tlbSize;
+    /**
+     * Number of TLB entries in each set. Set from
+     * <tt>Processor.tlbAssociativity</tt> if <tt>Processor.variableTLB</tt> is
+     * <tt>true</tt>; defaults to a fully associative TLB. Always at least
+     * 2.
+     */
+    private int tlbAssociativity;
+    /**
+     * Number of sets in the TLB.
+     */
+    private int numTLBSets;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
+    /**
+     * Maps virtual page numbers to TLB entries, if using a TLB.
+     */
+    private TLBIndex tlbIndex;
 
     /**
      * Size of a page, in bytes.
@@ -622,38 +1349,189 @@ public final class Processor {
     /**
      * Main memory for user programs.
      */
-    private byte[] mainMemory;
+    private PhysicalMemory mainMemory;
 
     /**
-     * The kernel exception handler, called on every user exception.
+     * The decoded instructions in physical memory, shared by every processor
+     * attached to it.
      */
-    private Runnable exceptionHandler = null;
+    private CodeCache code;
 
-    private static final char dbgProcessor = 'p';
-    private static final char dbgDisassemble = 'm';
-    private static final char dbgFullDisassemble = 'M';
-
-    private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
-        public void flushPipe() {
-            finishLoad();
-        }
-    }
+    /**
+     * If <tt>false</tt>, every fetch, load, and store translates its
+     * address, so that <tt>-d p</tt> traces it.
+     */
+    private boolean cachingTranslations = true;
+    /**
+     * The virtual page of the last instruction fetch, the physical page it
+     * was translated to, and that page's decoded instructions; valid only
+     * while <tt>translationEpoch</tt> is still <tt>fetchEpoch</tt>.
+     */
+    private int fetchVPN = -1, fetchPPN;
+    private DecodedInstruction[] fetchPage;
+    private int fetchEpoch;
+    /**
+     * The virtual pages of the last load and the last store, and the
+     * physical pages they were translated to; valid only while
+     * <tt>translationEpoch</tt> is still <tt>readEpoch</tt> or
+     * <tt>writeEpoch</tt>.
+     */
+    private int readVPN = -1, readPPN, readEpoch;
+    private int writeVPN = -1, writePPN, writeEpoch;
 
-    private class MipsException extends Exception {
-        public MipsException(int cause) {
-            Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+    /**
+     * If <tt>true</tt>, the processor runs instructions in bursts up to the
+     * next pending interrupt, and ticks the clock once per burst instead of
+     * once per instruction. Simulated time is exactly the same either way.
+     * Compiled blocks only run within a burst, so without it every
+     * instruction is interpreted.
+     */
+    private boolean eventHorizon;
+
+    /**
+     * Interprets instructions that are not part of a compiled block.
+     */
+    private Instruction interpreter = new Instruction();
+
+    /**
+     * The exception thrown for every user exception; see <tt>raise()</tt>.
+     */
+    private MipsException exception = new MipsException();
+
+    /**
+     * Advanced every time a translation might have changed or kernel code
+     * might have run: on every exception and every interrupt, on returning
+     * from them, and on every change to the page table or the TLB. It is
+     * shared by every processor, since the kernel running on one processor
+     * may change the page table of a thread that is about to run on
+     * another.
+     */
+    private static int translationEpoch = 0;
+
+    /**
+     * The number of times an instruction must be fetched by the interpreter
+     * before a block is compiled starting at it, or 0 to never compile.
+     */
+    private int hotBlockThreshold;
+    /**
+     * The default value of <tt>hotBlockThreshold</tt>.
+     */
+    private static final int defaultHotBlockThreshold = 32;
+    /**
+     * The maximum number of instructions in a compiled block.
+     */
+    private static final int maxBlockLength = 64;
+
+    /**
+     * The compiled blocks defined so far, by their address and instruction
+     * words, so that each program loaded again can reuse them. It is
+     * emptied whenever it reaches <tt>maxCompiledBlocks</tt> entries.
+     */
+    private static final HashMap<String, CompiledBlock> compiledBlocks =
+            new HashMap<String, CompiledBlock>();
+    private static final int maxCompiledBlocks = 4096;
+
+    /**
+     * <tt>MethodHandles.Lookup.defineHiddenClass()</tt> and an empty array
+     * of class options to pass to it, or <tt>null</tt> if the JDK has no
+     * hidden classes.
+     */
+    private static MethodHandle defineHiddenClass = null;
+    private static Object hiddenClassOptions = null;
+    /**
+     * Defines the compiled blocks in this package.
+     */
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
 
-            this.cause = cause;
+    /**
+     * The kernel exception handler, called on every user exception.
+     */
+    private Runnable exceptionHandler = null;
+
+    private static final char dbgProcessor = 'p';
+    private static final char dbgDisassemble = 'm';
+    private static final char dbgFullDisassemble = 'M';
+
+    /**
+     * The number of this processor.
+     */
+    private int number;
+
+    /**
+     * Counts the instructions executed by user programs, or <tt>null</tt> if
+     * <tt>Processor.profile</tt> is not set. Every processor shares the same
+     * profiler, so while it is counting, processors take turns executing
+     * user code.
+     */
+    private Profiler profiler = null;
+
+    /**
+     * Flushes the pipeline of whichever processor is running, since
+     * interrupts are taken by the running processor.
+     */
+    private static class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
+        public void flushPipe() {
+            Processor processor = Machine.processor();
+            processor.finishLoad();
+            translationEpoch++;
         }
+    }
 
-        public MipsException(int cause, int badVAddr) {
-            this(cause);
+    /**
+     * Prepare the processor's only <tt>MipsException</tt> to report the
+     * specified exception, and return it so that it can be thrown.
+     *
+     * @param cause the exception that occurred.
+     * @return the exception to throw.
+     */
+    private MipsException raise(int cause) {
+        Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-            hasBadVAddr = true;
-            this.badVAddr = badVAddr;
+        exception.cause = cause;
+        exception.hasBadVAddr = false;
+        return exception;
+    }
+
+    /**
+     * Prepare the processor's only <tt>MipsException</tt> to report the
+     * specified exception at the specified virtual address, and return it so
+     * that it can be thrown.
+     *
+     * @param cause    the exception that occurred.
+     * @param badVAddr the virtual address that caused it.
+     * @return the exception to throw.
+     */
+    private MipsException raise(int cause, int badVAddr) {
+        raise(cause);
+
+        exception.hasBadVAddr = true;
+        exception.badVAddr = badVAddr;
+        return exception;
+    }
+
+    /**
+     * Carries a user exception from the instruction that caused it back to
+     * <tt>run()</tt>. It records no stack trace, and the processor throws the
+     * same instance every time, so that TLB misses and system calls do not
+     * allocate anything. This is safe because <tt>handle()</tt> has read
+     * every field by the time the kernel handler runs, even if that handler
+     * switches to another thread that raises an exception of its own.
+     */
+    private class MipsException extends Exception {
+        public MipsException() {
+            super(null, null, false, false);
         }
 
         public void handle() {
+            translationEpoch++;
+
+            // counted here rather than when they happen, because other
+            // processors may be executing user code then
+            if (cause == exceptionPageFault)
+                privilege.stats.numPageFaults++;
+            else if (cause == exceptionTLBMiss)
+                privilege.stats.numTLBMisses++;
+
             writeRegister(regCause, cause);
 
             if (hasBadVAddr)
@@ -677,29 +1555,237 @@ public final class Processor {
         private int cause, badVAddr;
     }
 
-    private class Instruction {
-        public void run() throws MipsException {
-            // hopefully this looks familiar to 152 students?
-            fetch();
-            decode();
-            execute();
-            writeBack();
+    /**
+     * A hash index over the valid TLB entries, so that a lookup costs the same
+     * whatever the size of the TLB. It maps each virtual page number to the
+     * lowest numbered valid entry for that page, which is the entry a linear
+     * search of the TLB would find. Every change to the TLB goes through
+     * <tt>writeTLBEntry()</tt>, which keeps the index up to date.
+     */
+    private class TLBIndex {
+        TLBIndex(int tlbSize) {
+            int capacity = 1;
+            while (capacity < tlbSize * 2)
+                capacity *= 2;
+
+            mask = capacity - 1;
+            vpns = new int[capacity];
+            numbers = new int[capacity];
+            counts = new int[capacity];
+
+            java.util.Arrays.fill(vpns, -1);
         }
 
-        private boolean test(int flag) {
-            return Lib.test(flag, flags);
+        /**
+         * Return the number of the TLB entry mapping <i>vpn</i>, or -1 if no
+         * valid entry maps it.
+         */
+        int find(int vpn) {
+            for (int i = hash(vpn); vpns[i] != -1; i = (i + 1) & mask) {
+                if (vpns[i] == vpn)
+                    return numbers[i];
+            }
+
+            return -1;
         }
 
-        private void fetch() throws MipsException {
-            if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-                    Lib.test(dbgFullDisassemble))
-                System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-                        + "\t");
+        /**
+         * Record that valid TLB entry <i>number</i> now maps <i>vpn</i>.
+         */
+        void add(int vpn, int number) {
+            // translate() never looks up a negative page number
+            if (vpn < 0)
+                return;
 
-            value = readMem(registers[regPC], 4);
+            int i = hash(vpn);
+            while (vpns[i] != -1 && vpns[i] != vpn)
+                i = (i + 1) & mask;
+
+            if (vpns[i] == -1) {
+                vpns[i] = vpn;
+                numbers[i] = number;
+                counts[i] = 1;
+            } else {
+                // the kernel mapped the same page twice; keep the first
+                numbers[i] = Math.min(numbers[i], number);
+                counts[i]++;
+            }
         }
 
-        private void decode() {
+        /**
+         * Record that TLB entry <i>number</i> no longer maps <i>vpn</i>.
+         */
+        void remove(int vpn, int number) {
+            if (vpn < 0)
+                return;
+
+            int i = hash(vpn);
+            while (vpns[i] != vpn) {
+                Lib.assertTrue(vpns[i] != -1);
+                i = (i + 1) & mask;
+            }
+
+            if (--counts[i] > 0) {
+                if (numbers[i] == number)
+                    numbers[i] = firstOther(vpn, number);
+                return;
+            }
+
+            // delete the slot, shifting back any entry that probed past it
+            int hole = i;
+            for (int j = (i + 1) & mask; vpns[j] != -1; j = (j + 1) & mask) {
+                int home = hash(vpns[j]);
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    vpns[hole] = vpns[j];
+                    numbers[hole] = numbers[j];
+                    counts[hole] = counts[j];
+                    hole = j;
+                }
+            }
+            vpns[hole] = -1;
+        }
+
+        private int firstOther(int vpn, int number) {
+            for (int i = 0; i < tlbSize; i++) {
+                if (i != number && translations[i].valid &&
+                        translations[i].vpn == vpn)
+                    return i;
+            }
+
+            Lib.assertNotReached();
+            return -1;
+        }
+
+        private int hash(int vpn) {
+            return (vpn * 0x9E3779B9 >>> 16) & mask;
+        }
+
+        private final int mask;
+        private final int[] vpns, numbers, counts;
+    }
+
+    /**
+     * Decoded instructions, indexed by physical page and then by word within
+     * the page. Pages are allocated the first time code is fetched from them.
+     * Every write to physical memory through the processor drops the decoded
+     * instructions it overwrites, so a cached instruction is always the one
+     * in memory, unless the kernel has written memory through
+     * <tt>getMemory()</tt>. A write to any word of a compiled block drops
+     * every decoded instruction on its page, and with them the blocks
+     * compiled from there.
+     *
+     * <p>
+     * Every processor shares the same cache. Processors only execute user
+     * code at the same time when they run different processes, which have
+     * their own physical pages, so no page is touched by two at once.
+     */
+    private static class CodeCache {
+        CodeCache(int numPhysPages) {
+            pages = new DecodedInstruction[numPhysPages][];
+            compiledWords = new int[numPhysPages][];
+        }
+
+        /**
+         * Return the decoded instructions of the specified physical page.
+         */
+        DecodedInstruction[] page(int ppn) {
+            DecodedInstruction[] page = pages[ppn];
+            if (page == null) {
+                page = new DecodedInstruction[pageSize / 4];
+                pages[ppn] = page;
+            }
+
+            return page;
+        }
+
+        /**
+         * Note that the specified instructions have been compiled into a
+         * block.
+         */
+        void compiled(int paddr, int length) {
+            int ppn = paddr / pageSize;
+            if (compiledWords[ppn] == null)
+                compiledWords[ppn] = new int[pageSize / 4 / 32];
+
+            int first = (paddr % pageSize) / 4;
+            for (int index = first; index < first + length; index++)
+                compiledWords[ppn][index / 32] |= 1 << (index % 32);
+        }
+
+        /**
+         * Drop the decoded instructions in the specified range of physical
+         * memory, which has just been written.
+         *
+         * @return <tt>true</tt> if any of them was part of a compiled block.
+         */
+        boolean written(int paddr, int length) {
+            // a store from user code never crosses a word
+            if (length <= 4 && (paddr & 0x3) + length <= 4) {
+                int ppn = paddr / pageSize;
+                if (pages[ppn] == null)
+                    return false;
+
+                return dropWord(ppn, (paddr % pageSize) / 4);
+            }
+
+            boolean compiled = false;
+
+            for (int addr = paddr & ~0x3; addr < paddr + length; addr += 4) {
+                int ppn = addr / pageSize;
+                if (pages[ppn] == null) {
+                    // skip to the next page
+                    addr = (ppn + 1) * pageSize - 4;
+                    continue;
+                }
+
+                if (dropWord(ppn, (addr % pageSize) / 4))
+                    compiled = true;
+            }
+
+            return compiled;
+        }
+
+        /**
+         * Drop the decoded instruction at the specified word of a page, or
+         * every one on the page if that word is part of a compiled block.
+         */
+        private boolean dropWord(int ppn, int index) {
+            DecodedInstruction[] page = pages[ppn];
+            int[] words = compiledWords[ppn];
+
+            if (words != null && (words[index / 32] & (1 << (index % 32))) != 0) {
+                Arrays.fill(page, null);
+                compiledWords[ppn] = null;
+                return true;
+            }
+
+            page[index] = null;
+            return false;
+        }
+
+        private final DecodedInstruction[][] pages;
+        /**
+         * For each physical page, a bitmap of the words that are part of a
+         * compiled block, or <tt>null</tt> if there are none.
+         */
+        private final int[][] compiledWords;
+
+        /**
+         * <tt>true</tt> if memory may have been written without going
+         * through the processor, so that every cached instruction must be
+         * checked against memory before it is used.
+         */
+        boolean verify = false;
+    }
+
+    /**
+     * The part of an instruction's decode that depends only on the
+     * instruction word, and not on the contents of any register.
+     */
+    private static class DecodedInstruction {
+        DecodedInstruction(int value) {
+            this.value = value;
+
             op = Lib.extract(value, 26, 6);
             rs = Lib.extract(value, 21, 5);
             rt = Lib.extract(value, 16, 5);
@@ -727,24 +1813,18 @@ public final class Processor {
             format = info.format;
             flags = info.flags;
 
-            mask = 0xFFFFFFFF;
-            branch = true;
-
             // get memory access size
-            if (test(Mips.SIZEB))
+            if (Lib.test(Mips.SIZEB, flags))
                 size = 1;
-            else if (test(Mips.SIZEH))
+            else if (Lib.test(Mips.SIZEH, flags))
                 size = 2;
-            else if (test(Mips.SIZEW))
+            else if (Lib.test(Mips.SIZEW, flags))
                 size = 4;
             else
                 size = 0;
 
-            // get nextPC
-            nextPC = registers[regNextPC] + 4;
-
             // get dstReg
-            if (test(Mips.DSTRA))
+            if (Lib.test(Mips.DSTRA, flags))
                 dstReg = regRA;
             else if (format == Mips.IFMT)
                 dstReg = rt;
@@ -753,21 +1833,680 @@ public final class Processor {
             else
                 dstReg = -1;
 
+            // branch offsets always use the sign-extended immediate
+            branchOffset = imm << 2;
+
+            // get imm
+            if (Lib.test(Mips.UNSIGNED, flags)) {
+                imm &= 0xFFFF;
+            }
+        }
+
+        final int value, op, rs, rt, rd, sh, func, target;
+        int imm;
+        final int operation, format, flags;
+        final String name;
+
+        final int size, dstReg, branchOffset;
+
+        /**
+         * The number of times this instruction was interpreted, and the
+         * block compiled from here once that reached the threshold.
+         */
+        int heat = 0;
+        CompiledBlock block = null;
+    }
+
+    /**
+     * A basic block compiled to JVM bytecode by <tt>BlockCompiler</tt>, and
+     * defined as a hidden class that extends this one. All of its
+     * instructions are on the same page.
+     */
+    abstract static class CompiledBlock {
+        /**
+         * Execute the block, with exactly the same effect on the registers,
+         * memory, and delayed load as interpreting its instructions would
+         * have. The PC must be the first instruction of the block, and the
+         * nextPC the one after it.
+         *
+         * @param processor the processor to execute the block on.
+         * @param registers the registers of <i>processor</i>.
+         * @return the number of instructions executed, which is less than
+         *         the length of the block if a store overwrote compiled code.
+         * @throws MipsException if an instruction caused an exception. The
+         *                       PC and nextPC are then those of that
+         *                       instruction.
+         */
+        abstract int run(Processor processor, int[] registers)
+                throws MipsException;
+
+        /**
+         * The virtual address of the first instruction, and the number of
+         * instructions.
+         */
+        int pc, length;
+    }
+
+    /**
+     * Translates a basic block to the bytecode of a <tt>CompiledBlock</tt>.
+     * Each MIPS register lives in the <tt>registers</tt> array, as it does
+     * for the interpreter, but operands are no longer decoded at run time,
+     * and the PC is only written before an instruction that can cause an
+     * exception and at the end of the block.
+     *
+     * <p>
+     * Every instruction reads its source registers before it completes the
+     * previous delayed load, just as <tt>Instruction.decode()</tt> does
+     * before <tt>writeBack()</tt>. Only an instruction that follows a load,
+     * or starts the block, has a delayed load to complete. Memory accesses,
+     * divisions, and overflows go through <tt>Processor</tt>, so that they
+     * raise exceptions exactly like the interpreter.
+     */
+    private static class BlockCompiler {
+        private BlockCompiler(ClassAssembler.Code code) {
+            this.code = code;
+        }
+
+        /**
+         * Test whether an instruction can be part of a compiled block. The
+         * rest always cause an exception, or are so rare that they are left
+         * to the interpreter.
+         */
+        static boolean canCompile(DecodedInstruction decoded) {
+            switch (decoded.operation) {
+                case Mips.SYSCALL:
+                case Mips.UNIMPL:
+                case Mips.INVALID:
+                case Mips.LWL:
+                case Mips.LWR:
+                case Mips.SWL:
+                case Mips.SWR:
+                    return false;
+                default:
+                    return true;
+            }
+        }
+
+        /**
+         * Return the class file of a compiled block.
+         *
+         * @param pc           the virtual address of the first instruction.
+         * @param instructions the instructions of the block. Only the last
+         *                     two can be a branch and its delay slot.
+         * @param length       the number of instructions in the block.
+         * @return the class file.
+         */
+        static byte[] compile(int pc, DecodedInstruction[] instructions,
+                              int length) {
+            ClassAssembler assembler =
+                    new ClassAssembler(blockClass, compiledBlockClass);
+
+            ClassAssembler.Code init = assembler.addMethod(
+                    ClassAssembler.ACC_PUBLIC, "<init>", "()V", 1, 1);
+            init.local(ClassAssembler.ALOAD, 0);
+            init.invoke(ClassAssembler.INVOKESPECIAL, compiledBlockClass,
+                    "<init>", "()V");
+            init.op(ClassAssembler.RETURN);
+
+            BlockCompiler compiler = new BlockCompiler(assembler.addMethod(
+                    0, "run", "(L" + processorClass + ";[I)I", 10, 6));
+
+            for (int i = 0; i < length; i++) {
+                compiler.pc = pc + i * 4;
+                compiler.first = (i == 0);
+                compiler.last = (i == length - 1);
+                compiler.pendingLoad = (i == 0 ||
+                        instructions[i - 1].operation == Mips.LOAD);
+                compiler.inDelaySlot = (i > 0 &&
+                        Lib.test(Mips.BRANCH, instructions[i - 1].flags));
+
+                compiler.compile(instructions[i], i);
+            }
+
+            compiler.exit(length, Lib.test(Mips.BRANCH,
+                    instructions[length - 1].flags));
+
+            return assembler.toByteArray();
+        }
+
+        private void compile(DecodedInstruction decoded, int index) {
+            ClassAssembler.Code c = code;
+            int flags = decoded.flags;
+            int dstReg = decoded.dstReg;
+
+            switch (decoded.operation) {
+                case Mips.ADD:
+                case Mips.SUB:
+                    if (Lib.test(Mips.OVERFLOW, flags)) {
+                        compileOverflowing(decoded);
+                        return;
+                    }
+                    compileArithmetic(decoded);
+                    return;
+
+                case Mips.SLL:
+                case Mips.SRA:
+                case Mips.SRL:
+                case Mips.SLT:
+                case Mips.AND:
+                case Mips.OR:
+                case Mips.NOR:
+                case Mips.XOR:
+                case Mips.LUI:
+                case Mips.MFLO:
+                case Mips.MFHI:
+                    compileArithmetic(decoded);
+                    return;
+
+                case Mips.MULT:
+                    readLong(decoded.rs, flags);
+                    readLong(decoded.rt, flags);
+                    c.op(ClassAssembler.LMUL);
+                    c.local(ClassAssembler.LSTORE, localProduct);
+
+                    startWrite(regLo);
+                    c.local(ClassAssembler.LLOAD, localProduct);
+                    c.op(ClassAssembler.L2I);
+                    c.op(ClassAssembler.IASTORE);
+
+                    startWrite(regHi);
+                    c.local(ClassAssembler.LLOAD, localProduct);
+                    c.push(32);
+                    c.op(ClassAssembler.LSHR);
+                    c.op(ClassAssembler.L2I);
+                    c.op(ClassAssembler.IASTORE);
+
+                    finishLoad();
+                    return;
+
+                case Mips.DIV:
+                    savePC();
+                    c.local(ClassAssembler.ALOAD, localProcessor);
+                    readLong(decoded.rs, flags);
+                    readLong(decoded.rt, flags);
+                    c.invoke(ClassAssembler.INVOKEVIRTUAL, processorClass,
+                            "divide", "(JJ)V");
+                    finishLoad();
+                    return;
+
+                case Mips.MTLO:
+                case Mips.MTHI:
+                    startWrite(decoded.operation == Mips.MTLO ?
+                            regLo : regHi);
+                    read(decoded.rs);
+                    c.op(ClassAssembler.IASTORE);
+                    finishLoad();
+                    return;
+
+                case Mips.LOAD:
+                    savePC();
+                    c.local(ClassAssembler.ALOAD, localProcessor);
+                    readAddress(decoded);
+                    c.push(decoded.size);
+                    c.push(Lib.test(Mips.UNSIGNED, flags) ? 0 : 1);
+                    c.push(dstReg);
+                    c.invoke(ClassAssembler.INVOKEVIRTUAL, processorClass,
+                            "blockLoad", "(IIZI)V");
+                    return;
+
+                case Mips.STORE:
+                    savePC();
+                    c.local(ClassAssembler.ALOAD, localProcessor);
+                    readAddress(decoded);
+                    c.push(decoded.size);
+                    read(decoded.rt);
+                    c.invoke(ClassAssembler.INVOKEVIRTUAL, processorClass,
+                            "blockStore", "(III)Z");
+                    finishLoad();
+
+                    if (last) {
+                        c.op(ClassAssembler.POP);
+                    } else {
+                        // stop before running code that was overwritten
+                        ClassAssembler.Label go = c.newLabel();
+                        c.jump(ClassAssembler.IFEQ, go);
+                        exit(index + 1, false);
+                        c.mark(go);
+                    }
+                    return;
+
+                case Mips.BEQ:
+                case Mips.BNE:
+                case Mips.BLEZ:
+                case Mips.BGTZ:
+                case Mips.BLTZ:
+                case Mips.BGEZ:
+                case Mips.JUMP:
+                    compileBranch(decoded);
+                    return;
+
+                default:
+                    Lib.assertNotReached();
+            }
+        }
+
+        /**
+         * Compile an ALU operation that cannot overflow, or a move from
+         * <tt>lo</tt> or <tt>hi</tt>. The interpreter computes these on
+         * 64-bit values and keeps the low 32 bits, which the 32-bit JVM
+         * operations below give directly. In particular <tt>srl</tt>
+         * shifts a sign-extended value, so it shifts in copies of the sign
+         * bit just like <tt>sra</tt>.
+         */
+        private void compileArithmetic(DecodedInstruction decoded) {
+            ClassAssembler.Code c = code;
+            int flags = decoded.flags;
+
+            if (decoded.dstReg == 0) {
+                finishLoad();
+                return;
+            }
+
+            startWrite(decoded.dstReg);
+
+            switch (decoded.operation) {
+                case Mips.ADD:
+                    readSource1(decoded);
+                    readSource2(decoded);
+                    c.op(ClassAssembler.IADD);
+                    break;
+                case Mips.SUB:
+                    readSource1(decoded);
+                    readSource2(decoded);
+                    c.op(ClassAssembler.ISUB);
+                    break;
+                case Mips.SLL:
+                    readSource2(decoded);
+                    readSource1(decoded);
+                    c.op(ClassAssembler.ISHL);
+                    break;
+                case Mips.SRA:
+                case Mips.SRL:
+                    readSource2(decoded);
+                    readSource1(decoded);
+                    c.op(ClassAssembler.ISHR);
+                    break;
+                case Mips.SLT:
+                    ClassAssembler.Label notLess = c.newLabel();
+                    ClassAssembler.Label done = c.newLabel();
+
+                    // flipping the sign bits compares unsigned values
+                    readSource1(decoded);
+                    if (Lib.test(Mips.UNSIGNED, flags)) {
+                        c.push(Integer.MIN_VALUE);
+                        c.op(ClassAssembler.IXOR);
+                    }
+                    readSource2(decoded);
+                    if (Lib.test(Mips.UNSIGNED, flags)) {
+                        c.push(Integer.MIN_VALUE);
+                        c.op(ClassAssembler.IXOR);
+                    }
+                    c.jump(ClassAssembler.IF_ICMPGE, notLess);
+                    c.push(1);
+                    c.jump(ClassAssembler.GOTO, done);
+                    c.mark(notLess);
+                    c.push(0);
+                    c.mark(done);
+                    break;
+                case Mips.AND:
+                    readSource1(decoded);
+                    readSource2(decoded);
+                    c.op(ClassAssembler.IAND);
+                    break;
+                case Mips.OR:
+                    readSource1(decoded);
+                    readSource2(decoded);
+                    c.op(ClassAssembler.IOR);
+                    break;
+                case Mips.NOR:
+                    readSource1(decoded);
+                    readSource2(decoded);
+                    c.op(ClassAssembler.IOR);
+                    c.push(-1);
+                    c.op(ClassAssembler.IXOR);
+                    break;
+                case Mips.XOR:
+                    readSource1(decoded);
+                    readSource2(decoded);
+                    c.op(ClassAssembler.IXOR);
+                    break;
+                case Mips.LUI:
+                    c.push(decoded.imm << 16);
+                    break;
+                case Mips.MFLO:
+                    read(regLo);
+                    break;
+                case Mips.MFHI:
+                    read(regHi);
+                    break;
+                default:
+                    Lib.assertNotReached();
+            }
+
+            finishLoad();
+            c.op(ClassAssembler.IASTORE);
+        }
+
+        /**
+         * Compile an <tt>add</tt>, <tt>addi</tt>, or <tt>sub</tt>, which
+         * raises an exception if its 64-bit result does not fit in 32 bits.
+         * The exception comes before the previous delayed load completes.
+         */
+        private void compileOverflowing(DecodedInstruction decoded) {
+            ClassAssembler.Code c = code;
+            boolean write = (decoded.dstReg != 0);
+
+            if (write)
+                startWrite(decoded.dstReg);
+
+            readSource1(decoded);
+            c.op(ClassAssembler.I2L);
+            readSource2(decoded);
+            c.op(ClassAssembler.I2L);
+            c.op(decoded.operation == Mips.ADD ?
+                    ClassAssembler.LADD : ClassAssembler.LSUB);
+
+            ClassAssembler.Label fits = c.newLabel();
+            c.op(ClassAssembler.DUP2);
+            c.op(ClassAssembler.L2I);
+            c.op(ClassAssembler.I2L);
+            c.op(ClassAssembler.LCMP);
+            c.jump(ClassAssembler.IFEQ, fits);
+            savePC();
+            c.local(ClassAssembler.ALOAD, localProcessor);
+            c.invoke(ClassAssembler.INVOKEVIRTUAL, processorClass,
+                    "blockOverflow", "()V");
+            c.mark(fits);
+
+            if (write) {
+                c.op(ClassAssembler.L2I);
+                finishLoad();
+                c.op(ClassAssembler.IASTORE);
+            } else {
+                c.op(ClassAssembler.POP2);
+                finishLoad();
+            }
+        }
+
+        /**
+         * Compile a branch or jump. The address it goes to is kept in a
+         * local variable until its delay slot has run.
+         */
+        private void compileBranch(DecodedInstruction decoded) {
+            ClassAssembler.Code c = code;
+
+            if (decoded.operation == Mips.JUMP) {
+                if (decoded.format == Mips.RFMT)
+                    read(decoded.rs);
+                else
+                    c.push(((pc + 4) & 0xF0000000) | (decoded.target << 2));
+            } else {
+                ClassAssembler.Label notTaken = c.newLabel();
+                ClassAssembler.Label done = c.newLabel();
+
+                read(decoded.rs);
+                switch (decoded.operation) {
+                    case Mips.BEQ:
+                        read(decoded.rt);
+                        c.jump(ClassAssembler.IF_ICMPNE, notTaken);
+                        break;
+                    case Mips.BNE:
+                        read(decoded.rt);
+                        c.jump(ClassAssembler.IF_ICMPEQ, notTaken);
+                        break;
+                    case Mips.BLEZ:
+                        c.jump(ClassAssembler.IFGT, notTaken);
+                        break;
+                    case Mips.BGTZ:
+                        c.jump(ClassAssembler.IFLE, notTaken);
+                        break;
+                    case Mips.BLTZ:
+                        c.jump(ClassAssembler.IFGE, notTaken);
+                        break;
+                    default:
+                        c.jump(ClassAssembler.IFLT, notTaken);
+                        break;
+                }
+                c.push(pc + 4 + decoded.branchOffset);
+                c.jump(ClassAssembler.GOTO, done);
+                c.mark(notTaken);
+                c.push(pc + 8);
+                c.mark(done);
+            }
+            c.local(ClassAssembler.ISTORE, localNextPC);
+
+            finishLoad();
+
+            if (Lib.test(Mips.LINK, decoded.flags) && decoded.dstReg != 0) {
+                startWrite(decoded.dstReg);
+                c.push(pc + 8);
+                c.op(ClassAssembler.IASTORE);
+            }
+        }
+
+        /**
+         * Write the PC and nextPC that the interpreter would have while
+         * executing the current instruction, so that an exception sees them.
+         */
+        private void savePC() {
+            // they are still right for the first instruction
+            if (first)
+                return;
+
+            startWrite(regPC);
+            code.push(pc);
+            code.op(ClassAssembler.IASTORE);
+
+            startWrite(regNextPC);
+            if (inDelaySlot)
+                code.local(ClassAssembler.ILOAD, localNextPC);
+            else
+                code.push(pc + 4);
+            code.op(ClassAssembler.IASTORE);
+        }
+
+        /**
+         * Return from the block after the current instruction, leaving the
+         * PC and nextPC as the interpreter would.
+         *
+         * @param executed    the number of instructions executed.
+         * @param afterBranch <tt>true</tt> if the current instruction is a
+         *                    branch whose delay slot is on the next page.
+         */
+        private void exit(int executed, boolean afterBranch) {
+            ClassAssembler.Code c = code;
+
+            startWrite(regPC);
+            if (inDelaySlot)
+                c.local(ClassAssembler.ILOAD, localNextPC);
+            else
+                c.push(pc + 4);
+            c.op(ClassAssembler.IASTORE);
+
+            startWrite(regNextPC);
+            if (inDelaySlot) {
+                c.local(ClassAssembler.ILOAD, localNextPC);
+                c.push(4);
+                c.op(ClassAssembler.IADD);
+            } else if (afterBranch) {
+                c.local(ClassAssembler.ILOAD, localNextPC);
+            } else {
+                c.push(pc + 8);
+            }
+            c.op(ClassAssembler.IASTORE);
+
+            c.push(executed);
+            c.op(ClassAssembler.IRETURN);
+        }
+
+        /**
+         * Complete the previous delayed load, if there can be one.
+         */
+        private void finishLoad() {
+            if (!pendingLoad)
+                return;
+
+            code.local(ClassAssembler.ALOAD, localProcessor);
+            code.invoke(ClassAssembler.INVOKEVIRTUAL, processorClass,
+                    "finishLoad", "()V");
+        }
+
+        /**
+         * Push the array and index to store a register, before pushing the
+         * value and <tt>IASTORE</tt>.
+         */
+        private void startWrite(int number) {
+            code.local(ClassAssembler.ALOAD, localRegisters);
+            code.push(number);
+        }
+
+        private void read(int number) {
+            if (number == 0) {
+                code.push(0);
+                return;
+            }
+
+            code.local(ClassAssembler.ALOAD, localRegisters);
+            code.push(number);
+            code.op(ClassAssembler.IALOAD);
+        }
+
+        /**
+         * Push a register as a <tt>long</tt>, zero-extended if the
+         * instruction is unsigned.
+         */
+        private void readLong(int number, int flags) {
+            read(number);
+            code.op(ClassAssembler.I2L);
+
+            if (Lib.test(Mips.UNSIGNED, flags)) {
+                code.push(32);
+                code.op(ClassAssembler.LSHL);
+                code.push(32);
+                code.op(ClassAssembler.LUSHR);
+            }
+        }
+
+        private void readSource1(DecodedInstruction decoded) {
+            if (Lib.test(Mips.SRC1SH, decoded.flags))
+                code.push(decoded.sh);
+            else
+                read(decoded.rs);
+        }
+
+        private void readSource2(DecodedInstruction decoded) {
+            if (Lib.test(Mips.SRC2IMM, decoded.flags))
+                code.push(decoded.imm);
+            else
+                read(decoded.rt);
+        }
+
+        private void readAddress(DecodedInstruction decoded) {
+            read(decoded.rs);
+            code.push(decoded.imm);
+            code.op(ClassAssembler.IADD);
+        }
+
+        private final ClassAssembler.Code code;
+
+        /**
+         * The address of the instruction being compiled, whether it is the
+         * first or last in the block, whether there may be a delayed load
+         * for it to complete, and whether it is in the delay slot of a
+         * branch.
+         */
+        private int pc;
+        private boolean first, last, pendingLoad, inDelaySlot;
+
+        private static final String processorClass =
+                "nachos/machine/Processor";
+        private static final String compiledBlockClass =
+                "nachos/machine/Processor$CompiledBlock";
+        private static final String blockClass =
+                "nachos/machine/Processor$Block";
+
+        private static final int
+                localProcessor = 1,
+                localRegisters = 2,
+                localNextPC = 3,
+                localProduct = 4;
+    }
+
+    private class Instruction {
+        public void run() throws MipsException {
+            // hopefully this looks familiar to 152 students?
+            fetch();
+            decode();
+            execute();
+            writeBack();
+        }
+
+        public void run(DecodedInstruction decoded) throws MipsException {
+            this.decoded = decoded;
+            value = decoded.value;
+
+            decode();
+            execute();
+            writeBack();
+        }
+
+        private boolean test(int flag) {
+            return Lib.test(flag, flags);
+        }
+
+        private void fetch() throws MipsException {
+            if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+                    Lib.test(dbgFullDisassemble))
+                System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+                        + "\t");
+
+            if (Lib.test(dbgProcessor))
+                System.out.println("\treadMem vaddr=0x" +
+                        Lib.toHexString(registers[regPC]) + ", size=4");
+
+            decoded = Processor.this.fetch(registers[regPC]);
+            value = decoded.value;
+
+            if (Lib.test(dbgProcessor))
+                System.out.println("\t\tvalue read=0x" +
+                        Lib.toHexString(value, 8));
+        }
+
+        private void decode() {
+            // the register-independent fields come from the decode cache
+            op = decoded.op;
+            rs = decoded.rs;
+            rt = decoded.rt;
+            rd = decoded.rd;
+            sh = decoded.sh;
+            func = decoded.func;
+            target = decoded.target;
+            imm = decoded.imm;
+
+            operation = decoded.operation;
+            name = decoded.name;
+            format = decoded.format;
+            flags = decoded.flags;
+
+            size = decoded.size;
+            dstReg = decoded.dstReg;
+
+            mask = 0xFFFFFFFF;
+            branch = true;
+
+            // get nextPC
+            nextPC = registers[regNextPC] + 4;
+
             // get jtarget
             if (format == Mips.RFMT)
                 jtarget = registers[rs];
             else if (format == Mips.IFMT)
-                jtarget = registers[regNextPC] + (imm << 2);
+                jtarget = registers[regNextPC] + decoded.branchOffset;
             else if (format == Mips.JFMT)
                 jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
             else
                 jtarget = -1;
 
-            // get imm
-            if (test(Mips.UNSIGNED)) {
-                imm &= 0xFFFF;
-            }
-
             // get addr
             addr = registers[rs] + imm;
 
@@ -931,14 +2670,7 @@ public final class Processor {
                     registers[regHi] = (int) Lib.extract(dst, 32, 32);
                     break;
                 case Mips.DIV:
-                    try {
-                        registers[regLo] = (int) (src1 / src2);
-                        registers[regHi] = (int) (src1 % src2);
-                        if (registers[regLo] * src2 + registers[regHi] != src1)
-                            throw new ArithmeticException();
-                    } catch (ArithmeticException e) {
-                        throw new MipsException(exceptionOverflow);
-                    }
+                    divide(src1, src2);
                     break;
 
                 case Mips.SLL:
@@ -1007,7 +2739,7 @@ public final class Processor {
                     break;
 
                 case Mips.SYSCALL:
-                    throw new MipsException(exceptionSyscall);
+                    throw raise(exceptionSyscall);
 
                 case Mips.LOAD:
                     value = readMem(addr, size);
@@ -1077,7 +2809,7 @@ public final class Processor {
                     System.err.println("Warning: encountered unimplemented inst");
 
                 case Mips.INVALID:
-                    throw new MipsException(exceptionIllegalInstruction);
+                    throw raise(exceptionIllegalInstruction);
 
                 default:
                     Lib.assertNotReached();
@@ -1087,7 +2819,7 @@ public final class Processor {
         private void writeBack() throws MipsException {
             // if instruction is signed, but carry bit !+ sign bit, throw
             if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-                throw new MipsException(exceptionOverflow);
+                throw raise(exceptionOverflow);
 
             if (test(Mips.DELAYEDLOAD))
                 delayedLoad(dstReg, (int) dst, mask);
@@ -1120,6 +2852,7 @@ public final class Processor {
         }
 
         // state used to execute a single instruction
+        DecodedInstruction decoded;
         int value, op, rs, rt, rd, sh, func, target, imm;
         int operation, format, flags;
         String name;
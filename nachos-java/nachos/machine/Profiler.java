@@ -0,0 +1,474 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts the instructions that user programs execute, and the TLB misses and
+ * stall ticks that they cause, by program counter. Enabled by setting
+ * <tt>Processor.profile</tt>; a flat profile of each program is printed when
+ * the machine halts.
+ *
+ * <p>
+ * Each instruction is charged to the program the kernel last passed to
+ * <tt>Processor.setProgram()</tt> on the processor that executed it, and to
+ * the function it is part of. There
+ * are no reliable symbols in our COFF files, so functions are identified by
+ * the section and offset of their first instruction. Calls and returns are
+ * followed with a shadow stack: a jump to an address whose return address
+ * register holds the address after the jump's delay slot is a call, and a
+ * jump to the return address of a call on the stack returns from it. Basic
+ * blocks start at every address that control jumped to.
+ *
+ * <p>
+ * Stall ticks are the simulated ticks that pass between an instruction
+ * causing an exception and its program running again, which includes the
+ * time spent in the kernel handling a TLB miss or system call, and any time
+ * other threads ran in the meantime.
+ *
+ * <p>
+ * If <tt>Processor.profileFile</tt> is set, the call stacks are also written
+ * to that file in the collapsed format used by flame graph tools, with one
+ * line per distinct stack followed by the number of instructions executed
+ * in its innermost function.
+ */
+class Profiler {
+    /**
+     * Allocate a new profiler, which prints its profile when Nachos exits.
+     *
+     * @param privilege encapsulates privileged access to the Nachos machine.
+     */
+    Profiler(final Privilege privilege) {
+        collapsedFileName = Config.getString("Processor.profileFile", null);
+        context = new Context[Config.getInteger("Machine.numProcessors", 1)];
+
+        privilege.addExitNotificationHandler(new Runnable() {
+            public void run() {
+                print();
+                if (collapsedFileName != null) {
+                    privilege.doPrivileged(new Runnable() {
+                        public void run() {
+                            writeCollapsed();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Charge instructions executed by the specified processor to the
+     * specified program from now on.
+     *
+     * @param processor the number of the processor.
+     * @param coff      the executable of the program, or <tt>null</tt> to
+     *                  stop counting.
+     */
+    void setProgram(int processor, Coff coff) {
+        if (coff == null) {
+            context[processor] = null;
+            return;
+        }
+
+        Context context = contexts.get(coff);
+        if (context == null) {
+            String name = coff.getName();
+            if (name == null)
+                name = "unknown";
+
+            ProgramProfile program = programs.get(name);
+            if (program == null) {
+                program = new ProgramProfile(name, coff);
+                programs.put(name, program);
+            }
+
+            context = new Context(program, coff.getEntryPoint());
+            contexts.put(coff, context);
+        }
+
+        this.context[processor] = context;
+    }
+
+    /**
+     * Count an instruction that completed.
+     *
+     * @param processor     the number of the processor that executed it.
+     * @param pc            the address of the instruction.
+     * @param returnAddress the value of the return address register after it
+     *                      completed.
+     */
+    void executed(int processor, int pc, int returnAddress) {
+        Context context = this.context[processor];
+        if (context == null)
+            return;
+
+        int index = context.program.index(pc);
+        if (index < 0)
+            return;
+
+        if (pc != context.lastPC + 4)
+            context.jumpedTo(pc, index, returnAddress);
+        context.lastPC = pc;
+
+        context.program.instructions[index]++;
+        context.node().instructions++;
+    }
+
+    /**
+     * Charge an exception, and the ticks that passed before its program ran
+     * again, to the instruction that caused it.
+     *
+     * @param processor  the number of the processor its program runs on.
+     * @param pc         the address of the instruction.
+     * @param cause      the exception, one of the
+     *                   <tt>Processor.exception<i>*</i></tt> constants.
+     * @param stallTicks the ticks that passed.
+     */
+    void exception(int processor, int pc, int cause, long stallTicks) {
+        Context context = this.context[processor];
+        if (context == null)
+            return;
+
+        int index = context.program.index(pc);
+        if (index < 0)
+            return;
+
+        CallNode node = context.node();
+        if (cause == Processor.exceptionTLBMiss) {
+            context.program.tlbMisses[index]++;
+            node.tlbMisses++;
+        }
+        context.program.stallTicks[index] += stallTicks;
+        node.stallTicks += stallTicks;
+    }
+
+    private void print() {
+        for (ProgramProfile program : programs.values())
+            program.print();
+    }
+
+    private void writeCollapsed() {
+        try (PrintWriter out = new PrintWriter(new FileWriter(collapsedFileName))) {
+            for (ProgramProfile program : programs.values())
+                program.root.writeCollapsed(out, program, program.name);
+        } catch (IOException e) {
+            System.out.println("could not write " + collapsedFileName);
+        }
+    }
+
+    /**
+     * The counters for every program with the same name.
+     */
+    private static class ProgramProfile {
+        ProgramProfile(String name, Coff coff) {
+            this.name = name;
+
+            // remember the layout now, since the COFF file will be closed
+            int numSections = coff.getNumSections();
+            sectionNames = new String[numSections];
+            sectionStarts = new int[numSections];
+            sectionEnds = new int[numSections];
+
+            int end = 0;
+            for (int s = 0; s < numSections; s++) {
+                CoffSection section = coff.getSection(s);
+                sectionNames[s] = section.getName();
+                sectionStarts[s] = section.getFirstVPN() * Processor.pageSize;
+                sectionEnds[s] = sectionStarts[s] +
+                        section.getLength() * Processor.pageSize;
+                end = Math.max(end, sectionEnds[s]);
+            }
+
+            instructions = new long[end / 4];
+            tlbMisses = new int[end / 4];
+            stallTicks = new long[end / 4];
+            leaders = new BitSet(end / 4);
+            root = new CallNode(coff.getEntryPoint());
+        }
+
+        int index(int pc) {
+            int index = pc >> 2;
+            return (pc >= 0 && index < instructions.length) ? index : -1;
+        }
+
+        String describe(int address) {
+            for (int s = 0; s < sectionNames.length; s++) {
+                if (address >= sectionStarts[s] && address < sectionEnds[s])
+                    return sectionNames[s] + "+0x" +
+                            Integer.toHexString(address - sectionStarts[s]);
+            }
+            return "0x" + Lib.toHexString(address);
+        }
+
+        void print() {
+            long total = 0, misses = 0, stalls = 0;
+            for (int i = 0; i < instructions.length; i++) {
+                total += instructions[i];
+                misses += tlbMisses[i];
+                stalls += stallTicks[i];
+            }
+
+            System.out.println("Profile of " + name + ": " + total +
+                    " instructions, " + misses + " TLB misses, " + stalls +
+                    " stall ticks");
+            if (total == 0)
+                return;
+
+            printFunctions(total);
+            printBlocks(total);
+            printInstructions(total);
+            System.out.println();
+        }
+
+        private void printFunctions(long total) {
+            final Map<Integer, long[]> functions = new HashMap<>();
+            root.sumFunctions(functions, new HashMap<Integer, Integer>());
+
+            List<Integer> order = new ArrayList<>(functions.keySet());
+            Collections.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(functions.get(b)[0], functions.get(a)[0]);
+                }
+            });
+
+            System.out.println("  functions:");
+            System.out.println(String.format("  %12s %6s %12s %9s %10s  %s",
+                    "self", "%", "total", "TLB miss", "stall", "entry"));
+            for (int i = 0; i < order.size() && i < reportLength; i++) {
+                long[] sums = functions.get(order.get(i));
+                System.out.println(String.format(
+                        "  %12d %5.1f%% %12d %9d %10d  %s", sums[0],
+                        100.0 * sums[0] / total, sums[1], sums[2], sums[3],
+                        describe(order.get(i))));
+            }
+        }
+
+        private void printBlocks(long total) {
+            // a block runs from a leader to the next leader or unused word
+            List<long[]> blocks = new ArrayList<>();
+            for (int i = leaders.nextSetBit(0); i >= 0;
+                 i = leaders.nextSetBit(i + 1)) {
+                long sum = 0;
+                int end = i;
+                while (end < instructions.length && instructions[end] != 0 &&
+                        (end == i || !leaders.get(end)))
+                    sum += instructions[end++];
+
+                if (sum != 0)
+                    blocks.add(new long[]{sum, i, end - i, instructions[i]});
+            }
+
+            Collections.sort(blocks, new Comparator<long[]>() {
+                public int compare(long[] a, long[] b) {
+                    return Long.compare(b[0], a[0]);
+                }
+            });
+
+            System.out.println("  basic blocks:");
+            System.out.println(String.format("  %12s %6s %10s %6s  %s",
+                    "instructions", "%", "entries", "length", "start"));
+            for (int i = 0; i < blocks.size() && i < reportLength; i++) {
+                long[] block = blocks.get(i);
+                System.out.println(String.format("  %12d %5.1f%% %10d %6d  %s",
+                        block[0], 100.0 * block[0] / total, block[3], block[2],
+                        describe((int) block[1] * 4)));
+            }
+        }
+
+        private void printInstructions(long total) {
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < instructions.length; i++) {
+                if (instructions[i] != 0 || tlbMisses[i] != 0 ||
+                        stallTicks[i] != 0)
+                    order.add(i);
+            }
+
+            Collections.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(instructions[b] + stallTicks[b],
+                            instructions[a] + stallTicks[a]);
+                }
+            });
+
+            System.out.println("  instructions:");
+            System.out.println(String.format("  %12s %6s %9s %10s  %s",
+                    "executed", "%", "TLB miss", "stall", "address"));
+            for (int i = 0; i < order.size() && i < reportLength; i++) {
+                int index = order.get(i);
+                System.out.println(String.format("  %12d %5.1f%% %9d %10d  %s",
+                        instructions[index], 100.0 * instructions[index] / total,
+                        tlbMisses[index], stallTicks[index],
+                        describe(index * 4)));
+            }
+        }
+
+        final String name;
+        final long[] instructions;
+        final int[] tlbMisses;
+        final long[] stallTicks;
+        final BitSet leaders;
+        final CallNode root;
+
+        private final String[] sectionNames;
+        private final int[] sectionStarts, sectionEnds;
+    }
+
+    /**
+     * A function called along a particular call path, and the counts charged
+     * to it there.
+     */
+    private static class CallNode {
+        CallNode(int function) {
+            this.function = function;
+        }
+
+        CallNode child(int function) {
+            for (CallNode child = firstChild; child != null;
+                 child = child.nextSibling) {
+                if (child.function == function)
+                    return child;
+            }
+
+            CallNode child = new CallNode(function);
+            child.nextSibling = firstChild;
+            firstChild = child;
+            return child;
+        }
+
+        /**
+         * Add the counts of this subtree into <i>functions</i>, which maps
+         * each function to its self instructions, total instructions, TLB
+         * misses and stall ticks, and return the total instructions of this
+         * subtree. A recursive function's total is only counted at its
+         * outermost call.
+         */
+        long sumFunctions(Map<Integer, long[]> functions,
+                          Map<Integer, Integer> onPath) {
+            long[] sums = functions.get(function);
+            if (sums == null) {
+                sums = new long[4];
+                functions.put(function, sums);
+            }
+            sums[0] += instructions;
+            sums[2] += tlbMisses;
+            sums[3] += stallTicks;
+
+            Integer depth = onPath.get(function);
+            onPath.put(function, (depth == null) ? 1 : depth + 1);
+
+            long subtree = instructions;
+            for (CallNode child = firstChild; child != null;
+                 child = child.nextSibling)
+                subtree += child.sumFunctions(functions, onPath);
+
+            if (depth == null) {
+                onPath.remove(function);
+                sums[1] += subtree;
+            } else {
+                onPath.put(function, depth);
+            }
+
+            return subtree;
+        }
+
+        void writeCollapsed(PrintWriter out, ProgramProfile program,
+                            String path) {
+            path = path + ";" + program.describe(function);
+            if (instructions != 0)
+                out.println(path + " " + instructions);
+
+            for (CallNode child = firstChild; child != null;
+                 child = child.nextSibling)
+                child.writeCollapsed(out, program, path);
+        }
+
+        final int function;
+        long instructions, tlbMisses, stallTicks;
+
+        private CallNode firstChild = null, nextSibling = null;
+    }
+
+    /**
+     * The shadow stack of one running program.
+     */
+    private static class Context {
+        Context(ProgramProfile program, int entryPoint) {
+            this.program = program;
+            nodes[0] = program.root;
+            lastPC = entryPoint - 4;
+
+            int index = program.index(entryPoint);
+            if (index >= 0)
+                program.leaders.set(index);
+        }
+
+        CallNode node() {
+            return nodes[depth];
+        }
+
+        void jumpedTo(int pc, int index, int returnAddress) {
+            program.leaders.set(index);
+
+            // returning to any caller on the stack pops everything above it
+            for (int d = depth; d > 0; d--) {
+                if (returnAddresses[d] == pc) {
+                    depth = d - 1;
+                    return;
+                }
+            }
+
+            if (returnAddress == lastPC + 4 && depth < maxDepth) {
+                if (depth + 1 == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                    returnAddresses = Arrays.copyOf(returnAddresses,
+                            returnAddresses.length * 2);
+                }
+
+                nodes[depth + 1] = nodes[depth].child(pc);
+                returnAddresses[depth + 1] = returnAddress;
+                depth++;
+            }
+        }
+
+        final ProgramProfile program;
+        int lastPC;
+
+        private CallNode[] nodes = new CallNode[16];
+        private int[] returnAddresses = new int[16];
+        private int depth = 0;
+    }
+
+    /**
+     * The program that instructions executed by each processor are charged
+     * to, or <tt>null</tt>.
+     */
+    private Context[] context;
+    /**
+     * The shadow stack of every process, by executable.
+     */
+    private Map<Coff, Context> contexts = new IdentityHashMap<>();
+    /**
+     * The counters of every program, by name.
+     */
+    private Map<String, ProgramProfile> programs = new TreeMap<>();
+
+    private String collapsedFileName;
+
+    private static final int reportLength = 10;
+    private static final int maxDepth = 1024;
+}
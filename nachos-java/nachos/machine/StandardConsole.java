@@ -29,6 +29,11 @@ public class StandardConsole implements SerialConsole {
 		public void run() { sendInterrupt(); }
 	    };		
 	
+	Machine.interrupt().addBackgroundHandler(receiveInterrupt);
+	Machine.interrupt().addInputSource(new Interrupt.InputSource() {
+		public boolean inputAvailable() { return available(); }
+	    });
+
 	scheduleReceiveInterrupt();
     }
     
@@ -60,6 +65,22 @@ public class StandardConsole implements SerialConsole {
 	}
     }
 
+    /**
+     * Test whether a byte can be read from the object backing this console
+     * without blocking. Subclasses that override <tt>in()</tt> should override
+     * this as well.
+     *
+     * @return	<tt>true</tt> if <tt>in()</tt> would return a byte.
+     */
+    protected boolean available() {
+	try {
+	    return System.in.available() > 0;
+	}
+	catch (IOException e) {
+	    return false;
+	}
+    }
+
     private int translateCharacter(int c) {
 	// translate win32 0x0D 0x0A sequence to single newline
 	if (c == 0x0A && prevCarriageReturn) {
@@ -6,6 +6,9 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +17,24 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * If <tt>TCB.virtualThreads</tt> is set, the JVM threads are virtual threads,
+ * which need no native stack of their own, so Nachos can create up to
+ * <tt>maxVirtualThreads</tt> TCBs instead of <tt>maxThreads</tt>. Virtual
+ * threads need JDK 21 or later, run with
+ * <tt>-Djava.security.manager=allow</tt>; on older JDKs Nachos falls back to
+ * platform threads. Either way, only one TCB runs at a time on each
+ * processor. A TCB runs on the processor of the TCB that switched to it, and
+ * the first TCB on every processor except the first is started with
+ * <tt>start(Runnable, int)</tt>.
+ *
+ * <p>
+ * Platform threads are expensive to create, so when a TCB is destroyed its
+ * JVM thread waits in a pool for the next TCB to start, instead of exiting.
+ * Up to <tt>TCB.poolSize</tt> idle threads are kept, and each one exits
+ * after waiting <tt>TCB.poolIdleTime</tt> milliseconds without being reused.
+ * Setting <tt>TCB.poolSize</tt> to 0 gives every TCB a new thread.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +61,54 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	if (Config.getBoolean("TCB.virtualThreads", false))
+	    findVirtualThreads();
+
+	spinCount = Config.getInteger("TCB.spinCount", 0);
+	Lib.assertTrue(spinCount >= 0);
+
+	poolSize = Config.getInteger("TCB.poolSize", 16);
+	poolIdleTime = Config.getInteger("TCB.poolIdleTime", 1000);
+	Lib.assertTrue(poolSize >= 0 && poolIdleTime > 0);
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual().unstarted()</tt>, which older JDKs do
+     * not have, so it has to be called through reflection.
+     */
+    private static void findVirtualThreads() {
+	try {
+	    virtualThreadBuilder =
+		Thread.class.getMethod("ofVirtual").invoke(null);
+	    unstartedVirtualThread =
+		Class.forName("java.lang.Thread$Builder")
+		.getMethod("unstarted", Runnable.class);
+	}
+	catch (Exception e) {
+	    System.out.print("\nvirtual threads are not available, "
+			     + "using platform threads\n");
+	    virtualThreadBuilder = null;
+	    unstartedVirtualThread = null;
+	}
+    }
+
+    /**
+     * Create an unstarted JVM thread to run the specified target: a virtual
+     * thread if they are enabled, and a platform thread otherwise.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (unstartedVirtualThread == null)
+	    return new Thread(target);
+
+	try {
+	    return (Thread) unstartedVirtualThread.invoke(virtualThreadBuilder,
+							  target);
+	}
+	catch (Exception e) {
+	    Lib.assertNotReached("could not create a virtual thread: " + e);
+	    return null;
+	}
     }
     
     /**
@@ -50,7 +119,8 @@ public final class TCB {
 	/* We will not use synchronization here, because we're assuming that
 	 * either this is the first call to start(), or we're being called in
 	 * the context of another TCB. Since we only allow one TCB to run at a
-	 * time, no synchronization is necessary.
+	 * time on each processor, and the processors take turns running the
+	 * kernel, no synchronization is necessary.
 	 *
 	 * The only way this assumption could be broken is if one of our
 	 * non-Nachos threads used the TCB code.
@@ -66,16 +136,21 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() <
+		       (unstartedVirtualThread == null ?
+			maxThreads : maxVirtualThreads));
+
+	isFirstTCB = runningThreads.isEmpty();
 
-	isFirstTCB = (currentTCB == null);
+	TCB current = currentTCB();
 
 	/* Probably unnecessary sanity check: if this is not the first TCB, we
 	 * make sure that the current thread is bound to the current TCB. This
 	 * check can only fail if non-Nachos threads invoke start().
 	 */
 	if (!isFirstTCB)
-	    Lib.assertTrue(currentTCB.javaThread == Thread.currentThread());
+	    Lib.assertTrue(current != null &&
+			   current.javaThread == Thread.currentThread());
 
 	/* At this point all checks are complete, so we go ahead and start the
 	 * TCB. Whether or not this is the first TCB, it gets added to
@@ -86,27 +161,18 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we have to give it a Java thread
+	     * of its own. The thread hasn't yet started, but we need to get
+	     * it blocking in yield(). We do this by temporarily turning off
+	     * the current TCB, starting the Java thread, and waiting for it to
+	     * wake us up from threadroot(). Once the new TCB wakes us up, it's
+	     * safe to context switch to the new TCB.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
-
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
+	    starter = current;
+	    current.running = false;
 
-	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
-	     */
-	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
-	    currentTCB.waitForInterrupt();
+	    launch();
+	    current.waitForInterrupt();
 	}
 	else {
 	    /* This is the first TCB, so we don't need to make a new Java
@@ -119,11 +185,85 @@ public final class TCB {
 	}
     }
 
+    /**
+     * Causes the thread represented by this TCB to begin execution on the
+     * specified processor, which no other TCB has run on yet. The specified
+     * target is run in the thread once the processor can run the kernel,
+     * in parallel with the current thread, which returns immediately.
+     *
+     * @param	target		the code to run.
+     * @param	processor	the number of the processor to run on.
+     */
+    public void start(Runnable target, int processor) {
+	Lib.assertTrue(javaThread == null && !done);
+	Lib.assertTrue(runningThreads.size() <
+		       (unstartedVirtualThread == null ?
+			maxThreads : maxVirtualThreads));
+	Lib.assertTrue(processor > 0 && processor < Machine.numProcessors());
+
+	TCB current = currentTCB();
+	Lib.assertTrue(current != null &&
+		       current.javaThread == Thread.currentThread());
+
+	runningThreads.add(this);
+
+	this.target = target;
+	this.processor = processor;
+
+	/* Nothing hands this TCB a processor: it is the first TCB on its
+	 * own, so it starts running as soon as threadroot() gets the kernel.
+	 */
+	isFirstTCB = true;
+
+	launch();
+    }
+
+    /**
+     * Bind this TCB to a Java thread running <tt>threadroot()</tt>: an idle
+     * thread from the pool if there is one, and otherwise a new thread.
+     */
+    private void launch() {
+	if ((pooled = idleThreads.pollFirst()) != null) {
+	    javaThread = pooled.thread;
+	    pooled.assign(this);
+	    return;
+	}
+
+	/* Creating Java threads is a privileged operation. Virtual threads
+	 * are cheap to create, so they are not pooled.
+	 */
+	if (poolSize > 0 && unstartedVirtualThread == null) {
+	    pooled = new PooledThread(this);
+	    tcbTarget = pooled;
+	}
+	else {
+	    tcbTarget = new Runnable() {
+		    public void run() { threadroot(); }
+		};
+	}
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { javaThread = newJavaThread(tcbTarget); }
+	    });
+
+	if (pooled != null)
+	    pooled.thread = javaThread;
+
+	javaThread.start();
+    }
+
     /**
      * Return the TCB of the currently running thread.
      */
     public static TCB currentTCB() {
-	return currentTCB;
+	return currentTCB.get();
+    }
+
+    /**
+     * Return the number of the processor that this TCB runs on.
+     */
+    int getProcessor() {
+	return processor;
     }
 
     /**
@@ -136,27 +276,30 @@ public final class TCB {
 	 * thread is bound to the current TCB. This check can only fail if
 	 * non-Nachos threads invoke start().
 	 */
-	Lib.assertTrue(currentTCB.javaThread == Thread.currentThread());
+	TCB current = currentTCB();
+	Lib.assertTrue(current != null &&
+		       current.javaThread == Thread.currentThread());
 
 	// make sure AutoGrader.runningThread() called associateThread()
-	Lib.assertTrue(currentTCB.associated);
-	currentTCB.associated = false;
+	Lib.assertTrue(current.associated);
+	current.associated = false;
 	
 	// can't switch from a TCB to itself
-	if (this == currentTCB)
+	if (this == current)
 	    return;
 
 	/* There are some synchronization concerns here. As soon as we wake up
 	 * the next thread, we cannot assume anything about static variables,
 	 * or about any TCB's state. Therefore, before waking up the next
-	 * thread, we must latch the value of currentTCB, and set its running
-	 * flag to false (so that, in case we get interrupted before we call
-	 * yield(), the interrupt will set the running flag and yield() won't
-	 * block).
+	 * thread, we must set the running flag of the current TCB to false
+	 * (so that, in case we get interrupted before we call yield(), the
+	 * interrupt will set the running flag and yield() won't block), and
+	 * hand this TCB our processor.
 	 */
 
-	TCB previous = currentTCB;
+	TCB previous = current;
 	previous.running = false;
+	processor = previous.processor;
 	
 	this.interrupt();
 	previous.yield();
@@ -169,10 +312,11 @@ public final class TCB {
      */
     public void destroy() {
 	// make sure the current TCB is correct
-	Lib.assertTrue(currentTCB != null &&
-		   currentTCB.javaThread == Thread.currentThread());
+	TCB current = currentTCB();
+	Lib.assertTrue(current != null &&
+		   current.javaThread == Thread.currentThread());
 	// can't destroy current thread
-	Lib.assertTrue(this != currentTCB);
+	Lib.assertTrue(this != current);
 	// thread must have started but not be destroyed yet
 	Lib.assertTrue(javaThread != null && !done);
 
@@ -181,10 +325,11 @@ public final class TCB {
 	toBeDestroyed = null;
 
 	this.done = true;
-	currentTCB.running = false;
+	destroyer = current;
+	current.running = false;
 
 	this.interrupt();
-	currentTCB.waitForInterrupt();
+	current.waitForInterrupt();
 	
 	this.javaThread = null;
     }
@@ -203,31 +348,104 @@ public final class TCB {
      * @return	<tt>true</tt> if the current JVM thread is a Nachos thread.
      */
     public static boolean isNachosThread() {
-	return (currentTCB != null &&
-		Thread.currentThread() == currentTCB.javaThread);
+	TCB current = currentTCB.get();
+
+	return (current != null &&
+		Thread.currentThread() == current.javaThread);
+    }
+
+    /**
+     * The body of a pooled JVM thread. It runs TCBs one after another: when
+     * the TCB it is running is destroyed, <tt>threadroot()</tt> returns, and
+     * the thread waits in <tt>idleThreads</tt> for <tt>start()</tt> to hand
+     * it another TCB.
+     */
+    private static class PooledThread implements Runnable {
+	PooledThread(TCB tcb) {
+	    this.tcb = tcb;
+	}
+
+	public void run() {
+	    do {
+		tcb.threadroot();
+		tcb = null;
+	    } while (waitForTCB());
+	}
+
+	/**
+	 * Give this idle thread a TCB to run. Called by <tt>start()</tt>
+	 * after it has removed this thread from <tt>idleThreads</tt>.
+	 */
+	void assign(TCB tcb) {
+	    this.tcb = tcb;
+	    LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Wait in the pool until <tt>start()</tt> assigns a TCB to this
+	 * thread. Returns <tt>false</tt> if the thread should exit instead,
+	 * because the pool is full or because no TCB arrived within
+	 * <tt>poolIdleTime</tt> milliseconds.
+	 */
+	private boolean waitForTCB() {
+	    if (idleThreads.size() >= poolSize)
+		return false;
+
+	    idleThreads.addFirst(this);
+
+	    long deadline = System.nanoTime() + poolIdleTime * 1000000L;
+	    while (tcb == null) {
+		long remaining = deadline - System.nanoTime();
+
+		if (remaining > 0) {
+		    LockSupport.parkNanos(this, remaining);
+		}
+		else if (idleThreads.remove(this)) {
+		    return false;
+		}
+		else {
+		    /* start() took this thread out of the pool just as it
+		     * timed out, so the TCB is on its way.
+		     */
+		    while (tcb == null)
+			LockSupport.park(this);
+		}
+	    }
+
+	    return true;
+	}
+
+	Thread thread;
+	private volatile TCB tcb;
     }
 
     private void threadroot() {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
 
+	currentTCB.set(this);
+
 	if (!isFirstTCB) {
 	    /* start() is waiting for us to wake it up, signalling that it's OK
 	     * to context switch to us. We leave the running flag false so that
 	     * we'll still run if a context switch happens before we go to
-	     * sleep. All we have to do is wake up the current TCB and then
-	     * wait to get woken up by contextSwitch() or destroy().
+	     * sleep. All we have to do is wake up the TCB that started us and
+	     * then wait to get woken up by contextSwitch() or destroy().
 	     */
 	    
-	    currentTCB.interrupt();
+	    TCB starter = this.starter;
+	    this.starter = null;
+
+	    starter.interrupt();
 	    this.yield();
 	}
 	else {
-	    /* start() called us directly, so we just need to initialize
-	     * a couple things.
+	    /* Nothing will switch to us, so once our processor can run the
+	     * kernel, we just need to initialize a couple things.
 	     */
+	    if (processor != 0)
+		privilege.interrupt.startProcessor(processor);
 	    
-	    currentTCB = this;
 	    running = true;
 	}
 
@@ -258,6 +476,8 @@ public final class TCB {
 	    else
 		die();
 	}
+
+	currentTCB.remove();
     }
 
     /**
@@ -265,44 +485,45 @@ public final class TCB {
      * wait for another TCB to context switch to this TCB. Since this TCB
      * might get destroyed instead, we check the <tt>done</tt> flag after
      * waking up. If it is set, the TCB that woke us up is waiting for an
-     * acknowledgement in destroy(). Otherwise, we just set the current TCB to
-     * this TCB and return.
+     * acknowledgement in destroy(). Otherwise, we just return.
      */
     private void yield() {
 	waitForInterrupt();
 	
 	if (done) {
-	    currentTCB.interrupt();
+	    currentTCB.remove();
+	    destroyer.interrupt();
 	    throw new ThreadDeath();
 	}
-
-	currentTCB = this;
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
-     * TCB needs to go to wait for its turn to run. This includes the ping-pong
-     * process of starting and destroying TCBs, as well as in context switching
-     * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-     * is updated by <tt>contextSwitch()</tt> before we get called.
+     * Waits until this TCB's <tt>running</tt> flag is set to <tt>true</tt>.
+     * <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go to wait
+     * for its turn to run. This includes the ping-pong process of starting
+     * and destroying TCBs, as well as in context switching from this TCB to
+     * another.
+     *
+     * <p>
+     * The thread first spins for up to <tt>TCB.spinCount</tt> iterations, in
+     * case the other thread hands control back quickly, and then parks.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	for (int i = 0; i < spinCount && !running; i++)
+	    Thread.onSpinWait();
+
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and unparking its thread. Used in the ping-pong process of starting and
+     * destroying TCBs, as well as in context switching to this TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -333,19 +554,50 @@ public final class TCB {
     public static final int maxThreads = 250;
 
     /**
-     * A reference to the currently running TCB. It is initialized to
-     * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
-     * invocation of <tt>start(Runnable)</tt> assigns <tt>currentTCB</tt> a
-     * reference to the first TCB. After that, only <tt>yield()</tt> can
-     * change <tt>currentTCB</tt> to the current TCB, and only after
-     * <tt>waitForInterrupt()</tt> returns.
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence when they run on virtual threads.
+     */
+    public static final int maxVirtualThreads = 65536;
+
+    /**
+     * <tt>Thread.ofVirtual()</tt> and <tt>Thread.Builder.unstarted()</tt>,
+     * or <tt>null</tt> if TCBs run on platform threads.
+     */
+    private static Object virtualThreadBuilder = null;
+    private static Method unstartedVirtualThread = null;
+
+    /**
+     * How many times a TCB checks its <tt>running</tt> flag before parking.
+     */
+    private static int spinCount = 0;
+
+    /**
+     * The most idle JVM threads to keep for reuse, and how long, in
+     * milliseconds, an idle thread waits to be reused before it exits.
+     */
+    private static int poolSize = 0;
+    private static int poolIdleTime;
+
+    /**
+     * The idle JVM threads waiting for a TCB to run, most recently used
+     * first. Threads add themselves when their TCB is destroyed, so unlike
+     * the rest of the TCB state, this is touched by more than one thread at
+     * a time.
+     */
+    private static ConcurrentLinkedDeque<PooledThread> idleThreads =
+	new ConcurrentLinkedDeque<PooledThread>();
+
+    /**
+     * The TCB bound to each Java thread. It is set by <tt>threadroot()</tt>
+     * when a TCB starts running on its Java thread, and removed when the TCB
+     * is destroyed, so that the Java thread is no longer a Nachos thread.
+     * Only one TCB runs on each processor at a time, so on a uniprocessor
+     * the TCB of the running Java thread is the running TCB.
      *
      * <p>
-     * Note that <tt>currentTCB.javaThread</tt> will not be the current thread
-     * if the current thread is not bound to a TCB (this includes the threads
-     * created for the hardware simulation).
+     * Threads created for the hardware simulation are not bound to a TCB.
      */
-    private static TCB currentTCB = null;
+    private static ThreadLocal<TCB> currentTCB = new ThreadLocal<TCB>();
 
     /**
      * A vector containing all <i>running</i> TCB objects. It is initialized to
@@ -365,13 +617,27 @@ public final class TCB {
     private static KThread toBeDestroyed = null;
 
     /**
-     * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
-     * started in <tt>Machine.main(String[])</tt>. Initialized by
-     * <tt>start(Runnable)</tt>, on the basis of whether <tt>currentTCB</tt>
-     * has been initialized.
+     * <tt>true</tt> if and only if this TCB is the first TCB to start on its
+     * processor: the one started in <tt>Machine.main(String[])</tt>, or one
+     * started by <tt>start(Runnable, int)</tt>. Initialized by
+     * <tt>start(Runnable)</tt>, on the basis of whether any TCB is running
+     * yet.
      */
     private boolean isFirstTCB;
 
+    /**
+     * The number of the processor this TCB runs on.
+     */
+    private int processor = 0;
+
+    /**
+     * The TCB waiting in <tt>start()</tt> for this TCB to wake it up from
+     * <tt>threadroot()</tt>, and the one waiting in <tt>destroy()</tt> for
+     * this TCB to acknowledge that it is done.
+     */
+    private TCB starter = null;
+    private TCB destroyer = null;
+
     /**
      * A reference to the Java thread bound to this TCB. It is initially
      * <tt>null</tt>, assigned to a Java thread in <tt>start(Runnable)</tt>,
@@ -388,7 +654,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -401,11 +667,12 @@ public final class TCB {
     private boolean associated = false;
     private Runnable target;
     private Runnable tcbTarget;
+    private PooledThread pooled = null;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
-	    Lib.assertTrue(currentTCB != null);
-	    currentTCB.associateThread(thread);
+	    Lib.assertTrue(currentTCB() != null);
+	    currentTCB().associateThread(thread);
 	}
 	public void authorizeDestroy(KThread thread) {
 	    TCB.authorizeDestroy(thread);
@@ -12,7 +12,13 @@ import nachos.security.*;
  * The <tt>Timer</tt> class emulates a hardware timer by scheduling a timer
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
- * 500 ticks.
+ * 500 ticks. On a multiprocessor, every processor takes each timer
+ * interrupt.
+ *
+ * <p>
+ * The timer can also be programmed to cause a single deadline interrupt at an
+ * exact time, separate from the periodic interrupts, so that a thread that
+ * sleeps for a short time need not wait for the next periodic interrupt.
  */
 public final class Timer {
     /**
@@ -37,6 +43,13 @@ public final class Timer {
 		}
 	    };
 
+	deadlineInterrupt = new Runnable() {
+		public void run() { deadlineInterrupt(); }
+	    };
+
+	Machine.interrupt().addBackgroundHandler(timerInterrupt);
+	Machine.interrupt().addBackgroundHandler(autoGraderInterrupt);
+
 	scheduleInterrupt();
     }
 
@@ -50,6 +63,42 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Set the callback to use as a deadline interrupt handler. The handler
+     * will be called once at the time set by <tt>setDeadline()</tt>.
+     *
+     * @param	handler		the deadline interrupt handler.
+     */
+    public void setDeadlineHandler(Runnable handler) {
+	this.deadlineHandler = handler;
+    }
+
+    /**
+     * Program the timer to cause a deadline interrupt at the specified time,
+     * replacing any deadline that has not yet passed. Only one deadline is
+     * pending at a time.
+     *
+     * @param	time	the time of the interrupt, which must be later than
+     *			the current time.
+     */
+    public void setDeadline(long time) {
+	Lib.assertTrue(time > getTime());
+
+	cancelDeadline();
+	deadline = privilege.interrupt.schedule(time - getTime(), "deadline",
+						deadlineInterrupt);
+    }
+
+    /**
+     * Cancel the pending deadline interrupt, if any.
+     */
+    public void cancelDeadline() {
+	if (deadline != -1) {
+	    privilege.interrupt.cancel(deadline);
+	    deadline = -1;
+	}
+    }
+
     /**
      * Get the current time.
      *
@@ -65,8 +114,20 @@ public final class Timer {
 
 	lastTimerInterrupt = getTime();
 
-	if (handler != null)
+	if (handler != null) {
+	    // every processor takes the timer interrupt, so every processor
+	    // can be preempted
+	    Machine.interrupt().interruptOtherProcessors(handler);
+
 	    handler.run();
+	}
+    }
+
+    private void deadlineInterrupt() {
+	deadline = -1;
+
+	if (deadlineHandler != null)
+	    deadlineHandler.run();
     }
 
     private void scheduleInterrupt() {
@@ -83,7 +144,14 @@ public final class Timer {
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
+    private Runnable deadlineInterrupt;
+
+    /**
+     * The handle of the pending deadline interrupt, or <tt>-1</tt>.
+     */
+    private long deadline = -1;
 
     private Privilege privilege;
     private Runnable handler = null;
+    private Runnable deadlineHandler = null;
 }
@@ -0,0 +1,19 @@
+package nachos.network;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import nachos.machine.KernelEvent;
+
+/**
+ * A Flight Recorder event for a socket resending the data it has not had
+ * acked.
+ */
+@Name("nachos.SocketRetransmit")
+@Label("Socket Retransmit")
+@Category({"Nachos", "Network"})
+class RetransmitEvent extends KernelEvent {
+    @Label("Packets")
+    int packets;
+}
@@ -177,6 +177,9 @@ class SocketTx extends SocketChannel {
     private LinkedList<SocketMessage> sendingList;
     private static final char dbgSocket = 's';
     private static int sendingTimeout = 20000;
+    private static final Metrics.Histogram roundTripTime =
+            Machine.metrics().histogram("nachos_socket_rtt_ticks",
+                    "Ticks from sending a data packet until it is acked.");
     final public Watchdog resendSynWd = new Watchdog(sendingTimeout, new Runnable() {
         @Override
         public void run() {
@@ -220,8 +223,11 @@ class SocketTx extends SocketChannel {
         sendingListLock.acquire();
         boolean removed = false;
         for (Iterator i = sendingList.iterator(); i.hasNext(); ) {
-            if (message.seqNo == ((SocketMessage) i.next()).seqNo) {
+            SocketMessage sent = (SocketMessage) i.next();
+            if (message.seqNo == sent.seqNo) {
                 i.remove();
+                if (sent.sendTime != -1)
+                    roundTripTime.observe(Machine.timer().getTime() - sent.sendTime);
                 Lib.debug(dbgSocket, "Sender: get resp of seqno " + message.seqNo);
                 removed = true;
                 break;
@@ -245,6 +251,7 @@ class SocketTx extends SocketChannel {
                 break;
             }
             SocketMessage message = sendInputList.removeFirst();
+            message.sendTime = Machine.timer().getTime();
             socket.send(message);
             sendingList.add(message);
             burstSize++;
@@ -255,14 +262,20 @@ class SocketTx extends SocketChannel {
     }
 
     public int reSendData() {
+        RetransmitEvent event = new RetransmitEvent();
+        event.start();
         int burstSize = 0;
         sendingListLock.acquire();
         //send old data
         for (Iterator i = sendingList.iterator(); i.hasNext(); ) {
-            socket.send((SocketMessage) (i.next()));
+            SocketMessage message = (SocketMessage) i.next();
+            message.sendTime = -1;
+            socket.send(message);
             burstSize++;
         }
         sendingListLock.release();
+        event.packets = burstSize;
+        event.finish();
         return burstSize;
     }
 
@@ -38,8 +38,7 @@ public class SocketMessage {
         byte[] mailContents = new byte[headerLength + contents.length];
         mailContents[0] = 0;
         mailContents[1] = packCtrlBits();
-        System.arraycopy(Lib.bytesFromInt(this.seqNo), 0, mailContents, 2,
-                4);
+        Lib.bytesFromInt(mailContents, 2, this.seqNo);
         System.arraycopy(contents, 0, mailContents, headerLength,
                 contents.length);
         return mailContents;
@@ -53,7 +52,7 @@ public class SocketMessage {
             throw new MalformedPacketException();
 
         upPackCtrlBits(message.contents[1]);
-        seqNo = Lib.bytesToInt(message.contents, 2, 4);
+        seqNo = Lib.bytesToInt(message.contents, 2);
 
         contents = new byte[message.contents.length - headerLength];
         System.arraycopy(message.contents, headerLength, contents, 0,
@@ -102,6 +101,12 @@ public class SocketMessage {
 
     public byte[] contents;
 
+    /**
+     * When this message was sent, or -1 if it was resent, since the ack of a
+     * resent message does not say which copy it answers.
+     */
+    public long sendTime = -1;
+
     public static final int headerLength = 6;
 
     public static final int maxContentsLength =
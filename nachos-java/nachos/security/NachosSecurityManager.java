@@ -75,15 +75,7 @@ public class NachosSecurityManager extends SecurityManager {
     }
 
     private void enablePrivilege() {
-	if (privilegeCount == 0) {
-	    Lib.assertTrue(privileged == null);
-	    privileged = Thread.currentThread();
-	    privilegeCount++;
-	}
-	else {
-	    Lib.assertTrue(privileged == Thread.currentThread());
-	    privilegeCount++;
-	}
+	privilegeCount.set(privilegeCount.get() + 1);
     }
 
     private void rethrow(Throwable e) {
@@ -98,15 +90,13 @@ public class NachosSecurityManager extends SecurityManager {
     }
 
     private void disablePrivilege() {
-	Lib.assertTrue(privileged != null && privilegeCount > 0);
-	privilegeCount--;
-	if (privilegeCount == 0)
-	    privileged = null;
+	int count = privilegeCount.get();
+	Lib.assertTrue(count > 0);
+	privilegeCount.set(count - 1);
     }
 
     private void forcePrivilege() {
-	privileged = Thread.currentThread();
-	privilegeCount = 1;
+	privilegeCount.set(1);
     }
 
     private void exit(int exitStatus) {
@@ -119,7 +109,7 @@ public class NachosSecurityManager extends SecurityManager {
 	if (!TCB.isNachosThread())
 	    return true;
 	
-	return (privileged == Thread.currentThread());
+	return (privilegeCount.get() > 0);
     }
 
     private void doPrivileged(final Runnable action) {
@@ -216,6 +206,17 @@ public class NachosSecurityManager extends SecurityManager {
 		return;
 	}
 
+	if (perm instanceof RuntimePermission) {
+	    // Flight Recorder events call into their handlers while recording
+	    if (name.equals("accessClassInPackage.jdk.jfr.internal.handlers"))
+		return;
+
+	    // the JDK starts the carrier threads of virtual threads on
+	    // whichever thread first schedules one
+	    if (startingCarrierThread())
+		return;
+	}
+
 	// some require some more checking
 	if (perm instanceof FilePermission) {
 	    if (perm.getActions().equals("read")) {
@@ -276,6 +277,19 @@ public class NachosSecurityManager extends SecurityManager {
 	verifyPrivilege(perm);
     }
 
+    /**
+     * Test whether the current thread is starting a carrier thread for
+     * virtual threads, which only the JDK's virtual thread scheduler does.
+     */
+    private boolean startingCarrierThread() {
+	for (Class<?> c : getClassContext()) {
+	    if (c.getName().equals("jdk.internal.misc.CarrierThread"))
+		return true;
+	}
+
+	return false;
+    }
+
     /**
      * Called by the <tt>java.lang.Thread</tt> constructor to determine a
      * thread group for a child thread of the current thread. The caller must
@@ -311,8 +325,14 @@ public class NachosSecurityManager extends SecurityManager {
     private File testDirectory;
     private boolean fullySecure;
 
-    private Thread privileged = null;
-    private int privilegeCount = 0;
+    /**
+     * How many nested privileged actions each thread is running. On a
+     * multiprocessor, Nachos threads on different processors can run
+     * privileged actions at the same time.
+     */
+    private ThreadLocal<Integer> privilegeCount = new ThreadLocal<Integer>() {
+	    protected Integer initialValue() { return 0; }
+	};
     
     private static final char dbgSecurity = 'S';
 }
@@ -147,8 +147,19 @@ public abstract class Privilege {
 	 * @param	type	a name for the type of interrupt being
 	 *			scheduled.
 	 * @param	handler	the interrupt handler to call.
+	 * @return	a handle that can be passed to <tt>cancel()</tt>.
 	 */
-	public void schedule(long when, String type, Runnable handler);
+	public long schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Cancel an interrupt scheduled by <tt>schedule()</tt>, so that its
+	 * handler is never called. Cancelling an interrupt that has already
+	 * occurred or been cancelled has no effect.
+	 *
+	 * @param	handle	the handle returned by <tt>schedule()</tt>.
+	 * @return	<tt>true</tt> if the interrupt was still pending.
+	 */
+	public boolean cancel(long handle);
 	
 	/**
 	 * Advance the simulated time.
@@ -158,6 +169,58 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of ticks that can elapse before the next pending
+	 * interrupt is due. Until then, <tt>tick(false)</tt> would not invoke
+	 * any interrupt handler.
+	 *
+	 * @return	the number of ticks that can be skipped safely.
+	 */
+	public long ticksUntilDue();
+
+	/**
+	 * Advance the simulated time by the specified number of user mode
+	 * ticks at once. This has the same effect as calling
+	 * <tt>tick(false)</tt> that many times, and may only be used when
+	 * <tt>ticksUntilDue()</tt> says that none of those calls would invoke
+	 * an interrupt handler.
+	 *
+	 * @param	numTicks	the number of user mode ticks.
+	 */
+	public void tickUser(long numTicks);
+
+	/**
+	 * Note that the specified processor is about to execute user code. On
+	 * a multiprocessor this lets the other processors into the kernel, and
+	 * lets them execute user code at the same time as this one. Every
+	 * interrupt is then taken when the processor returns to the kernel.
+	 *
+	 * @param	processor	the number of the processor.
+	 */
+	public void enterUser(int processor);
+
+	/**
+	 * Note that the specified processor has stopped executing user code
+	 * after the specified number of user mode ticks, and wait until it can
+	 * run the kernel again. Ticks that processors spent in user code at the
+	 * same time are only counted once in the total time. Without a call to
+	 * <tt>enterUser()</tt> first, this is the same as
+	 * <tt>tickUser()</tt>.
+	 *
+	 * @param	processor	the number of the processor.
+	 * @param	numTicks	the number of user mode ticks.
+	 */
+	public void exitUser(int processor, long numTicks);
+
+	/**
+	 * Wait until the specified processor can run the kernel for the first
+	 * time. Called on the host thread of the first TCB that runs on each
+	 * processor except the first.
+	 *
+	 * @param	processor	the number of the processor.
+	 */
+	public void startProcessor(int processor);
     }
 
     /**
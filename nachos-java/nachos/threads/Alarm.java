@@ -2,15 +2,24 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.PriorityQueue;
+
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * The sleeping threads are kept in a heap ordered by the time they are due to
+ * wake, so each timer interrupt readies only the threads that are due, in the
+ * order they are due, without waking or even looking at the others.
+ *
+ * <p>
+ * The timer is also programmed to cause a deadline interrupt when the first
+ * sleeping thread is due, so a thread wakes at the exact tick it asked for
+ * rather than at the next periodic timer interrupt, which may be up to 500
+ * ticks later.
  */
 public class Alarm {
-    private Lock monitorLock = new Lock();
-    private Condition2 monitorCon = new Condition2(monitorLock);
-    final private Semaphore timerTrigger = new Semaphore(0);
-
     /**
      * Allocate a new Alarm. Set the machine's timer interrupt handler to this
      * alarm's callback.
@@ -24,36 +33,81 @@ public class Alarm {
                 timerInterrupt();
             }
         });
-        KThread t = new KThread(new Runnable() {
+        Machine.timer().setDeadlineHandler(new Runnable() {
             public void run() {
-                while (true) {
-                    timerTrigger.P();
-                    monitorLock.acquire();
-                    monitorCon.wakeAll();
-                    monitorLock.release();
-                }
+                deadlineInterrupt();
             }
         });
-        t.setName("wakup");
-        t.fork();
     }
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Readies the
+     * sleeping threads that are due, then causes the current thread to
+     * yield, forcing a context switch if there is another thread that should
+     * be run, unless the scheduler says that the current thread may keep the
+     * processor.
      */
     public void timerInterrupt() {
-        KThread.currentThread().yield();
-        timerTrigger.V();
+        wakeSleepers();
+
+        if (ThreadedKernel.scheduler.preemptCurrentThread())
+            KThread.yield();
+    }
+
+    /**
+     * The deadline interrupt handler, called when the first sleeping thread
+     * is due. Readies the sleeping threads that are due, then lets the
+     * scheduler decide whether one of them should run at once.
+     */
+    private void deadlineInterrupt() {
+        deadline = -1;
+
+        if (wakeSleepers() && ThreadedKernel.scheduler.preemptCurrentThread())
+            KThread.yield();
+    }
+
+    /**
+     * Ready the sleeping threads that are due, and program the timer's
+     * deadline for the first of the others.
+     *
+     * @return <tt>true</tt> if any thread was readied.
+     */
+    private boolean wakeSleepers() {
+        long time = Machine.timer().getTime();
+        boolean woken = false;
+
+        while (!sleepers.isEmpty() && sleepers.peek().wakeTime <= time) {
+            sleepers.poll().thread.ready();
+            woken = true;
+        }
+
+        setDeadline();
+        return woken;
+    }
+
+    /**
+     * Program the timer's deadline for the first sleeping thread, unless it
+     * is already set for it.
+     */
+    private void setDeadline() {
+        long next = sleepers.isEmpty() ? -1 : sleepers.peek().wakeTime;
+        if (next == deadline)
+            return;
+
+        deadline = next;
+        if (next == -1) {
+            Machine.timer().cancelDeadline();
+        } else {
+            Machine.timer().setDeadline(next);
+        }
     }
 
     /**
      * Put the current thread to sleep for at least <i>x</i> ticks,
      * waking it up in the timer interrupt handler. The thread must be
-     * woken up (placed in the scheduler ready set) during the first timer
-     * interrupt where
+     * woken up (placed in the scheduler ready set) at the first interrupt
+     * where
      *
      * <p><blockquote>
      * (current time) >= (WaitUntil called time)+(x)
@@ -63,12 +117,56 @@ public class Alarm {
      * @see nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-        // for now, cheat just to get something working (busy waiting is bad)
         long wakeTime = Machine.timer().getTime() + x;
-        monitorLock.acquire();
-        while (wakeTime > Machine.timer().getTime()) {
-            monitorCon.sleep();
+        if (wakeTime <= Machine.timer().getTime())
+            return;
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        sleepers.add(new Sleeper(KThread.currentThread(), wakeTime,
+                nextSequence++));
+        setDeadline();
+        KThread.sleep();
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test whether any thread is waiting in <tt>waitUntil()</tt>.
+     *
+     * @return <tt>true</tt> if some thread is waiting for time to pass.
+     */
+    public boolean hasWaiters() {
+        return !sleepers.isEmpty();
+    }
+
+    /**
+     * A thread in <tt>waitUntil()</tt>. Threads due at the same time wake in
+     * the order they went to sleep.
+     */
+    private static class Sleeper implements Comparable<Sleeper> {
+        Sleeper(KThread thread, long wakeTime, long sequence) {
+            this.thread = thread;
+            this.wakeTime = wakeTime;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Sleeper other) {
+            if (wakeTime != other.wakeTime)
+                return (wakeTime < other.wakeTime) ? -1 : 1;
+            return Long.compare(sequence, other.sequence);
         }
-        monitorLock.release();
+
+        final KThread thread;
+        final long wakeTime;
+        final long sequence;
     }
+
+    private PriorityQueue<Sleeper> sleepers = new PriorityQueue<Sleeper>();
+    private long nextSequence = 0;
+
+    /**
+     * The time the timer's deadline is set for, or <tt>-1</tt>.
+     */
+    private long deadline = -1;
 }
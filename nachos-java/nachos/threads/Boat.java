@@ -99,7 +99,9 @@ public class Boat {
 
         public void adultOnBoardOnDeparture() {
             lock.acquire();
-            while (curStation == termination || boatStatus > noOneOnBoat) {
+            //a child must be on termination to bring the boat back
+            while (curStation == termination || boatStatus > noOneOnBoat ||
+                    (departure.getChildren() > 0 && termination.getChildren() == 0)) {
                 boatOnDepartureCondition.sleep();
             }
             adultOnBoard();
@@ -0,0 +1,22 @@
+package nachos.threads;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import nachos.machine.KernelEvent;
+
+/**
+ * A Flight Recorder event for a switch from one kernel thread to another,
+ * from <tt>KThread.run()</tt> until the new thread has restored its state.
+ */
+@Name("nachos.ContextSwitch")
+@Label("Context Switch")
+@Category({"Nachos", "Threads"})
+class ContextSwitchEvent extends KernelEvent {
+    @Label("From Thread")
+    String fromThread;
+
+    @Label("To Thread")
+    String toThread;
+}
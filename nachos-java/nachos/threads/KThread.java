@@ -30,6 +30,14 @@ import java.util.Vector;
  * PiRun p = new PiRun();
  * new KThread(p).fork();
  * </pre></blockquote>
+ *
+ * <p>
+ * On a multiprocessor, each processor has its own current thread, idle
+ * thread and ready queue. A thread that becomes ready joins the ready queue
+ * of the processor with the least work, preferring the one it last ran on.
+ * Whenever a processor chooses a thread to run, it takes one from another
+ * processor's ready queue if that queue is longer than its own by two or
+ * more, or if its own is empty.
  */
 public class KThread {
     /**
@@ -38,27 +46,46 @@ public class KThread {
      * @return the current thread.
      */
     public static KThread currentThread() {
-        Lib.assertTrue(currentThread != null);
-        return currentThread;
+        Lib.assertTrue(currentThreads != null);
+        return currentThreads[processor()];
+    }
+
+    /**
+     * Return the number of the processor that the current thread runs on.
+     */
+    private static int processor() {
+        return (Machine.numProcessors() > 1) ?
+                Machine.processor().getNumber() : 0;
     }
 
     /**
      * Allocate a new <tt>KThread</tt>. If this is the first <tt>KThread</tt>,
-     * create an idle thread as well.
+     * create an idle thread for each processor as well.
      */
     public KThread() {
-        if (currentThread != null) {
+        lastProcessor = processor();
+
+        if (currentThreads != null) {
             tcb = new TCB();
         } else {
-            readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
-            readyQueue.acquire(this);
+            int numProcessors = Math.max(1, Machine.numProcessors());
+
+            currentThreads = new KThread[numProcessors];
+            idleThreads = new KThread[numProcessors];
+            toBeDestroyed = new KThread[numProcessors];
+            readyQueues = new ThreadQueue[numProcessors];
+            numReady = new int[numProcessors];
+
+            for (int i = 0; i < numProcessors; i++)
+                readyQueues[i] = ThreadedKernel.scheduler.newThreadQueue(false);
+            readyQueues[0].acquire(this);
 
-            currentThread = this;
+            currentThreads[0] = this;
             tcb = TCB.currentTCB();
             name = "main";
             restoreState();
 
-            createIdleThread();
+            createIdleThreads();
         }
     }
 
@@ -167,13 +194,35 @@ public class KThread {
     private void begin() {
         Lib.debug(dbgThread, "Beginning thread: " + toString());
 
-        Lib.assertTrue(this == currentThread);
+        Lib.assertTrue(this == currentThread());
 
         restoreState();
 
         Machine.interrupt().enable();
     }
 
+    /**
+     * Start this new thread as the first thread on the specified processor,
+     * in parallel with the current thread.
+     *
+     * @param processor the number of the processor.
+     */
+    private void start(final int processor) {
+        Lib.assertTrue(status == statusNew);
+        Lib.assertTrue(target != null);
+
+        Lib.debug(dbgThread, "Starting thread: " + toString()
+                + " on processor " + processor);
+
+        tcb.start(new Runnable() {
+            public void run() {
+                Machine.interrupt().disable();
+                currentThreads[processor] = KThread.this;
+                runThread();
+            }
+        }, processor);
+    }
+
     /**
      * Finish the current thread and schedule it to be destroyed when it is
      * safe to do so. This method is automatically called when a thread's
@@ -185,20 +234,25 @@ public class KThread {
      * delete this thread.
      */
     public static void finish() {
-        Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
+        KThread thread = currentThread();
+
+        Lib.debug(dbgThread, "Finishing thread: " + thread.toString());
 
         Machine.interrupt().disable();
 
+        //notify join, before we are marked for destruction, since the
+        //joining thread may hold the lock and make us wait for it
+        thread.finishMonLock.acquire();
+        thread.status = statusFinished;
+        thread.finishMonCon.wake();
+        thread.finishMonLock.release();
+
         Machine.autoGrader().finishingCurrentThread();
 
-        Lib.assertTrue(toBeDestroyed == null);
-        toBeDestroyed = currentThread;
+        int processor = processor();
+        Lib.assertTrue(toBeDestroyed[processor] == null);
+        toBeDestroyed[processor] = thread;
 
-        currentThread.status = statusFinished;
-        //notify join
-        currentThread.finishMonLock.acquire();
-        currentThread.finishMonCon.wake();
-        currentThread.finishMonLock.release();
         sleep();
     }
 
@@ -210,7 +264,7 @@ public class KThread {
      * <p>
      * Returns immediately if no other thread is ready to run. Otherwise
      * returns when the current thread is chosen to run again by
-     * <tt>readyQueue.nextThread()</tt>.
+     * <tt>nextThread()</tt> on a ready queue.
      *
      * <p>
      * Interrupts are disabled, so that the current thread can atomically add
@@ -219,13 +273,15 @@ public class KThread {
      * called with interrupts disabled.
      */
     public static void yield() {
-        Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
+        KThread thread = currentThread();
+
+        Lib.debug(dbgThread, "Yielding thread: " + thread.toString());
 
-        Lib.assertTrue(currentThread.status == statusRunning);
+        Lib.assertTrue(thread.status == statusRunning);
 
         boolean intStatus = Machine.interrupt().disable();
 
-        currentThread.ready();
+        thread.ready();
 
         runNextThread();
 
@@ -244,19 +300,21 @@ public class KThread {
      * scheduled this thread to be destroyed by the next thread to run.
      */
     public static void sleep() {
-        Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
+        KThread thread = currentThread();
+
+        Lib.debug(dbgThread, "Sleeping thread: " + thread.toString());
 
         Lib.assertTrue(Machine.interrupt().disabled());
 
-        if (currentThread.status != statusFinished)
-            currentThread.status = statusBlocked;
+        if (thread.status != statusFinished)
+            thread.status = statusBlocked;
 
         runNextThread();
     }
 
     /**
-     * Moves this thread to the ready state and adds this to the scheduler's
-     * ready queue.
+     * Moves this thread to the ready state and adds this to the ready queue
+     * of a processor, which is woken up if it is idle.
      */
     public void ready() {
         Lib.debug(dbgThread, "Ready thread: " + toString());
@@ -265,12 +323,53 @@ public class KThread {
         Lib.assertTrue(status != statusReady);
 
         status = statusReady;
-        if (this != idleThread)
-            readyQueue.waitForAccess(this);
+        readyTime = Machine.timer().getTime();
+        if (this != idleThreads[processor()]) {
+            int processor = chooseProcessor();
+
+            readyQueues[processor].waitForAccess(this);
+            numReady[processor]++;
+
+            Machine.interrupt().wake(processor);
+        }
 
         Machine.autoGrader().readyThread(this);
     }
 
+    /**
+     * Choose the processor whose ready queue this thread should join: the
+     * one with the fewest threads to run, preferring the one this thread
+     * last ran on. A thread that is yielding stays where it is unless
+     * another processor has less work than it leaves behind.
+     */
+    private int chooseProcessor() {
+        int current = processor();
+        boolean yielding = (this == currentThreads[current]);
+
+        int best = yielding ? current : lastProcessor;
+        int bestLoad = load(best) - (yielding ? 1 : 0);
+
+        for (int i = 0; i < readyQueues.length; i++) {
+            if (load(i) < bestLoad) {
+                best = i;
+                bestLoad = load(i);
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Return the number of threads that are running or ready to run on the
+     * specified processor, not counting its idle thread.
+     */
+    private static int load(int processor) {
+        KThread current = currentThreads[processor];
+
+        return numReady[processor] +
+                (current == idleThreads[processor] ? 0 : 1);
+    }
+
     /**
      * Waits for this thread to finish. If this thread is already finished,
      * return immediately. This method must only be called once; the second
@@ -283,48 +382,82 @@ public class KThread {
     public void join() {
         Lib.debug(dbgThread, "Joining to thread: " + toString());
 
-        Lib.assertTrue(this != currentThread);
+        Lib.assertTrue(this != currentThread());
         if (status == statusFinished) return;
         finishMonLock.acquire();
         while (status != statusFinished) {
             finishMonCon.sleep();
         }
         finishMonLock.release();
-        Lib.debug(dbgThread, "join: " + currentThread.toString());
+        Lib.debug(dbgThread, "join: " + currentThread().toString());
     }
 
     /**
-     * Create the idle thread. Whenever there are no threads ready to be run,
-     * and <tt>runNextThread()</tt> is called, it will run the idle thread. The
-     * idle thread must never block, and it will only be allowed to run when
-     * all other threads are blocked.
+     * Create the idle thread of each processor. Whenever there are no threads
+     * ready to be run, and <tt>runNextThread()</tt> is called, it will run
+     * the idle thread. The idle thread must never block, and it will only be
+     * allowed to run when all other threads are blocked.
      *
      * <p>
-     * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     * Note that <tt>ready()</tt> never adds an idle thread to the ready set.
+     *
+     * <p>
+     * In tickless mode, the idle thread skips straight to the next interrupt
+     * rather than yielding until it is due; see <tt>Interrupt.idle()</tt>.
+     * The idle thread of every other processor starts the processor, and
+     * then waits there for threads to become ready.
      */
-    private static void createIdleThread() {
-        Lib.assertTrue(idleThread == null);
-
-        idleThread = new KThread(new Runnable() {
-            public void run() {
-                while (true) yield();
-            }
-        });
-        idleThread.setName("idle");
+    private static void createIdleThreads() {
+        Lib.assertTrue(idleThreads[0] == null);
+
+        for (int i = 0; i < idleThreads.length; i++) {
+            idleThreads[i] = new KThread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        // with nobody waiting on the alarm, only I/O can
+                        // wake us
+                        Machine.interrupt().idle(
+                                ThreadedKernel.alarm == null ||
+                                        !ThreadedKernel.alarm.hasWaiters());
+                        KThread.yield();
+                    }
+                }
+            });
+            idleThreads[i].setName((i == 0) ? "idle" : "idle " + i);
+        }
 
-        Machine.autoGrader().setIdleThread(idleThread);
+        Machine.autoGrader().setIdleThread(idleThreads[0]);
 
-        idleThread.fork();
+        idleThreads[0].fork();
+        for (int i = 1; i < idleThreads.length; i++)
+            idleThreads[i].start(i);
     }
 
     /**
      * Determine the next thread to run, then dispatch the CPU to the thread
-     * using <tt>run()</tt>.
+     * using <tt>run()</tt>. A processor takes a thread from the processor
+     * with the most ready threads instead of its own if it has none ready,
+     * or if that processor has at least two more.
      */
     private static void runNextThread() {
-        KThread nextThread = readyQueue.nextThread();
-        if (nextThread == null)
-            nextThread = idleThread;
+        int processor = processor();
+
+        int busiest = processor;
+        for (int i = 0; i < readyQueues.length; i++) {
+            if (numReady[i] > numReady[busiest])
+                busiest = i;
+        }
+
+        int queue = processor;
+        if (numReady[busiest] > numReady[processor] +
+                (numReady[processor] > 0 ? 1 : 0))
+            queue = busiest;
+
+        KThread nextThread = readyQueues[queue].nextThread();
+        if (nextThread != null)
+            numReady[queue]--;
+        else
+            nextThread = idleThreads[processor];
 
         nextThread.run();
     }
@@ -354,16 +487,32 @@ public class KThread {
 
         Machine.yield();
 
-        currentThread.saveState();
+        int processor = processor();
+        KThread current = currentThreads[processor];
+
+        if (this != current)
+            contextSwitches.increment();
+        if (this != idleThreads[processor])
+            dispatchLatency.observe(Machine.timer().getTime() - readyTime);
 
-        Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
+        if (switchProbe.isEnabled()) {
+            switchEvent = new ContextSwitchEvent();
+            switchEvent.fromThread = current.getName();
+            switchEvent.toThread = getName();
+            switchEvent.start();
+        }
+
+        current.saveState();
+
+        Lib.debug(dbgThread, "Switching from: " + current.toString()
                 + " to: " + toString());
 
-        currentThread = this;
+        currentThreads[processor] = this;
 
         tcb.contextSwitch();
 
-        currentThread.restoreState();
+        // this thread may now be running on another processor
+        currentThread().restoreState();
     }
 
     /**
@@ -371,20 +520,28 @@ public class KThread {
      * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
      */
     protected void restoreState() {
-        Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+        Lib.debug(dbgThread, "Running thread: " + toString());
+
+        int processor = processor();
 
         Lib.assertTrue(Machine.interrupt().disabled());
-        Lib.assertTrue(this == currentThread);
+        Lib.assertTrue(this == currentThreads[processor]);
         Lib.assertTrue(tcb == TCB.currentTCB());
 
         Machine.autoGrader().runningThread(this);
 
         status = statusRunning;
+        lastProcessor = processor;
+
+        if (switchEvent != null) {
+            switchEvent.finish();
+            switchEvent = null;
+        }
 
-        if (toBeDestroyed != null) {
-            toBeDestroyed.tcb.destroy();
-            toBeDestroyed.tcb = null;
-            toBeDestroyed = null;
+        if (toBeDestroyed[processor] != null) {
+            toBeDestroyed[processor].tcb.destroy();
+            toBeDestroyed[processor].tcb = null;
+            toBeDestroyed[processor] = null;
         }
     }
 
@@ -394,7 +551,7 @@ public class KThread {
      */
     protected void saveState() {
         Lib.assertTrue(Machine.interrupt().disabled());
-        Lib.assertTrue(this == currentThread);
+        Lib.assertTrue(this == currentThread());
     }
 
     private static class PingTest implements Runnable {
@@ -408,7 +565,7 @@ public class KThread {
                 Lib.debug(Lib.dbgTest, "*** thread " + which + " looped "
                         + i + " times");
                 cnt++;
-                currentThread.yield();
+                KThread.yield();
             }
         }
 
@@ -547,6 +704,33 @@ public class KThread {
                 Lib.assertTrue(speakCnt == listenCnt);
             }
         }));
+        //kernel threads that never block, on every processor at once
+        ts.addTest(new Lib.Test("multiprocessor_test", new Runnable() {
+            @Override
+            public void run() {
+                final boolean[] ranOn = new boolean[Math.max(1, Machine.numProcessors())];
+                KThread[] threads = new KThread[ranOn.length * 2];
+                for (int i = 0; i < threads.length; i++) {
+                    threads[i] = new KThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            //burn simulated time without ever blocking or yielding
+                            for (int j = 0; j < 200; j++) {
+                                Machine.interrupt().disable();
+                                ranOn[processor()] = true;
+                                Machine.interrupt().enable();
+                            }
+                        }
+                    });
+                    threads[i].setName("hog" + i).fork();
+                }
+                for (int i = 0; i < threads.length; i++)
+                    threads[i].join();
+                //every processor must have got some of the work
+                for (int i = 0; i < ranOn.length; i++)
+                    Lib.assertTrue(ranOn[i]);
+            }
+        }));
         //thread queue priority test
         ts.addTest(new Lib.Test("PQ_priority_test", new Runnable() {
             @Override
@@ -759,6 +943,250 @@ public class KThread {
                 ThreadedKernel.scheduler = (Scheduler) Lib.constructObject(schedulerName);
             }
         }));
+        //thread queue priority_chain test
+        ts.addTest(new Lib.Test("PQ_priority_chain_test", new Runnable() {
+            @Override
+            public void run() {
+                ThreadedKernel.scheduler = (Scheduler) Lib.constructObject("nachos.threads.PriorityScheduler");
+                ThreadQueue[] locks = new ThreadQueue[3];
+                KThread[] threads = new KThread[4];
+                boolean intStatus = Machine.interrupt().disable();
+                for (int i = 0; i < threads.length; i++) {
+                    final int _i = i;
+                    threads[_i] = new KThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Lib.debug(Lib.dbgTest, "Run t" + (_i + 1));
+                        }
+                    });
+                    threads[_i].setName("t" + (_i + 1));
+                }
+                //t1 holds lock1, t2 holds lock2 and waits for lock1, t3 holds lock3 and waits for lock2
+                for (int i = 0; i < locks.length; i++) {
+                    locks[i] = ThreadedKernel.scheduler.newThreadQueue(true);
+                    locks[i].acquire(threads[i]);
+                    if (i > 0) {
+                        locks[i - 1].waitForAccess(threads[i]);
+                    }
+                }
+
+                //t4 waits for lock3, and its priority should reach t1 through the chain
+                ThreadedKernel.scheduler.setPriority(threads[3], 6);
+                locks[2].waitForAccess(threads[3]);
+                for (int i = 0; i < locks.length; i++) {
+                    Lib.assertTrue(ThreadedKernel.scheduler.getPriority(threads[i]) == PriorityScheduler.priorityDefault);
+                    Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[i]) == 6);
+                }
+
+                //lowering t4 should lower the whole chain
+                ThreadedKernel.scheduler.setPriority(threads[3], 3);
+                for (int i = 0; i < locks.length; i++) {
+                    Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[i]) == 3);
+                }
+
+                //t1 releases lock1 to t2, which then holds lock1 and lock2
+                KThread t = locks[0].nextThread();
+                Lib.debug(Lib.dbgTest, "get Thread " + t.name);
+                Lib.assertTrue(t == threads[1]);
+                Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[0]) == PriorityScheduler.priorityDefault);
+                Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[1]) == 3);
+
+                //t3 releases lock3 to t4, so nobody donates to t2 any more
+                t = locks[2].nextThread();
+                Lib.assertTrue(t == threads[3]);
+                Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[2]) == PriorityScheduler.priorityDefault);
+                Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[1]) == PriorityScheduler.priorityDefault);
+
+                Machine.interrupt().restore(intStatus);
+                String schedulerName = Config.getString("ThreadedKernel.scheduler");
+                ThreadedKernel.scheduler = (Scheduler) Lib.constructObject(schedulerName);
+            }
+        }));
+        //lottery queue share test
+        ts.addTest(new Lib.Test("LS_lottery_test", new Runnable() {
+            @Override
+            public void run() {
+                ThreadedKernel.scheduler = (Scheduler) Lib.constructObject("nachos.threads.LotteryScheduler");
+                ThreadQueue testQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+                KThread[] threads = new KThread[3];
+                int[] tickets = {1, 2, 7};
+                int[] wins = new int[threads.length];
+                boolean intStatus = Machine.interrupt().disable();
+                for (int i = 0; i < threads.length; i++) {
+                    threads[i] = new KThread(null).setName("t" + (i + 1));
+                    ThreadedKernel.scheduler.setPriority(threads[i], tickets[i]);
+                    testQueue.waitForAccess(threads[i]);
+                }
+                //every winner goes back in, so each thread should win in proportion to its tickets
+                for (int draw = 0; draw < 10000; draw++) {
+                    KThread t = testQueue.nextThread();
+                    for (int i = 0; i < threads.length; i++) {
+                        if (t == threads[i]) {
+                            wins[i]++;
+                        }
+                    }
+                    testQueue.waitForAccess(t);
+                }
+                for (int i = 0; i < threads.length; i++) {
+                    Lib.debug(Lib.dbgTest, threads[i].name + " won " + wins[i] + " times with " + tickets[i] + " tickets");
+                    Lib.assertTrue(Math.abs(wins[i] - tickets[i] * 1000) < 300);
+                }
+                //changing the tickets of a waiting thread, then draining the queue
+                ThreadedKernel.scheduler.setPriority(threads[2], 1);
+                Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[2]) == 1);
+                for (int i = 0; i < threads.length; i++) {
+                    Lib.assertTrue(testQueue.nextThread() != null);
+                }
+                Lib.assertTrue(testQueue.nextThread() == null);
+
+                Machine.interrupt().restore(intStatus);
+                String schedulerName = Config.getString("ThreadedKernel.scheduler");
+                ThreadedKernel.scheduler = (Scheduler) Lib.constructObject(schedulerName);
+            }
+        }));
+        //lottery queue ticket transfer test
+        ts.addTest(new Lib.Test("LS_ticket_transfer_test", new Runnable() {
+            @Override
+            public void run() {
+                ThreadedKernel.scheduler = (Scheduler) Lib.constructObject("nachos.threads.LotteryScheduler");
+                ThreadQueue[] locks = new ThreadQueue[2];
+                KThread[] threads = new KThread[4];
+                boolean intStatus = Machine.interrupt().disable();
+                for (int i = 0; i < threads.length; i++) {
+                    threads[i] = new KThread(null).setName("t" + (i + 1));
+                    ThreadedKernel.scheduler.setPriority(threads[i], i + 1);
+                }
+                //t1 holds lock1, t2 holds lock2 and waits for lock1, t3 and t4 wait for lock2
+                for (int i = 0; i < locks.length; i++) {
+                    locks[i] = ThreadedKernel.scheduler.newThreadQueue(true);
+                    locks[i].acquire(threads[i]);
+                }
+                locks[0].waitForAccess(threads[1]);
+                Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[0]) == 1 + 2);
+                locks[1].waitForAccess(threads[2]);
+                locks[1].waitForAccess(threads[3]);
+                //tickets add up through the chain
+                Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[1]) == 2 + 3 + 4);
+                Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[0]) == 1 + 2 + 3 + 4);
+
+                ThreadedKernel.scheduler.setPriority(threads[3], 10);
+                Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[0]) == 1 + 2 + 3 + 10);
+
+                //t1 releases lock1 to t2, and keeps only its own tickets
+                Lib.assertTrue(locks[0].nextThread() == threads[1]);
+                Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[0]) == 1);
+                Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[1]) == 2 + 3 + 10);
+
+                //t2 releases lock2 to the winner, which gets the tickets of the other waiter
+                KThread t = locks[1].nextThread();
+                KThread other = (t == threads[2]) ? threads[3] : threads[2];
+                Lib.assertTrue(t == threads[2] || t == threads[3]);
+                Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[1]) == 2);
+                Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(t) ==
+                        ThreadedKernel.scheduler.getPriority(t) + ThreadedKernel.scheduler.getPriority(other));
+
+                Machine.interrupt().restore(intStatus);
+                String schedulerName = Config.getString("ThreadedKernel.scheduler");
+                ThreadedKernel.scheduler = (Scheduler) Lib.constructObject(schedulerName);
+            }
+        }));
+        //stride queue share test
+        ts.addTest(new Lib.Test("SS_stride_test", new Runnable() {
+            @Override
+            public void run() {
+                ThreadedKernel.scheduler = (Scheduler) Lib.constructObject("nachos.threads.StrideScheduler");
+                ThreadQueue testQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+                KThread[] threads = new KThread[3];
+                int[] tickets = {1, 2, 7};
+                int[] wins = new int[threads.length];
+                boolean intStatus = Machine.interrupt().disable();
+                for (int i = 0; i < threads.length; i++) {
+                    threads[i] = new KThread(null).setName("t" + (i + 1));
+                    ThreadedKernel.scheduler.setPriority(threads[i], tickets[i]);
+                    testQueue.waitForAccess(threads[i]);
+                }
+                //equal passes go in the order the threads joined
+                for (int i = 0; i < threads.length; i++) {
+                    KThread t = testQueue.nextThread();
+                    Lib.assertTrue(t == threads[i]);
+                    testQueue.waitForAccess(t);
+                }
+                //every winner goes back in, so each thread should win exactly in proportion to its tickets
+                for (int draw = 0; draw < 1000; draw++) {
+                    KThread t = testQueue.nextThread();
+                    for (int i = 0; i < threads.length; i++) {
+                        if (t == threads[i]) {
+                            wins[i]++;
+                        }
+                    }
+                    testQueue.waitForAccess(t);
+                }
+                for (int i = 0; i < threads.length; i++) {
+                    Lib.debug(Lib.dbgTest, threads[i].name + " won " + wins[i] + " times with " + tickets[i] + " tickets");
+                    Lib.assertTrue(Math.abs(wins[i] - tickets[i] * 100) <= 1);
+                }
+                //giving t1 as many tickets as t3 evens out their turns from now on
+                ThreadedKernel.scheduler.setPriority(threads[0], 7);
+                wins = new int[threads.length];
+                for (int draw = 0; draw < 1600; draw++) {
+                    KThread t = testQueue.nextThread();
+                    for (int i = 0; i < threads.length; i++) {
+                        if (t == threads[i]) {
+                            wins[i]++;
+                        }
+                    }
+                    testQueue.waitForAccess(t);
+                }
+                Lib.assertTrue(Math.abs(wins[0] - 700) <= 1 && Math.abs(wins[2] - 700) <= 1);
+
+                Machine.interrupt().restore(intStatus);
+                String schedulerName = Config.getString("ThreadedKernel.scheduler");
+                ThreadedKernel.scheduler = (Scheduler) Lib.constructObject(schedulerName);
+            }
+        }));
+        //stride queue ticket transfer test
+        ts.addTest(new Lib.Test("SS_ticket_transfer_test", new Runnable() {
+            @Override
+            public void run() {
+                ThreadedKernel.scheduler = (Scheduler) Lib.constructObject("nachos.threads.StrideScheduler");
+                ThreadQueue readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+                ThreadQueue lock = ThreadedKernel.scheduler.newThreadQueue(true);
+                KThread[] threads = new KThread[4];
+                boolean intStatus = Machine.interrupt().disable();
+                for (int i = 0; i < threads.length; i++) {
+                    threads[i] = new KThread(null).setName("t" + (i + 1));
+                }
+                ThreadedKernel.scheduler.setPriority(threads[1], 2);
+                ThreadedKernel.scheduler.setPriority(threads[2], 4);
+                ThreadedKernel.scheduler.setPriority(threads[3], 3);
+
+                //t1 holds the lock, and is ready along with t4
+                lock.acquire(threads[0]);
+                readyQueue.waitForAccess(threads[0]);
+                readyQueue.waitForAccess(threads[3]);
+
+                //t2 and t3 wait for the lock, so t1 runs with 1 + 2 + 4 tickets against the 3 of t4
+                lock.waitForAccess(threads[1]);
+                lock.waitForAccess(threads[2]);
+                Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[0]) == 7);
+                int[] wins = new int[threads.length];
+                for (int draw = 0; draw < 1000; draw++) {
+                    KThread t = readyQueue.nextThread();
+                    wins[t == threads[0] ? 0 : 3]++;
+                    readyQueue.waitForAccess(t);
+                }
+                Lib.assertTrue(Math.abs(wins[0] - 700) <= 1 && Math.abs(wins[3] - 300) <= 1);
+
+                //neither waiter has run yet, so t1 releases the lock to t2, which gets the tickets of t3
+                Lib.assertTrue(lock.nextThread() == threads[1]);
+                Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[0]) == 1);
+                Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[1]) == 2 + 4);
+
+                Machine.interrupt().restore(intStatus);
+                String schedulerName = Config.getString("ThreadedKernel.scheduler");
+                ThreadedKernel.scheduler = (Scheduler) Lib.constructObject(schedulerName);
+            }
+        }));
         //fire!
         ts.run();
     }
@@ -798,8 +1226,39 @@ public class KThread {
      */
     private static int numCreated = 0;
 
-    private static ThreadQueue readyQueue = null;
-    private static KThread currentThread = null;
-    private static KThread toBeDestroyed = null;
-    private static KThread idleThread = null;
+    /**
+     * The time this thread was last made ready.
+     */
+    private long readyTime = 0;
+    /**
+     * The processor this thread last ran on, or that its creator ran on.
+     */
+    private int lastProcessor;
+
+    private static final Metrics.Counter contextSwitches =
+            Machine.metrics().counter("nachos_context_switches_total",
+                    "Switches from one kernel thread to another.");
+    private static final Metrics.Histogram dispatchLatency =
+            Machine.metrics().histogram("nachos_dispatch_latency_ticks",
+                    "Ticks from a thread becoming ready until it runs.");
+
+    /**
+     * The context switch in progress, which the thread switched to records.
+     * The probe is never recorded; asking it whether context switches are
+     * being recorded avoids allocating an event when they are not.
+     */
+    private static ContextSwitchEvent switchEvent = null;
+    private static final ContextSwitchEvent switchProbe = new ContextSwitchEvent();
+
+    /**
+     * The state of each processor, indexed by processor number: its ready
+     * queue and how many threads are on it, the thread it is running, the
+     * thread it will destroy once it has switched away from it, and its
+     * idle thread.
+     */
+    private static ThreadQueue[] readyQueues = null;
+    private static int[] numReady = null;
+    private static KThread[] currentThreads = null;
+    private static KThread[] toBeDestroyed = null;
+    private static KThread[] idleThreads = null;
 }
@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  *
@@ -25,6 +21,15 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue gives every waiting thread a slot, and keeps the tickets of the
+ * slots in a Fenwick (binary indexed) tree, so that adding or removing a
+ * thread, changing a waiting thread's tickets, and drawing the winner all take
+ * time logarithmic in the number of waiting threads. A thread's effective
+ * tickets are its own tickets plus the effective tickets of every thread
+ * waiting on the queues it holds; a change is passed up the chain of holders
+ * as a difference, one tree update per queue.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -42,7 +47,347 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-        // implement me
-        return null;
+        return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getLotteryState(thread).tickets;
+    }
+
+    /**
+     * Return the effective tickets of the specified thread, or
+     * <tt>ticketsMaximum</tt> if it has more.
+     */
+    public int getEffectivePriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return (int) Math.min(getLotteryState(thread).effectiveTickets,
+                ticketsMaximum);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(priority >= ticketsMinimum &&
+                priority <= ticketsMaximum);
+
+        getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int tickets = getPriority(thread);
+        boolean changed = tickets < ticketsMaximum;
+        if (changed)
+            setPriority(thread, tickets + 1);
+
+        Machine.interrupt().restore(intStatus);
+        return changed;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int tickets = getPriority(thread);
+        boolean changed = tickets > ticketsMinimum;
+        if (changed)
+            setPriority(thread, tickets - 1);
+
+        Machine.interrupt().restore(intStatus);
+        return changed;
+    }
+
+    /**
+     * The number of tickets a new thread has.
+     */
+    public static final int ticketsDefault = 1;
+    /**
+     * The fewest tickets that a thread can have.
+     */
+    public static final int ticketsMinimum = 1;
+    /**
+     * The most tickets that a thread can have.
+     */
+    public static final int ticketsMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the lottery state of the specified thread.
+     *
+     * @param thread the thread whose lottery state to return.
+     * @return the lottery state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new LotteryState(thread);
+
+        return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+        LotteryQueue(boolean transferPriority) {
+            this.transferPriority = transferPriority;
+        }
+
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            getLotteryState(thread).waitForAccess(this);
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            if (owner != null) {
+                LotteryState previousOwner = owner;
+                owner = null;
+                previousOwner.addTickets(-totalTickets);
+            }
+            if (thread != null) {
+                getLotteryState(thread).acquire(this);
+            }
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            KThread nextT = (totalTickets > 0) ? draw().thread : null;
+            acquire(nextT);
+            return nextT;
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            for (int slot = 1; slot <= capacity; slot++) {
+                if (slots[slot] != null)
+                    System.out.print(slots[slot].thread + " (" +
+                            slots[slot].effectiveTickets + ") ");
+            }
+        }
+
+        /**
+         * Draw a ticket and return the waiting thread that holds it, by
+         * walking down the tree to the first slot whose prefix sum is above
+         * the ticket.
+         */
+        private LotteryState draw() {
+            long ticket = Math.min((long) (Lib.random() * totalTickets),
+                    totalTickets - 1);
+
+            int slot = 0;
+            for (int step = capacity; step > 0; step >>= 1) {
+                if (tree[slot + step] <= ticket) {
+                    slot += step;
+                    ticket -= tree[slot];
+                }
+            }
+            return slots[slot + 1];
+        }
+
+        /**
+         * Give a thread a slot holding its effective tickets.
+         */
+        private void addThread(LotteryState ts) {
+            if (numFree == 0)
+                grow();
+
+            int slot = freeSlots[--numFree];
+            slots[slot] = ts;
+            ts.queueSlot = slot;
+            adjust(ts, ts.effectiveTickets);
+        }
+
+        /**
+         * Take a thread's tickets out of the tree and free its slot.
+         */
+        private void removeThread(LotteryState ts) {
+            adjust(ts, -ts.effectiveTickets);
+            slots[ts.queueSlot] = null;
+            freeSlots[numFree++] = ts.queueSlot;
+            ts.queueSlot = 0;
+        }
+
+        /**
+         * Add the specified number of tickets to a waiting thread's slot.
+         */
+        private void adjust(LotteryState ts, long delta) {
+            for (int i = ts.queueSlot; i <= capacity; i += i & -i)
+                tree[i] += delta;
+            totalTickets += delta;
+        }
+
+        /**
+         * Double the number of slots, and rebuild the tree in linear time.
+         */
+        private void grow() {
+            int oldCapacity = capacity;
+            capacity *= 2;
+
+            LotteryState[] oldSlots = slots;
+            slots = new LotteryState[capacity + 1];
+            System.arraycopy(oldSlots, 1, slots, 1, oldCapacity);
+
+            tree = new long[capacity + 1];
+            for (int i = 1; i <= capacity; i++) {
+                if (slots[i] != null)
+                    tree[i] += slots[i].effectiveTickets;
+                int parent = i + (i & -i);
+                if (parent <= capacity)
+                    tree[parent] += tree[i];
+            }
+
+            freeSlots = new int[capacity];
+            numFree = 0;
+            for (int i = capacity; i > oldCapacity; i--)
+                freeSlots[numFree++] = i;
+        }
+
+        /**
+         * <tt>true</tt> if this queue should transfer tickets from waiting
+         * threads to the owning thread.
+         */
+        public boolean transferPriority;
+
+        /**
+         * The number of slots, always a power of two. Slots are numbered
+         * from 1, as the tree needs.
+         */
+        private int capacity = 1;
+
+        /**
+         * The waiting thread in each slot, or <tt>null</tt>.
+         */
+        private LotteryState[] slots = new LotteryState[capacity + 1];
+
+        /**
+         * The Fenwick tree: <tt>tree[i]</tt> holds the tickets of the slots
+         * from <tt>i - (i &amp; -i) + 1</tt> to <tt>i</tt>.
+         */
+        private long[] tree = new long[capacity + 1];
+
+        /**
+         * A stack of the slots that no thread is in.
+         */
+        private int[] freeSlots = {1};
+        private int numFree = 1;
+
+        /**
+         * The effective tickets of all the waiting threads.
+         */
+        private long totalTickets = 0;
+
+        /**
+         * The thread that holds this queue, if it transfers tickets.
+         */
+        private LotteryState owner = null;
+    }
+
+    /**
+     * The lottery state of a thread: its tickets, its effective tickets, and
+     * the queue it's waiting for, if any.
+     *
+     * @see nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+        /**
+         * Allocate a new <tt>LotteryState</tt> object and associate it with
+         * the specified thread.
+         *
+         * @param thread the thread this state belongs to.
+         */
+        public LotteryState(KThread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * Set the tickets of the associated thread to the specified value.
+         *
+         * @param tickets the new number of tickets.
+         */
+        public void setTickets(int tickets) {
+            long delta = (long) tickets - this.tickets;
+            this.tickets = tickets;
+            addTickets(delta);
+        }
+
+        /**
+         * Add the specified number of tickets to the effective tickets of
+         * the associated thread, and to each thread up the chain of holders
+         * that it donates to.
+         */
+        private void addTickets(long delta) {
+            LotteryState ts = this;
+            while (ts != null && delta != 0) {
+                ts.effectiveTickets += delta;
+
+                LotteryQueue waitQueue = ts.currentWaitQueue;
+                if (waitQueue == null) {
+                    return;
+                }
+                waitQueue.adjust(ts, delta);
+                ts = waitQueue.owner;
+            }
+        }
+
+        /**
+         * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
+         * the associated thread) is invoked on the specified lottery queue.
+         * The holder of the queue, if any, receives this thread's tickets.
+         *
+         * @param waitQueue the queue that the associated thread is
+         *                  now waiting on.
+         * @see nachos.threads.ThreadQueue#waitForAccess
+         */
+        public void waitForAccess(LotteryQueue waitQueue) {
+            Lib.assertTrue(currentWaitQueue == null);
+            currentWaitQueue = waitQueue;
+            waitQueue.addThread(this);
+            if (waitQueue.owner != null) {
+                waitQueue.owner.addTickets(effectiveTickets);
+            }
+        }
+
+        /**
+         * Called when the associated thread has acquired access to whatever is
+         * guarded by <tt>waitQueue</tt>. If the queue transfers tickets, the
+         * threads still waiting on it donate theirs to this thread.
+         *
+         * @see nachos.threads.ThreadQueue#acquire
+         * @see nachos.threads.ThreadQueue#nextThread
+         */
+        public void acquire(LotteryQueue waitQueue) {
+            if (currentWaitQueue == waitQueue) {
+                waitQueue.removeThread(this);
+                currentWaitQueue = null;
+            }
+            if (waitQueue.transferPriority) {
+                waitQueue.owner = this;
+                addTickets(waitQueue.totalTickets);
+            }
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        /**
+         * The tickets of the associated thread.
+         */
+        protected int tickets = ticketsDefault;
+
+        private long effectiveTickets = ticketsDefault;
+
+        private LotteryQueue currentWaitQueue = null;
+
+        /**
+         * This thread's slot in <tt>currentWaitQueue</tt>.
+         */
+        private int queueSlot = 0;
     }
 }
@@ -0,0 +1,411 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler, which favours threads that use
+ * little of the processor, such as threads that mostly wait for the console,
+ * the network, or files, over threads that compute.
+ *
+ * <p>
+ * Every thread is at one of several levels, and starts at the top one. A
+ * thread at level <i>l</i> may run for a slice of <i>q</i>2<sup><i>l</i></sup>
+ * ticks, where <i>q</i> is <tt>MLFQScheduler.quantum</tt> (one timer period by
+ * default). The scheduler counts the ticks each thread runs for, across timer
+ * interrupts and across the times it blocks, and moves a thread that has used
+ * its whole slice down a level. When a blocked thread is woken, the time it
+ * was blocked is taken off the time it has used, so that a thread that waits
+ * at least as long as it runs, as I/O-bound threads do, stays at its level,
+ * while a thread that computes sinks however often it yields. Every
+ * <tt>MLFQScheduler.boostInterval</tt> ticks all threads go back to the top
+ * level, so that none of them starves.
+ *
+ * <p>
+ * Each queue keeps one list of waiting threads per level, and dequeues the
+ * first thread of the highest level. Threads that were woken come first, in
+ * the order they were woken, and threads that yielded or were preempted
+ * follow, in the order they yielded; so a thread that wakes up soon after a
+ * boost need not wait behind every compute-bound thread. The timer does not
+ * make a thread yield until its slice is used up, unless a thread at a higher
+ * level is ready to run.
+ *
+ * <p>
+ * The time a thread runs for is counted by charging the ticks that have
+ * passed since it was dispatched, or since it was last charged, to the
+ * current thread each time the scheduler is called. Each thread keeps its own
+ * dispatch time, so on a multiprocessor a thread is not charged for the time
+ * that threads on other processors ran for. No priority is transferred.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+        numLevels = Config.getInteger("MLFQScheduler.levels", 3);
+        quantum = Config.getInteger("MLFQScheduler.quantum", Stats.TimerTicks);
+        boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+                50 * Stats.TimerTicks);
+
+        Lib.assertTrue(numLevels >= 1 && numLevels <= 31);
+        Lib.assertTrue(quantum > 0 && boostInterval > 0);
+    }
+
+    /**
+     * Allocate a new MLFQ thread queue.
+     *
+     * @param transferPriority ignored, since this scheduler does not
+     *                         transfer priority.
+     * @return a new MLFQ thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new MLFQQueue();
+    }
+
+    /**
+     * Return the priority of the specified thread, which is higher the
+     * higher its level: <tt>0</tt> at the bottom level, and one less than the
+     * number of levels at the top.
+     */
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        MLFQState ts = getMLFQState(thread);
+        ts.boost();
+        return numLevels - 1 - ts.level;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+        return getPriority(thread);
+    }
+
+    /**
+     * Yield if the current thread has used up its slice, or if a thread at
+     * a higher level is waiting for the processor.
+     */
+    public boolean preemptCurrentThread() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        MLFQState ts = charge();
+        if (ts.demote())
+            return true;
+
+        MLFQQueue readyQueue = ts.dequeuedFrom;
+        return readyQueue != null && readyQueue.topLevel() < ts.level;
+    }
+
+    /**
+     * Return the MLFQ state of the specified thread.
+     *
+     * @param thread the thread whose MLFQ state to return.
+     * @return the MLFQ state of the specified thread.
+     */
+    protected MLFQState getMLFQState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new MLFQState(thread);
+
+        return (MLFQState) thread.schedulingState;
+    }
+
+    /**
+     * Charge the ticks that have passed since the current thread was
+     * dispatched, or last charged, to the current thread, which has been
+     * running ever since.
+     *
+     * @return the MLFQ state of the current thread.
+     */
+    private MLFQState charge() {
+        MLFQState ts = getMLFQState(KThread.currentThread());
+        long now = Machine.timer().getTime();
+
+        ts.used += now - ts.dispatchedAt;
+        ts.dispatchedAt = ts.stoppedAt = now;
+        return ts;
+    }
+
+    /**
+     * Return the number of the current boost period.
+     */
+    private long boostPeriod() {
+        return Machine.timer().getTime() / boostInterval;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the first thread of the highest
+     * level.
+     */
+    protected class MLFQQueue extends ThreadQueue {
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            MLFQState current = charge();
+            MLFQState ts = getMLFQState(thread);
+            boolean woken = (ts != current);
+            if (woken) {
+                ts.boost();
+                ts.wake(Machine.timer().getTime());
+            } else {
+                ts.demote();
+            }
+
+            boost();
+            addThread(ts, woken);
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            Lib.assertTrue(nonEmptyLevels == 0);
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            charge();
+
+            boost();
+            if (nonEmptyLevels == 0)
+                return null;
+
+            MLFQState ts = heads[topLevel()];
+            removeThread(ts);
+            ts.dequeuedFrom = this;
+            ts.dispatchedAt = Machine.timer().getTime();
+            return ts.thread;
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            for (int level = 0; level < numLevels; level++) {
+                for (MLFQState ts = heads[level]; ts != null; ts = ts.queueNext)
+                    System.out.print(ts.thread + " ");
+            }
+        }
+
+        /**
+         * Return the highest level of the waiting threads, or the number of
+         * levels if no thread is waiting.
+         */
+        private int topLevel() {
+            boost();
+            return (nonEmptyLevels == 0) ? numLevels :
+                    Integer.numberOfTrailingZeros(nonEmptyLevels);
+        }
+
+        /**
+         * If a boost period has passed since this queue was last used, move
+         * every waiting thread to the top level, keeping them in the order
+         * they would have been dequeued.
+         */
+        private void boost() {
+            long period = boostPeriod();
+            if (period == boostedPeriod)
+                return;
+            boostedPeriod = period;
+
+            if ((nonEmptyLevels & ~1) == 0)
+                return;
+
+            MLFQState[] oldHeads = heads;
+            heads = new MLFQState[numLevels];
+            tails = new MLFQState[numLevels];
+            wokenTails = new MLFQState[numLevels];
+            nonEmptyLevels = 0;
+
+            for (int level = 0; level < numLevels; level++) {
+                MLFQState ts = oldHeads[level];
+                while (ts != null) {
+                    MLFQState next = ts.queueNext;
+                    ts.boost();
+                    addThread(ts, ts.queueWoken);
+                    ts = next;
+                }
+            }
+        }
+
+        /**
+         * Add a thread to the list for its level: behind the other woken
+         * threads if it was woken, or at the back if it yielded.
+         */
+        private void addThread(MLFQState ts, boolean woken) {
+            int level = ts.level;
+            MLFQState prev = woken ? wokenTails[level] : tails[level];
+            MLFQState next = (prev == null) ? heads[level] : prev.queueNext;
+            if (woken)
+                wokenTails[level] = ts;
+            ts.queueWoken = woken;
+            ts.queueLevel = level;
+            ts.queuePrev = prev;
+            ts.queueNext = next;
+            if (prev == null) {
+                heads[level] = ts;
+            } else {
+                prev.queueNext = ts;
+            }
+            if (next == null) {
+                tails[level] = ts;
+            } else {
+                next.queuePrev = ts;
+            }
+            nonEmptyLevels |= 1 << level;
+        }
+
+        /**
+         * Remove a thread from the list it was added to, which may not be the
+         * list for its level any more.
+         */
+        private void removeThread(MLFQState ts) {
+            int level = ts.queueLevel;
+            if (wokenTails[level] == ts)
+                wokenTails[level] = ts.queuePrev;
+            if (ts.queuePrev == null) {
+                heads[level] = ts.queueNext;
+            } else {
+                ts.queuePrev.queueNext = ts.queueNext;
+            }
+            if (ts.queueNext == null) {
+                tails[level] = ts.queuePrev;
+            } else {
+                ts.queueNext.queuePrev = ts.queuePrev;
+            }
+            ts.queuePrev = ts.queueNext = null;
+            if (heads[level] == null) {
+                nonEmptyLevels &= ~(1 << level);
+            }
+        }
+
+        /**
+         * The first and last waiting thread of each level, linked through
+         * <tt>MLFQState.queueNext</tt> and <tt>queuePrev</tt>.
+         */
+        private MLFQState[] heads = new MLFQState[numLevels];
+        private MLFQState[] tails = new MLFQState[numLevels];
+
+        /**
+         * The last woken thread of each level. The woken threads of a level
+         * come before the threads that yielded, in the order they were
+         * woken.
+         */
+        private MLFQState[] wokenTails = new MLFQState[numLevels];
+
+        /**
+         * Bit <i>l</i> is set if and only if a thread at level <i>l</i> is
+         * waiting.
+         */
+        private int nonEmptyLevels = 0;
+
+        /**
+         * The boost period in which the waiting threads were last boosted.
+         */
+        private long boostedPeriod = 0;
+    }
+
+    /**
+     * The MLFQ state of a thread: its level, and how much of its slice at
+     * that level it has used.
+     *
+     * @see nachos.threads.KThread#schedulingState
+     */
+    protected class MLFQState {
+        /**
+         * Allocate a new <tt>MLFQState</tt> object and associate it with the
+         * specified thread, at the top level.
+         *
+         * @param thread the thread this state belongs to.
+         */
+        public MLFQState(KThread thread) {
+            this.thread = thread;
+            this.boostedPeriod = boostPeriod();
+        }
+
+        /**
+         * If a boost period has passed since this thread was last boosted,
+         * move it to the top level with a fresh slice. If the thread is
+         * waiting, it stays in its queue's list for its old level until the
+         * queue boosts all its threads.
+         */
+        private void boost() {
+            long period = boostPeriod();
+            if (period == boostedPeriod)
+                return;
+
+            boostedPeriod = period;
+            level = 0;
+            used = 0;
+        }
+
+        /**
+         * Boost this thread if it is due, then, if it has used up its slice,
+         * move it down a level and give it a fresh slice. The thread must
+         * not be waiting on a queue.
+         *
+         * @return <tt>true</tt> if the thread used up its slice.
+         */
+        private boolean demote() {
+            boost();
+
+            long slice = (long) quantum << level;
+            if (used < slice)
+                return false;
+
+            used = 0;
+            if (level < numLevels - 1)
+                level++;
+            return true;
+        }
+
+        /**
+         * Called when another thread makes this thread ready, after it has
+         * been blocked since it last stopped running. Credit the time it was
+         * blocked against the time it has used.
+         *
+         * @param now the current time.
+         */
+        private void wake(long now) {
+            used = Math.max(used - (now - stoppedAt), 0);
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        /**
+         * The level of the associated thread; <tt>0</tt> is the top level.
+         */
+        protected int level = 0;
+        /**
+         * The ticks of its slice at this level that the thread has used.
+         */
+        protected long used = 0;
+
+        private long boostedPeriod;
+
+        /**
+         * The time the thread was last handed out by <tt>nextThread()</tt>,
+         * or last charged since. It has been charged for the time it ran
+         * before then.
+         */
+        private long dispatchedAt = 0;
+
+        /**
+         * The time the thread was last charged, which is when it last gave
+         * up the processor unless it is running.
+         */
+        private long stoppedAt = 0;
+
+        /**
+         * The queue the thread was last dequeued from, which is the ready
+         * queue while it is running.
+         */
+        private MLFQQueue dequeuedFrom = null;
+
+        /**
+         * This thread's neighbours and level in the queue it is waiting on.
+         */
+        private MLFQState queuePrev = null, queueNext = null;
+        private int queueLevel;
+        private boolean queueWoken;
+    }
+
+    private int numLevels;
+    private int quantum;
+    private int boostInterval;
+}
@@ -2,8 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.Iterator;
-import java.util.Comparator;
+import java.util.ArrayList;
 
 import static java.lang.Math.max;
 
@@ -26,6 +25,22 @@ import static java.lang.Math.max;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * A thread's effective priority is the highest of its own priority and the
+ * effective priorities of the threads waiting on the queues it holds.
+ * Donation is transitive: when a thread's effective priority changes and it
+ * is itself waiting on a queue that transfers priority, the holder of that
+ * queue is updated in turn, and so on up the chain, stopping at the first
+ * thread whose effective priority does not change.
+ *
+ * <p>
+ * Each queue keeps one FIFO list of waiting threads per priority, and a
+ * bitmap of the priorities whose lists are not empty, so that adding a thread,
+ * choosing the next thread, and changing a waiting thread's priority all take
+ * constant time however many threads are waiting. A waiting thread whose
+ * effective priority rises goes to the front of its new list, so that a
+ * donation takes effect at once; one whose priority falls goes to the back.
  */
 public class PriorityScheduler extends Scheduler {
     /**
@@ -138,8 +153,10 @@ public class PriorityScheduler extends Scheduler {
 
         public void acquire(KThread thread) {
             Lib.assertTrue(Machine.interrupt().disabled());
-            if (transferPriority) {
-                donateThread = thread;
+            if (owner != null) {
+                ThreadState previousOwner = owner;
+                owner = null;
+                previousOwner.release(this);
             }
             if (thread != null) {
                 getThreadState(thread).acquire(this);
@@ -149,7 +166,8 @@ public class PriorityScheduler extends Scheduler {
         public KThread nextThread() {
             Lib.assertTrue(Machine.interrupt().disabled());
             // implement me
-            KThread nextT = waitQueue.poll();
+            ThreadState nextTs = pickNextThread();
+            KThread nextT = (nextTs != null) ? nextTs.thread : null;
             acquire(nextT);
             return nextT;
         }
@@ -164,37 +182,76 @@ public class PriorityScheduler extends Scheduler {
         protected ThreadState pickNextThread() {
             // implement me
             Lib.assertTrue(Machine.interrupt().disabled());
-            KThread nextT = waitQueue.peek();
-            if (nextT != null) {
-                return getThreadState(waitQueue.peek());
+            if (nonEmptyLevels == 0) {
+                return null;
             }
-            return null;
+            return heads[31 - Integer.numberOfLeadingZeros(nonEmptyLevels)];
         }
 
         public void print() {
             Lib.assertTrue(Machine.interrupt().disabled());
             // implement me (if you want)
-            for (Iterator i = waitQueue.iterator(); i.hasNext(); )
-                System.out.print((KThread) i.next() + " ");
+            for (int level = priorityMaximum; level >= priorityMinimum; level--) {
+                for (ThreadState ts = heads[level]; ts != null; ts = ts.queueNext)
+                    System.out.print(ts.thread + " ");
+            }
         }
 
-        private void addThread(KThread thread) {
-            waitQueue.add(thread);
+        /**
+         * Add a thread to the front or the back of the list for its
+         * effective priority.
+         */
+        private void addThread(ThreadState ts, boolean atFront) {
+            int level = ts.getEffectivePriority();
+            ThreadState prev = atFront ? null : tails[level];
+            ThreadState next = atFront ? heads[level] : null;
+            ts.queueLevel = level;
+            ts.queuePrev = prev;
+            ts.queueNext = next;
+            if (prev == null) {
+                heads[level] = ts;
+            } else {
+                prev.queueNext = ts;
+            }
+            if (next == null) {
+                tails[level] = ts;
+            } else {
+                next.queuePrev = ts;
+            }
+            nonEmptyLevels |= 1 << level;
         }
 
-        private void removeThread(KThread thread) {
-            waitQueue.remove(thread);
+        /**
+         * Remove a thread from the list it was added to, which may not be the
+         * list for its effective priority any more.
+         */
+        private void removeThread(ThreadState ts) {
+            int level = ts.queueLevel;
+            if (ts.queuePrev == null) {
+                heads[level] = ts.queueNext;
+            } else {
+                ts.queuePrev.queueNext = ts.queueNext;
+            }
+            if (ts.queueNext == null) {
+                tails[level] = ts.queuePrev;
+            } else {
+                ts.queueNext.queuePrev = ts.queuePrev;
+            }
+            ts.queuePrev = ts.queueNext = null;
+            if (heads[level] == null) {
+                nonEmptyLevels &= ~(1 << level);
+            }
         }
 
-        private void donate() {
-            if (transferPriority && donateThread != null) {
-                ThreadState nextTs = pickNextThread();
-                if (nextTs != null) {
-                    getThreadState(donateThread).setDonatedPriority(nextTs.getEffectivePriority());
-                } else {
-                    getThreadState(donateThread).setDonatedPriority(priorityMinimum);
-                }
+        /**
+         * Return the highest effective priority of the waiting threads, or
+         * <tt>priorityMinimum</tt> if no thread is waiting.
+         */
+        private int topPriority() {
+            if (nonEmptyLevels == 0) {
+                return priorityMinimum;
             }
+            return 31 - Integer.numberOfLeadingZeros(nonEmptyLevels);
         }
 
         /**
@@ -204,26 +261,22 @@ public class PriorityScheduler extends Scheduler {
         public boolean transferPriority;
 
         /**
-         * compare priority;if priorities are equal, compare timestamp;
+         * The first and last waiting thread of each priority, linked through
+         * <tt>ThreadState.queueNext</tt> and <tt>queuePrev</tt>.
          */
-        Comparator<KThread> priorityComparator = new Comparator<KThread>() {
-
-            @Override
-            public int compare(KThread t1, KThread t2) {
-                if (getThreadState(t1).getEffectivePriority() == getThreadState(t2).getEffectivePriority()) {
-                    if (getThreadState(t1).getTimestamp() < getThreadState(t2).getTimestamp()) {
-                        return -1;
-                    } else {
-                        return 1;
-                    }
-                }
-                return getThreadState(t2).getEffectivePriority() - getThreadState(t1).getEffectivePriority();
-            }
-        };
+        private ThreadState[] heads = new ThreadState[priorityMaximum + 1];
+        private ThreadState[] tails = new ThreadState[priorityMaximum + 1];
 
-        private java.util.PriorityQueue<KThread> waitQueue = new java.util.PriorityQueue<>(priorityMaximum + 1, priorityComparator);
+        /**
+         * Bit <i>p</i> is set if and only if a thread of priority <i>p</i>
+         * is waiting.
+         */
+        private int nonEmptyLevels = 0;
 
-        private KThread donateThread = null;
+        /**
+         * The thread that holds this queue, if it transfers priority.
+         */
+        private ThreadState owner = null;
     }
 
     /**
@@ -257,19 +310,19 @@ public class PriorityScheduler extends Scheduler {
 
         /**
          * Return the effective priority of the associated thread.
-         * get max value of priority and donated priority.
-         * if transferPriority is false, no chance to update donatedPriority, which default value is minimum priority
+         * It is kept up to date by <tt>updateEffectivePriority()</tt>, so this
+         * takes constant time.
          *
          * @return the effective priority of the associated thread.
          */
         public int getEffectivePriority() {
             // implement me
-            return max(priority, donatedPriority);
+            return effectivePriority;
         }
 
         /**
          * Set the priority of the associated thread to the specified value.
-         * adjust priority-> remove from heap -> add to heap
+         * adjust priority-> remove from its list -> add to its new list
          *
          * @param priority the new priority.
          */
@@ -277,31 +330,40 @@ public class PriorityScheduler extends Scheduler {
             if (this.priority == priority)
                 return;
 
-            int oldEffectivePriority = getEffectivePriority();
             this.priority = priority;
 
             // implement me
-            if (currentWaitQueue != null && oldEffectivePriority != getEffectivePriority()) {
-                fixCurrentWaitQueue();
-            }
+            updateEffectivePriority();
         }
 
-        public void setDonatedPriority(int priority) {
-            if (this.donatedPriority == priority)
-                return;
-            int oldEffectivePriority = getEffectivePriority();
-            this.donatedPriority = priority;
+        /**
+         * Recompute the effective priority of the associated thread, and if
+         * it changed, move the thread within the queue it waits on and
+         * update the holder of that queue, and so on up the chain of
+         * donations, until an effective priority does not change.
+         */
+        private void updateEffectivePriority() {
+            ThreadState ts = this;
+            while (ts != null) {
+                int newPriority = ts.priority;
+                for (int i = 0; i < ts.heldQueues.size(); i++) {
+                    newPriority = max(newPriority, ts.heldQueues.get(i).topPriority());
+                }
+                if (newPriority == ts.effectivePriority) {
+                    return;
+                }
 
-            // implement me
-            if (currentWaitQueue != null && oldEffectivePriority != getEffectivePriority()) {
-                fixCurrentWaitQueue();
-            }
-        }
+                boolean raised = newPriority > ts.effectivePriority;
+                ts.effectivePriority = newPriority;
 
-        private void fixCurrentWaitQueue() {
-            currentWaitQueue.removeThread(thread);
-            currentWaitQueue.addThread(thread);
-            currentWaitQueue.donate();
+                PriorityQueue waitQueue = ts.currentWaitQueue;
+                if (waitQueue == null) {
+                    return;
+                }
+                waitQueue.removeThread(ts);
+                waitQueue.addThread(ts, raised);
+                ts = waitQueue.owner;
+            }
         }
 
         /**
@@ -310,7 +372,7 @@ public class PriorityScheduler extends Scheduler {
          * The associated thread is therefore waiting for access to the
          * resource guarded by <tt>waitQueue</tt>. This method is only called
          * if the associated thread cannot immediately obtain access.
-         * update donatedThread of waitQueue when insert new thread.
+         * update the holder of waitQueue when insert new thread.
          *
          * @param waitQueue the queue that the associated thread is
          *                  now waiting on.
@@ -318,10 +380,11 @@ public class PriorityScheduler extends Scheduler {
          */
         public void waitForAccess(PriorityQueue waitQueue) {
             // implement me
-            this.timestamp = Machine.timer().getTime();
-            waitQueue.addThread(thread);
-            waitQueue.donate();
             currentWaitQueue = waitQueue;
+            waitQueue.addThread(this, false);
+            if (waitQueue.owner != null) {
+                waitQueue.owner.updateEffectivePriority();
+            }
         }
 
         /**
@@ -330,15 +393,31 @@ public class PriorityScheduler extends Scheduler {
          * <tt>acquire(thread)</tt> being invoked on <tt>waitQueue</tt> (where
          * <tt>thread</tt> is the associated thread), or as a result of
          * <tt>nextThread()</tt> being invoked on <tt>waitQueue</tt>.
-         * update donatedPriority only if transferPriority is true. The value is max value in the waitQueue.
+         * hold waitQueue, so that its waiters donate to us, only if transferPriority is true.
          *
          * @see nachos.threads.ThreadQueue#acquire
          * @see nachos.threads.ThreadQueue#nextThread
          */
         public void acquire(PriorityQueue waitQueue) {
             // implement me
-            currentWaitQueue = null;
-            waitQueue.donate();
+            if (currentWaitQueue == waitQueue) {
+                waitQueue.removeThread(this);
+                currentWaitQueue = null;
+            }
+            if (waitQueue.transferPriority) {
+                waitQueue.owner = this;
+                heldQueues.add(waitQueue);
+                updateEffectivePriority();
+            }
+        }
+
+        /**
+         * Called when the associated thread no longer holds
+         * <tt>waitQueue</tt>, so its waiters stop donating to it.
+         */
+        private void release(PriorityQueue waitQueue) {
+            heldQueues.remove(waitQueue);
+            updateEffectivePriority();
         }
 
         /**
@@ -350,17 +429,20 @@ public class PriorityScheduler extends Scheduler {
          */
         protected int priority;
 
-        private int donatedPriority = priorityMinimum;
+        private int effectivePriority = priorityMinimum;
 
-        private PriorityQueue currentWaitQueue = null;
+        /**
+         * The queues that transfer priority and that this thread holds.
+         */
+        private ArrayList<PriorityQueue> heldQueues = new ArrayList<PriorityQueue>();
 
-        public long getTimestamp() {
-            return timestamp;
-        }
+        private PriorityQueue currentWaitQueue = null;
 
         /**
-         * time stamp when enter the queue
+         * This thread's neighbours and priority list in
+         * <tt>currentWaitQueue</tt>.
          */
-        protected long timestamp;
+        private ThreadState queuePrev = null, queueNext = null;
+        private int queueLevel;
     }
 }
@@ -154,4 +154,20 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Decide whether the current thread should give up the processor at this
+     * timer interrupt. Called by the alarm, with interrupts disabled.
+     *
+     * <p>
+     * By default every timer interrupt preempts the current thread, so that
+     * the threads share the processor in slices of one timer period. A
+     * scheduler that gives threads longer slices, or that preempts only for
+     * a more urgent thread, overrides this.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean preemptCurrentThread() {
+	return true;
+    }
 }
@@ -0,0 +1,437 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that gives each thread a share of the dequeues in proportion
+ * to its tickets, deterministically.
+ *
+ * <p>
+ * A stride scheduler associates a number of tickets with each thread, and
+ * gives each thread a stride that is inversely proportional to its tickets,
+ * and a pass. The thread that is dequeued is always the waiting thread with
+ * the lowest pass, and its pass then advances by its stride, so a thread with
+ * twice as many tickets is dequeued twice as often. Among threads with the
+ * same pass, the one that has been waiting longest is dequeued.
+ *
+ * <p>
+ * Each queue keeps its waiting threads in a binary min-heap ordered by pass,
+ * and a global pass, which is the pass of the last thread dequeued. A thread
+ * that leaves a queue remembers how far its pass was ahead of the global
+ * pass, and rejoins the next queue that far ahead of that queue's global
+ * pass, so that a thread cannot save up turns while it is blocked. When a
+ * waiting thread's tickets change, the part of its pass still remaining is
+ * scaled to its new stride and the thread moves within the heap, in time
+ * logarithmic in the number of waiting threads.
+ *
+ * <p>
+ * Tickets are transferred through queues that transfer priority: a thread's
+ * effective tickets are its own tickets plus the effective tickets of every
+ * thread waiting on the queues it holds, as in a lottery scheduler.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param transferPriority <tt>true</tt> if this queue should
+     *                         transfer tickets from waiting threads
+     *                         to the owning thread.
+     * @return a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new StrideQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getStrideState(thread).tickets;
+    }
+
+    /**
+     * Return the effective tickets of the specified thread, or
+     * <tt>ticketsMaximum</tt> if it has more.
+     */
+    public int getEffectivePriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return (int) Math.min(getStrideState(thread).effectiveTickets,
+                ticketsMaximum);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(priority >= ticketsMinimum &&
+                priority <= ticketsMaximum);
+
+        getStrideState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int tickets = getPriority(thread);
+        boolean changed = tickets < ticketsMaximum;
+        if (changed)
+            setPriority(thread, tickets + 1);
+
+        Machine.interrupt().restore(intStatus);
+        return changed;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int tickets = getPriority(thread);
+        boolean changed = tickets > ticketsMinimum;
+        if (changed)
+            setPriority(thread, tickets - 1);
+
+        Machine.interrupt().restore(intStatus);
+        return changed;
+    }
+
+    /**
+     * The number of tickets a new thread has.
+     */
+    public static final int ticketsDefault = 1;
+    /**
+     * The fewest tickets that a thread can have.
+     */
+    public static final int ticketsMinimum = 1;
+    /**
+     * The most tickets that a thread can have.
+     */
+    public static final int ticketsMaximum = Integer.MAX_VALUE;
+
+    /**
+     * The stride of a thread with one ticket. It is large enough that even
+     * <tt>ticketsMaximum</tt> tickets give a stride well above one; passes
+     * wrap around after a few million strides of one ticket, which is
+     * harmless since passes are only compared by subtracting them.
+     */
+    private static final long stride1 = 1L << 40;
+
+    /**
+     * Return the stride state of the specified thread.
+     *
+     * @param thread the thread whose stride state to return.
+     * @return the stride state of the specified thread.
+     */
+    protected StrideState getStrideState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new StrideState(thread);
+
+        return (StrideState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the thread with the lowest pass.
+     */
+    protected class StrideQueue extends ThreadQueue {
+        StrideQueue(boolean transferPriority) {
+            this.transferPriority = transferPriority;
+        }
+
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            getStrideState(thread).waitForAccess(this);
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            if (owner != null) {
+                StrideState previousOwner = owner;
+                owner = null;
+                previousOwner.addTickets(-totalTickets);
+            }
+            if (thread != null) {
+                getStrideState(thread).acquire(this);
+            }
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            KThread nextT = null;
+            if (size > 0) {
+                if (heap[0].pass - globalPass > 0)
+                    globalPass = heap[0].pass;
+                nextT = heap[0].thread;
+            }
+            acquire(nextT);
+            return nextT;
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            for (int i = 0; i < size; i++)
+                System.out.print(heap[i].thread + " (" + heap[i].pass + ") ");
+        }
+
+        /**
+         * Add a thread to the heap, at the pass it already has.
+         */
+        private void addThread(StrideState ts) {
+            if (size == heap.length) {
+                StrideState[] oldHeap = heap;
+                heap = new StrideState[2 * size];
+                System.arraycopy(oldHeap, 0, heap, 0, size);
+            }
+
+            ts.sequence = nextSequence++;
+            heap[size] = ts;
+            ts.heapIndex = size++;
+            siftUp(ts.heapIndex);
+            totalTickets += ts.effectiveTickets;
+        }
+
+        /**
+         * Take a thread out of the heap.
+         */
+        private void removeThread(StrideState ts) {
+            int index = ts.heapIndex;
+            StrideState last = heap[--size];
+            heap[size] = null;
+            ts.heapIndex = -1;
+            totalTickets -= ts.effectiveTickets;
+
+            if (last != ts) {
+                heap[index] = last;
+                last.heapIndex = index;
+                siftUp(index);
+                siftDown(last.heapIndex);
+            }
+        }
+
+        /**
+         * Restore the heap after the pass of a waiting thread changed.
+         */
+        private void passChanged(StrideState ts) {
+            siftUp(ts.heapIndex);
+            siftDown(ts.heapIndex);
+        }
+
+        private void siftUp(int index) {
+            StrideState ts = heap[index];
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (!ts.before(heap[parent]))
+                    break;
+                place(heap[parent], index);
+                index = parent;
+            }
+            place(ts, index);
+        }
+
+        private void siftDown(int index) {
+            StrideState ts = heap[index];
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && heap[child + 1].before(heap[child]))
+                    child++;
+                if (!heap[child].before(ts))
+                    break;
+                place(heap[child], index);
+                index = child;
+            }
+            place(ts, index);
+        }
+
+        private void place(StrideState ts, int index) {
+            heap[index] = ts;
+            ts.heapIndex = index;
+        }
+
+        /**
+         * <tt>true</tt> if this queue should transfer tickets from waiting
+         * threads to the owning thread.
+         */
+        public boolean transferPriority;
+
+        /**
+         * The waiting threads, as a binary heap ordered by pass.
+         */
+        private StrideState[] heap = new StrideState[8];
+        private int size = 0;
+
+        /**
+         * The pass of the last thread dequeued. Every waiting thread's pass
+         * is at least this. Passes are only ever compared by subtracting
+         * them, so they may wrap around.
+         */
+        private long globalPass = 0;
+
+        /**
+         * The order in which threads joined, to break ties between equal
+         * passes.
+         */
+        private long nextSequence = 0;
+
+        /**
+         * The effective tickets of all the waiting threads.
+         */
+        private long totalTickets = 0;
+
+        /**
+         * The thread that holds this queue, if it transfers tickets.
+         */
+        private StrideState owner = null;
+    }
+
+    /**
+     * The stride state of a thread: its tickets, its effective tickets, its
+     * pass, and the queue it's waiting for, if any.
+     *
+     * @see nachos.threads.KThread#schedulingState
+     */
+    protected class StrideState {
+        /**
+         * Allocate a new <tt>StrideState</tt> object and associate it with
+         * the specified thread.
+         *
+         * @param thread the thread this state belongs to.
+         */
+        public StrideState(KThread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * Set the tickets of the associated thread to the specified value.
+         *
+         * @param tickets the new number of tickets.
+         */
+        public void setTickets(int tickets) {
+            long delta = (long) tickets - this.tickets;
+            this.tickets = tickets;
+            addTickets(delta);
+        }
+
+        /**
+         * Return the stride of the associated thread.
+         */
+        private long stride() {
+            return Math.max(stride1 / effectiveTickets, 1);
+        }
+
+        /**
+         * Return true if the associated thread should be dequeued before the
+         * specified thread.
+         */
+        private boolean before(StrideState ts) {
+            long difference = pass - ts.pass;
+            return difference < 0 || (difference == 0 && sequence < ts.sequence);
+        }
+
+        /**
+         * Add the specified number of tickets to the effective tickets of
+         * the associated thread, and to each thread up the chain of holders
+         * that it donates to.
+         */
+        private void addTickets(long delta) {
+            StrideState ts = this;
+            while (ts != null && delta != 0) {
+                long oldTickets = ts.effectiveTickets;
+                ts.effectiveTickets += delta;
+
+                StrideQueue waitQueue = ts.currentWaitQueue;
+                if (waitQueue == null) {
+                    ts.remain = scale(ts.remain, oldTickets, ts.effectiveTickets);
+                    return;
+                }
+                waitQueue.totalTickets += delta;
+                ts.pass = waitQueue.globalPass +
+                        scale(ts.pass - waitQueue.globalPass, oldTickets,
+                                ts.effectiveTickets);
+                waitQueue.passChanged(ts);
+                ts = waitQueue.owner;
+            }
+        }
+
+        /**
+         * Scale what is left of a stride to a new number of tickets.
+         */
+        private long scale(long remain, long oldTickets, long newTickets) {
+            return (long) (remain * ((double) oldTickets / newTickets));
+        }
+
+        /**
+         * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
+         * the associated thread) is invoked on the specified stride queue.
+         * The thread joins the queue as far ahead of its global pass as it
+         * was when it left its last queue.
+         *
+         * @param waitQueue the queue that the associated thread is
+         *                  now waiting on.
+         * @see nachos.threads.ThreadQueue#waitForAccess
+         */
+        public void waitForAccess(StrideQueue waitQueue) {
+            Lib.assertTrue(currentWaitQueue == null);
+            currentWaitQueue = waitQueue;
+            pass = waitQueue.globalPass + remain;
+            waitQueue.addThread(this);
+            if (waitQueue.owner != null) {
+                waitQueue.owner.addTickets(effectiveTickets);
+            }
+        }
+
+        /**
+         * Called when the associated thread has acquired access to whatever is
+         * guarded by <tt>waitQueue</tt>. A thread that leaves the queue is
+         * charged one stride. If the queue transfers tickets, the threads
+         * still waiting on it donate theirs to this thread.
+         *
+         * @see nachos.threads.ThreadQueue#acquire
+         * @see nachos.threads.ThreadQueue#nextThread
+         */
+        public void acquire(StrideQueue waitQueue) {
+            if (currentWaitQueue == waitQueue) {
+                waitQueue.removeThread(this);
+                currentWaitQueue = null;
+                remain = pass + stride() - waitQueue.globalPass;
+            }
+            if (waitQueue.transferPriority) {
+                waitQueue.owner = this;
+                addTickets(waitQueue.totalTickets);
+            }
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        /**
+         * The tickets of the associated thread.
+         */
+        protected int tickets = ticketsDefault;
+
+        private long effectiveTickets = ticketsDefault;
+
+        /**
+         * The pass of the associated thread in <tt>currentWaitQueue</tt>, and
+         * how far ahead of the global pass it was when it last left a queue.
+         */
+        private long pass = 0, remain = 0;
+
+        private StrideQueue currentWaitQueue = null;
+
+        /**
+         * This thread's place in the heap of <tt>currentWaitQueue</tt>, and
+         * when it joined.
+         */
+        private int heapIndex = -1;
+        private long sequence;
+    }
+}
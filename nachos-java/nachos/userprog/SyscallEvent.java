@@ -0,0 +1,24 @@
+package nachos.userprog;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import nachos.machine.KernelEvent;
+
+/**
+ * A Flight Recorder event for a system call made by a user process.
+ */
+@Name("nachos.Syscall")
+@Label("Syscall")
+@Category({"Nachos", "User Processes"})
+class SyscallEvent extends KernelEvent {
+    @Label("Process ID")
+    int processID;
+
+    @Label("Syscall")
+    int syscall;
+
+    @Label("Result")
+    int result;
+}
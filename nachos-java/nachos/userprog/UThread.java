@@ -51,6 +51,8 @@ public class UThread extends KThread {
     protected void restoreState() {
         super.restoreState();
 
+        Machine.processor().setProgram(process.coff);
+
         for (int i = 0; i < Processor.numUserRegisters; i++)
             Machine.processor().writeRegister(i, userRegisters[i]);
 
@@ -15,7 +15,7 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Initialize this kernel. Creates a synchronized console and sets the
+     * Initialize this kernel. Creates a synchronized console and sets every
      * processor's exception handler.
      */
     public void initialize(String[] args) {
@@ -23,11 +23,13 @@ public class UserKernel extends ThreadedKernel {
 
         console = new SynchConsole(Machine.console());
         pagePool.initialize(Machine.processor().getNumPhysPages());
-        Machine.processor().setExceptionHandler(new Runnable() {
+        Runnable handler = new Runnable() {
             public void run() {
                 exceptionHandler();
             }
-        });
+        };
+        for (int i = 0; i < Machine.numProcessors(); i++)
+            Machine.processor(i).setExceptionHandler(handler);
     }
 
     /**
@@ -49,6 +51,30 @@ public class UserKernel extends ThreadedKernel {
                 Lib.assertTrue(process.getExitStatus() == 0);
             }
         }));
+        //processes on every processor at once
+        ts.addTest(new Lib.Test("multiprocessor_test", new Runnable() {
+            @Override
+            public void run() {
+                UserProcess[] processes = new UserProcess[Machine.numProcessors() * 2];
+                int pagesEach = 0, joined = 0;
+                for (int i = 0; i < processes.length; i++) {
+                    //wait for the oldest process if another would not fit in memory
+                    while (joined < i && pagePool.getFreePages() < pagesEach) {
+                        processes[joined].join();
+                        Lib.assertTrue(processes[joined++].getExitStatus() == 7220);
+                    }
+                    int freePages = pagePool.getFreePages();
+                    processes[i] = UserProcess.newUserProcess();
+                    Lib.assertTrue(processes[i].execute("matmult.coff", new String[]{"matmult"}));
+                    pagesEach = Math.max(pagesEach, freePages - pagePool.getFreePages());
+                }
+                while (joined < processes.length) {
+                    processes[joined].join();
+                    //check exit status
+                    Lib.assertTrue(processes[joined++].getExitStatus() == 7220);
+                }
+            }
+        }));
         //create test
         ts.addTest(new Lib.Test("create_test", new Runnable() {
             @Override
@@ -151,8 +151,6 @@ public class UserProcess {
                                  int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-        byte[] memory = Machine.processor().getMemory();
-
         // for now, just assume that virtual addresses equal physical addresses
         if (vaddr < 0)
             return 0;
@@ -165,7 +163,7 @@ public class UserProcess {
         int vaddrACC = startVaddr;
 
         for (int i = startVaddr / pageSize; i <= endVaddr / pageSize; i++) {
-            int amountInPage = readVirtualMemoryInPage(vaddrACC, data, offset + amount, leftLength, memory);
+            int amountInPage = readVirtualMemoryInPage(vaddrACC, data, offset + amount, leftLength);
             if (amountInPage == 0) {
                 break;
             }
@@ -181,14 +179,14 @@ public class UserProcess {
     }
 
     protected int readVirtualMemoryInPage(int vaddr, byte[] data, int offset,
-                                          int length, byte[] memory) {
+                                          int length) {
         TranslationEntry page = getEntry(vaddr / pageSize);
         if (page == null) {
             return 0;
         }
         int paddrInPage = page.ppn * pageSize + vaddr % pageSize;
         int amount = Math.min(length, pageSize - (vaddr % pageSize));
-        System.arraycopy(memory, paddrInPage, data, offset, amount);
+        Machine.processor().readPhysMemory(paddrInPage, data, offset, amount);
         return amount;
     }
 
@@ -223,8 +221,6 @@ public class UserProcess {
                                   int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-        byte[] memory = Machine.processor().getMemory();
-
         // for now, just assume that virtual addresses equal physical addresses
         if (vaddr < 0)
             return 0;
@@ -237,7 +233,7 @@ public class UserProcess {
         int vaddrACC = startVaddr;
 
         for (int i = startVaddr / pageSize; i <= endVaddr / pageSize; i++) {
-            int amountInPage = writeVirtualMemoryInPage(vaddrACC, data, offset + amount, leftLength, memory);
+            int amountInPage = writeVirtualMemoryInPage(vaddrACC, data, offset + amount, leftLength);
             if (amountInPage == 0) {
                 break;
             }
@@ -253,14 +249,14 @@ public class UserProcess {
     }
 
     protected int writeVirtualMemoryInPage(int vaddr, byte[] data, int offset,
-                                           int length, byte[] memory) {
+                                           int length) {
         TranslationEntry page = getEntry(vaddr / pageSize);
         if (page == null || page.readOnly) {
             return 0;
         }
         int paddrInPage = page.ppn * pageSize + vaddr % pageSize;
         int amount = Math.min(length, pageSize - (vaddr % pageSize));
-        System.arraycopy(data, offset, memory, paddrInPage, amount);
+        Machine.processor().writePhysMemory(paddrInPage, data, offset, amount);
         return amount;
     }
 
@@ -730,12 +726,24 @@ public class UserProcess {
 
         switch (cause) {
             case Processor.exceptionSyscall:
-                int result = handleSyscall(processor.readRegister(Processor.regV0),
+                int syscall = processor.readRegister(Processor.regV0);
+                long startTime = Machine.timer().getTime();
+                SyscallEvent event = new SyscallEvent();
+                event.start();
+                int result = handleSyscall(syscall,
                         processor.readRegister(Processor.regA0),
                         processor.readRegister(Processor.regA1),
                         processor.readRegister(Processor.regA2),
                         processor.readRegister(Processor.regA3)
                 );
+                event.processID = processID;
+                event.syscall = syscall;
+                event.result = result;
+                event.finish();
+                syscallLatency(syscall).observe(Machine.timer().getTime() - startTime);
+                // the system call may have blocked, and this thread may have
+                // been resumed on another processor
+                processor = Machine.processor();
                 processor.writeRegister(Processor.regV0, result);
                 processor.advancePC();
                 break;
@@ -748,6 +756,30 @@ public class UserProcess {
         }
     }
 
+    /**
+     * Return the histogram of the latency of the specified syscall,
+     * registering it the first time. Syscall numbers that no process
+     * implements share one histogram.
+     */
+    private static Metrics.Histogram syscallLatency(int syscall) {
+        if (syscall < 0 || syscall >= maxSyscall)
+            syscall = maxSyscall;
+
+        if (syscallLatency[syscall] == null) {
+            syscallLatency[syscall] = Machine.metrics().histogram(
+                    "nachos_syscall_latency_ticks",
+                    "Ticks from a syscall trapping until it returns.",
+                    "syscall", (syscall < maxSyscall) ?
+                            Integer.toString(syscall) : "other");
+        }
+
+        return syscallLatency[syscall];
+    }
+
+    private static final int maxSyscall = 16;
+    private static final Metrics.Histogram[] syscallLatency =
+            new Metrics.Histogram[maxSyscall + 1];
+
     /**
      * The program being run by this process.
      */
@@ -27,13 +27,13 @@ public abstract class AddressMapping {
         entry.valid = false;
     }
 
-    public void updateEntryHW(TranslationEntry entry) {
+    public void updateEntryHW(boolean used, boolean dirty) {
         //hardware set only
-        if (entry.used) {
-            this.entry.used = entry.used;
+        if (used) {
+            this.entry.used = true;
         }
-        if (entry.dirty) {
-            this.entry.dirty = entry.dirty;
+        if (dirty) {
+            this.entry.dirty = true;
         }
     }
 
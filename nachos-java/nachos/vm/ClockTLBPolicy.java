@@ -0,0 +1,54 @@
+package nachos.vm;
+
+/**
+ * Approximates LRU replacement within each TLB set using the clock
+ * algorithm. The hardware <tt>used</tt> bits are collected through
+ * <tt>entryUsed()</tt> before the kernel clears them, and each entry whose
+ * bit was seen since the hand last passed it gets a second chance.
+ */
+public class ClockTLBPolicy extends TLBPolicy {
+    /**
+     * Allocate a new clock TLB replacement policy.
+     */
+    public ClockTLBPolicy() {
+        super();
+        referenced = new boolean[tlbSize];
+        hand = new int[tlbSize / associativity];
+    }
+
+    public int chooseEntry(int vpn) {
+        // fill an empty entry first
+        int number = findInvalidEntry(vpn);
+        if (number != -1) {
+            referenced[number] = false;
+            return number;
+        }
+
+        int first = firstEntry(vpn);
+        int set = first / associativity;
+
+        while (true) {
+            number = first + hand[set];
+            hand[set] = (hand[set] + 1) % associativity;
+
+            if (!referenced[number])
+                return number;
+
+            referenced[number] = false;
+        }
+    }
+
+    public void entryUsed(int number) {
+        referenced[number] = true;
+    }
+
+    /**
+     * Whether each entry has been used since the hand last passed it.
+     */
+    private boolean[] referenced;
+    /**
+     * The position of the clock hand in each set, relative to the start of
+     * the set.
+     */
+    private int[] hand;
+}
@@ -0,0 +1,29 @@
+package nachos.vm;
+
+/**
+ * Replaces the entry in the TLB set that was filled longest ago.
+ */
+public class FIFOTLBPolicy extends TLBPolicy {
+    /**
+     * Allocate a new FIFO TLB replacement policy.
+     */
+    public FIFOTLBPolicy() {
+        super();
+        next = new int[tlbSize / associativity];
+    }
+
+    public int chooseEntry(int vpn) {
+        int first = firstEntry(vpn);
+        int set = first / associativity;
+
+        int number = first + next[set];
+        next[set] = (next[set] + 1) % associativity;
+
+        return number;
+    }
+
+    /**
+     * The next entry to fill in each set, relative to the start of the set.
+     */
+    private int[] next;
+}
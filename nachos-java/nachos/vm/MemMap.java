@@ -52,6 +52,11 @@ public class MemMap {
     }
 
     public void swap() {
+        SwapEvent event = new SwapEvent();
+        event.start();
+        int pagesWritten = 0;
+        //other processors may have used or dirtied pages since their kernel last looked
+        VMKernel.collectOtherTLBs();
         //first round : collection not dirty and not used page;and give used page second chance
         for (int i = 0; i < pages.length; i++) {
             if (!pages[i].free) {
@@ -79,6 +84,7 @@ public class MemMap {
                         pages[i].mappingEntry.entry.dirty = false;
                         pages[i].unmap();
                         pages[i].swapOut();
+                        pagesWritten++;
                         freePages++;
                     }
                 }
@@ -96,10 +102,15 @@ public class MemMap {
                 pages[i].unmap();
                 if (pages[i].mappingEntry.entry.dirty) {
                     pages[i].swapOut();
+                    pagesWritten++;
                 }
                 freePages++;
             }
         }
+        event.out = true;
+        event.pagesFreed = freePages;
+        event.pagesWritten = pagesWritten;
+        event.finish();
     }
 
 
@@ -20,6 +20,7 @@ public class Page {
 
     public void unmap() {
         mappingEntry.unmap();
+        VMKernel.invalidateTLBs(ppn);
         free = true;
     }
 
@@ -0,0 +1,24 @@
+package nachos.vm;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import nachos.machine.KernelEvent;
+
+/**
+ * A Flight Recorder event for making a faulting page resident.
+ */
+@Name("nachos.PageFault")
+@Label("Page Fault")
+@Category({"Nachos", "Virtual Memory"})
+class PageFaultEvent extends KernelEvent {
+    @Label("Process ID")
+    int processID;
+
+    @Label("Virtual Page")
+    int vpn;
+
+    @Label("Physical Page")
+    int ppn;
+}
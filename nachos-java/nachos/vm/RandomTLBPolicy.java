@@ -0,0 +1,19 @@
+package nachos.vm;
+
+import nachos.machine.Lib;
+
+/**
+ * Replaces a random entry in the TLB set.
+ */
+public class RandomTLBPolicy extends TLBPolicy {
+    /**
+     * Allocate a new random TLB replacement policy.
+     */
+    public RandomTLBPolicy() {
+        super();
+    }
+
+    public int chooseEntry(int vpn) {
+        return firstEntry(vpn) + Lib.random(associativity);
+    }
+}
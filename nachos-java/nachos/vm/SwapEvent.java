@@ -0,0 +1,25 @@
+package nachos.vm;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import nachos.machine.KernelEvent;
+
+/**
+ * A Flight Recorder event for moving pages between memory and swap: either
+ * <tt>MemMap.swap()</tt> reclaiming pages, or a page being read back in.
+ */
+@Name("nachos.Swap")
+@Label("Swap")
+@Category({"Nachos", "Virtual Memory"})
+class SwapEvent extends KernelEvent {
+    @Label("Swap Out")
+    boolean out;
+
+    @Label("Pages Freed")
+    int pagesFreed;
+
+    @Label("Pages Written")
+    int pagesWritten;
+}
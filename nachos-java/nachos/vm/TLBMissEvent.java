@@ -0,0 +1,22 @@
+package nachos.vm;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import nachos.machine.KernelEvent;
+
+/**
+ * A Flight Recorder event for a TLB miss handled by a VM process, including
+ * any page fault it causes.
+ */
+@Name("nachos.TLBMiss")
+@Label("TLB Miss")
+@Category({"Nachos", "Virtual Memory"})
+class TLBMissEvent extends KernelEvent {
+    @Label("Process ID")
+    int processID;
+
+    @Label("Virtual Page")
+    int vpn;
+}
@@ -0,0 +1,85 @@
+package nachos.vm;
+
+import nachos.machine.Machine;
+import nachos.machine.Processor;
+
+/**
+ * Chooses which TLB entry receives a new translation. The entry is always
+ * chosen from the TLB set that the processor requires for the virtual page,
+ * so the same policies work for fully associative and set-associative TLBs.
+ * Each processor has its own policy, of the class named by
+ * <tt>VMKernel.tlbPolicy</tt>.
+ */
+public abstract class TLBPolicy {
+    /**
+     * Allocate a new TLB replacement policy for a processor's TLB. Every
+     * processor's TLB has the same size and associativity.
+     */
+    public TLBPolicy() {
+        Processor processor = Machine.processor();
+        tlbSize = processor.getTLBSize();
+        associativity = processor.getTLBAssociativity();
+        setFlags = new int[associativity];
+    }
+
+    /**
+     * Choose the TLB entry to overwrite with a translation for the specified
+     * virtual page.
+     *
+     * @param vpn the virtual page that missed in the TLB.
+     * @return the number of the TLB entry to write.
+     */
+    public abstract int chooseEntry(int vpn);
+
+    /**
+     * Note that the specified TLB entry had its used bit set. Called for each
+     * such entry just before the kernel clears the used bits.
+     *
+     * @param number the TLB entry that was used.
+     */
+    public void entryUsed(int number) {
+    }
+
+    /**
+     * Return the number of the first TLB entry in the set for the specified
+     * virtual page.
+     *
+     * @param vpn the virtual page number.
+     * @return the first entry in its set.
+     */
+    protected int firstEntry(int vpn) {
+        return Machine.processor().getTLBSet(vpn) * associativity;
+    }
+
+    /**
+     * Return the first invalid TLB entry in the set for the specified virtual
+     * page, or -1 if every entry in the set is valid.
+     *
+     * @param vpn the virtual page number.
+     * @return an invalid entry, or -1.
+     */
+    protected int findInvalidEntry(int vpn) {
+        int first = firstEntry(vpn);
+        Machine.processor().readTLBEntries(first, associativity, null, null,
+                setFlags);
+        for (int i = 0; i < associativity; i++) {
+            if ((setFlags[i] & Processor.tlbValid) == 0)
+                return first + i;
+        }
+        return -1;
+    }
+
+    /**
+     * The number of entries in the TLB.
+     */
+    protected final int tlbSize;
+    /**
+     * The number of entries in each TLB set.
+     */
+    protected final int associativity;
+
+    /**
+     * Receives the flags of one TLB set in <tt>findInvalidEntry()</tt>.
+     */
+    private final int[] setFlags;
+}
@@ -1,6 +1,9 @@
 package nachos.vm;
 
+import nachos.machine.Config;
+import nachos.machine.Lib;
 import nachos.machine.Machine;
+import nachos.machine.Processor;
 import nachos.machine.TranslationEntry;
 import nachos.userprog.*;
 
@@ -21,6 +24,68 @@ public class VMKernel extends UserKernel {
     public void initialize(String[] args) {
         super.initialize(args);
         memMap.initialize(Machine.processor().getNumPhysPages());
+
+        String policyName = Config.getString("VMKernel.tlbPolicy",
+                "nachos.vm.RandomTLBPolicy");
+        tlbPolicies = new TLBPolicy[Machine.numProcessors()];
+        for (int i = 0; i < tlbPolicies.length; i++)
+            tlbPolicies[i] = (TLBPolicy) Lib.constructObject(policyName);
+    }
+
+    /**
+     * Return the TLB replacement policy of the current processor.
+     *
+     * @return the policy that chooses which entry of the current
+     *         processor's TLB to fill on a TLB miss.
+     */
+    public static TLBPolicy tlbPolicy() {
+        return tlbPolicies[Machine.processor().getNumber()];
+    }
+
+    /**
+     * Copy the used and dirty bits that the TLBs of the other processors
+     * have set into the translations of the pages they map. The current
+     * processor's bits are copied by its exception handler.
+     */
+    static void collectOtherTLBs() {
+        Processor current = Machine.processor();
+
+        for (int i = 0; i < Machine.numProcessors(); i++) {
+            Processor processor = Machine.processor(i);
+            if (processor == current)
+                continue;
+
+            for (int j = 0; j < processor.getTLBSize(); j++) {
+                TranslationEntry entry = processor.readTLBEntry(j);
+                if (!entry.valid)
+                    continue;
+
+                Page page = memMap.getPage(entry.ppn);
+                if (!page.free)
+                    page.mappingEntry.updateEntryHW(entry.used, entry.dirty);
+            }
+        }
+    }
+
+    /**
+     * Invalidate every translation to the specified physical page in the
+     * TLB of every processor, since any of them may be running the process
+     * that the page is taken from.
+     *
+     * @param ppn the physical page number.
+     */
+    static void invalidateTLBs(int ppn) {
+        for (int i = 0; i < Machine.numProcessors(); i++) {
+            Processor processor = Machine.processor(i);
+
+            for (int j = 0; j < processor.getTLBSize(); j++) {
+                TranslationEntry entry = processor.readTLBEntry(j);
+                if (entry.valid && entry.ppn == ppn) {
+                    entry.valid = false;
+                    processor.writeTLBEntry(j, entry);
+                }
+            }
+        }
     }
 
     /**
@@ -51,4 +116,9 @@ public class VMKernel extends UserKernel {
 
     final public static MemMap memMap = new MemMap();
 
+    /**
+     * Choose the TLB entry to fill on a TLB miss, for each processor.
+     */
+    private static TLBPolicy[] tlbPolicies = null;
+
 }
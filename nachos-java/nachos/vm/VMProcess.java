@@ -5,7 +5,6 @@ import nachos.threads.ThreadedKernel;
 import nachos.userprog.*;
 
 import java.io.EOFException;
-import java.util.Hashtable;
 
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
@@ -54,14 +53,17 @@ public class VMProcess extends UserProcess {
 
         public void loadPageData() {
             if (swapDisc.exist(processID, entry.vpn)) {
-                System.arraycopy(swapDisc.read(processID, entry.vpn), 0, Machine.processor().getMemory(), Processor.pageSize * page.ppn, Processor.pageSize);
+                SwapEvent event = new SwapEvent();
+                event.start();
+                Machine.processor().writePhysMemory(Processor.pageSize * page.ppn, swapDisc.read(processID, entry.vpn), 0, Processor.pageSize);
+                event.finish();
             }
         }
 
         public void storedPageData() {
             byte _data[];
             _data = new byte[Processor.pageSize];
-            System.arraycopy(Machine.processor().getMemory(), Processor.pageSize * page.ppn, _data, 0, Processor.pageSize);
+            Machine.processor().readPhysMemory(Processor.pageSize * page.ppn, _data, 0, Processor.pageSize);
             swapDisc.write(processID, entry.vpn, _data);
         }
 
@@ -90,14 +92,30 @@ public class VMProcess extends UserProcess {
         }
     }
 
-    private Hashtable<Integer, AddressMapping> mappingTable;
+    /**
+     * The address mappings of this process, indexed by virtual page number.
+     * An array rather than a map, so that looking up a page does not box its
+     * number on every TLB miss.
+     */
+    private AddressMapping[] mappingTable;
+
+    /**
+     * Scratch arrays for reading the TLB through
+     * <tt>Processor.readTLBEntries()</tt>.
+     */
+    private final int[] tlbVPNs, tlbPPNs, tlbFlags;
 
     /**
      * Allocate a new process.
      */
     public VMProcess() {
         super();
-        mappingTable = new Hashtable<>();
+        mappingTable = new AddressMapping[initialMappings];
+
+        int tlbSize = Machine.processor().getTLBSize();
+        tlbVPNs = new int[tlbSize];
+        tlbPPNs = new int[tlbSize];
+        tlbFlags = new int[tlbSize];
     }
 
     protected UserProcess createSubProcess() {
@@ -109,7 +127,8 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
         super.saveState();
-
+        //the next process flushes the tlb, so keep the used and dirty bits now
+        updateTLBHW();
     }
 
     /**
@@ -123,19 +142,16 @@ public class VMProcess extends UserProcess {
     }
 
     private void invalidTLB() {
-        Processor processor = Machine.processor();
-        for (int i = 0; i < processor.getTLBSize(); i++) {
-            processor.writeTLBEntry(i, new TranslationEntry());
-        }
+        Machine.processor().invalidateTLB();
     }
 
     private void invalidTLBEntry(int vpn) {
         Processor processor = Machine.processor();
-        for (int i = 0; i < processor.getTLBSize(); i++) {
-            TranslationEntry entry = processor.readTLBEntry(i);
-            if (entry.vpn == vpn) {
-                entry.valid = false;
-                processor.writeTLBEntry(i, entry);
+        processor.readTLBEntries(0, tlbVPNs.length, tlbVPNs, tlbPPNs, tlbFlags);
+        for (int i = 0; i < tlbVPNs.length; i++) {
+            if (tlbVPNs[i] == vpn) {
+                processor.writeTLBEntry(i, tlbVPNs[i], tlbPPNs[i],
+                        tlbFlags[i] & ~Processor.tlbValid);
             }
         }
     }
@@ -251,7 +267,7 @@ public class VMProcess extends UserProcess {
     }
 
     protected int readVirtualMemoryInPage(int vaddr, byte[] data, int offset,
-                                          int length, byte[] memory) {
+                                          int length) {
         AddressMapping mapping = getMapping(vaddr / pageSize);
         if (!mapping.entry.valid) {
             return mapping.readVirtualMemoryInPage(vaddr, data, offset, length);
@@ -260,18 +276,18 @@ public class VMProcess extends UserProcess {
 
         int paddrInPage = mapping.entry.ppn * pageSize + vaddr % pageSize;
         int amount = Math.min(length, pageSize - (vaddr % pageSize));
-        System.arraycopy(memory, paddrInPage, data, offset, amount);
+        Machine.processor().readPhysMemory(paddrInPage, data, offset, amount);
         return amount;
     }
 
     protected int writeVirtualMemoryInPage(int vaddr, byte[] data, int offset,
-                                           int length, byte[] memory) {
+                                           int length) {
         AddressMapping mapping = getMapping(vaddr / pageSize);
         if (!mapping.entry.valid) {
             if (!mapping.isReadOnly()) {
                 DataAddressMapping newMapping = new DataAddressMapping(mapping.entry);
                 newMapping.entry.readOnly = false;
-                mappingTable.put(vaddr / pageSize, newMapping);
+                setMapping(vaddr / pageSize, newMapping);
                 return newMapping.writeVirtualMemoryInPage(vaddr, data, offset, length);
             }
             return mapping.writeVirtualMemoryInPage(vaddr, data, offset, length);
@@ -279,7 +295,7 @@ public class VMProcess extends UserProcess {
 
         int paddrInPage = mapping.entry.ppn * pageSize + vaddr % pageSize;
         int amount = Math.min(length, pageSize - (vaddr % pageSize));
-        System.arraycopy(data, offset, memory, paddrInPage, amount);
+        Machine.processor().writePhysMemory(paddrInPage, data, offset, amount);
         return amount;
     }
 
@@ -295,7 +311,7 @@ public class VMProcess extends UserProcess {
             TranslationEntry entry = new TranslationEntry();
             entry.readOnly = true;
             entry.vpn = section.getFirstVPN() + i;
-            mappingTable.put(section.getFirstVPN() + i, new CoffAddressMapping(entry, section, i));
+            setMapping(section.getFirstVPN() + i, new CoffAddressMapping(entry, section, i));
         }
     }
 
@@ -304,7 +320,7 @@ public class VMProcess extends UserProcess {
             TranslationEntry entry = new TranslationEntry();
             entry.readOnly = true;
             entry.vpn = vaddr + i;
-            mappingTable.put(vaddr + i, new DataAddressMapping(entry));
+            setMapping(vaddr + i, new DataAddressMapping(entry));
         }
     }
 
@@ -314,28 +330,48 @@ public class VMProcess extends UserProcess {
             if (mapping.entry.valid) {
                 VMKernel.memMap.getPage(mapping.entry.ppn).unmap();
             }
-            mappingTable.remove(vaddr + i);
+            setMapping(vaddr + i, null);
         }
     }
 
     protected AddressMapping getMapping(int vaddr) {
-        return mappingTable.get(vaddr);
+        if (vaddr < 0 || vaddr >= mappingTable.length)
+            return null;
+        return mappingTable[vaddr];
+    }
+
+    private void setMapping(int vaddr, AddressMapping mapping) {
+        if (vaddr >= mappingTable.length) {
+            AddressMapping[] table = new AddressMapping[Math.max(vaddr + 1, mappingTable.length * 2)];
+            System.arraycopy(mappingTable, 0, table, 0, mappingTable.length);
+            mappingTable = table;
+        }
+        mappingTable[vaddr] = mapping;
     }
 
     private void updateTLBHW() {
         Processor processor = Machine.processor();
-        for (int i = 0; i < processor.getTLBSize(); i++) {
-            TranslationEntry oldPage = processor.readTLBEntry(i);
-            if (oldPage.used || oldPage.dirty) {
-                Lib.debug(dbgVM, "update used and dirty!");
-                Lib.debug(dbgVM, "vpn = " + oldPage.vpn);
-                Lib.debug(dbgVM, "ppn = " + oldPage.ppn);
-                Lib.debug(dbgVM, "dirty = " + oldPage.dirty);
-                Lib.debug(dbgVM, "used = " + oldPage.used);
-                getMapping(oldPage.vpn).updateEntryHW(oldPage);
-                oldPage.used = false;
-                oldPage.dirty = false;
-                processor.writeTLBEntry(i, oldPage);
+        processor.readTLBEntries(0, tlbVPNs.length, tlbVPNs, tlbPPNs, tlbFlags);
+        for (int i = 0; i < tlbVPNs.length; i++) {
+            int flags = tlbFlags[i];
+            //the page may have been taken away, or this process may have exited
+            if ((flags & Processor.tlbValid) == 0)
+                continue;
+            boolean used = (flags & Processor.tlbUsed) != 0;
+            boolean dirty = (flags & Processor.tlbDirty) != 0;
+            if (used || dirty) {
+                if (Lib.test(dbgVM)) {
+                    Lib.debug(dbgVM, "update used and dirty!");
+                    Lib.debug(dbgVM, "vpn = " + tlbVPNs[i]);
+                    Lib.debug(dbgVM, "ppn = " + tlbPPNs[i]);
+                    Lib.debug(dbgVM, "dirty = " + dirty);
+                    Lib.debug(dbgVM, "used = " + used);
+                }
+                if (used)
+                    VMKernel.tlbPolicy().entryUsed(i);
+                getMapping(tlbVPNs[i]).updateEntryHW(used, dirty);
+                processor.writeTLBEntry(i, tlbVPNs[i], tlbPPNs[i],
+                        flags & ~(Processor.tlbUsed | Processor.tlbDirty));
             }
         }
     }
@@ -347,22 +383,31 @@ public class VMProcess extends UserProcess {
         //update dirty and used bit
 
         int vpn = processor.readRegister(Processor.regBadVAddr);
-        Lib.debug(dbgVM, "vaddr = " + Lib.toHexString(vpn));
+        if (Lib.test(dbgVM))
+            Lib.debug(dbgVM, "vaddr = " + Lib.toHexString(vpn));
         AddressMapping mapping = getMapping(vpn / pageSize);
         if (!mapping.entry.valid) {
+            long startTime = Machine.timer().getTime();
+            PageFaultEvent event = new PageFaultEvent();
+            event.start();
             VMKernel.memMap.map(mapping);
             mapping.loadPageData();
             mapping.entry.valid = true;
+            event.processID = processID;
+            event.vpn = vpn / pageSize;
+            event.ppn = mapping.entry.ppn;
+            event.finish();
+            pageFaultTime.observe(Machine.timer().getTime() - startTime);
+        }
+        if (Lib.test(dbgVM)) {
+            Lib.debug(dbgVM, "vpn = " + mapping.entry.vpn);
+            Lib.debug(dbgVM, "ppn = " + mapping.entry.ppn);
+            Lib.debug(dbgVM, "valid = " + mapping.entry.valid);
         }
-        Lib.debug(dbgVM, "vpn = " + mapping.entry.vpn);
-        Lib.debug(dbgVM, "ppn = " + mapping.entry.ppn);
-        Lib.debug(dbgVM, "valid = " + mapping.entry.valid);
-
-        //ranodomly update tlb
-        int tlbIdx = Lib.random(processor.getTLBSize());
 
-        //tlb replacement
-        processor.writeTLBEntry(tlbIdx, mapping.entry);
+        //tlb replacement, on whichever processor this thread now runs on
+        int tlbIdx = VMKernel.tlbPolicy().chooseEntry(mapping.entry.vpn);
+        Machine.processor().writeTLBEntry(tlbIdx, mapping.entry);
     }
 
 
@@ -370,7 +415,8 @@ public class VMProcess extends UserProcess {
         Lib.debug(dbgVM, "handleReadOnly!");
         Processor processor = Machine.processor();
         int vpn = processor.readRegister(Processor.regBadVAddr);
-        Lib.debug(dbgVM, "vaddr = " + Lib.toHexString(vpn));
+        if (Lib.test(dbgVM))
+            Lib.debug(dbgVM, "vaddr = " + Lib.toHexString(vpn));
         AddressMapping mapping = getMapping(vpn / pageSize);
         //remap on copy
         if (!mapping.isReadOnly()) {
@@ -378,17 +424,18 @@ public class VMProcess extends UserProcess {
             VMKernel.memMap.getPage(mapping.page.ppn).map(newMapping);
             newMapping.entry.readOnly = false;
             newMapping.entry.dirty = true;
-            mappingTable.put(vpn / pageSize, newMapping);
+            setMapping(vpn / pageSize, newMapping);
             invalidTLBEntry(vpn / pageSize);
         }
-        Lib.debug(dbgVM, "vpn = " + mapping.entry.vpn);
-        Lib.debug(dbgVM, "ppn = " + mapping.entry.ppn);
-        Lib.debug(dbgVM, "valid = " + mapping.entry.valid);
-
-        //ranodomly update tlb
-        int tlbIdx = Lib.random(processor.getTLBSize());
-        //tlb replacement
-        processor.writeTLBEntry(tlbIdx, mapping.entry);
+        if (Lib.test(dbgVM)) {
+            Lib.debug(dbgVM, "vpn = " + mapping.entry.vpn);
+            Lib.debug(dbgVM, "ppn = " + mapping.entry.ppn);
+            Lib.debug(dbgVM, "valid = " + mapping.entry.valid);
+        }
+
+        //tlb replacement, on whichever processor this thread now runs on
+        int tlbIdx = VMKernel.tlbPolicy().chooseEntry(mapping.entry.vpn);
+        Machine.processor().writeTLBEntry(tlbIdx, mapping.entry);
     }
 
     /**
@@ -404,7 +451,12 @@ public class VMProcess extends UserProcess {
         updateTLBHW();
         switch (cause) {
             case Processor.exceptionTLBMiss:
+                TLBMissEvent event = new TLBMissEvent();
+                event.start();
+                event.processID = processID;
+                event.vpn = processor.readRegister(Processor.regBadVAddr) / pageSize;
                 handleTlbMiss();
+                event.finish();
                 break;
             case Processor.exceptionReadOnly:
                 handleReadOnly();
@@ -421,7 +473,12 @@ public class VMProcess extends UserProcess {
 //        VMKernel.MemMap.remove(processID);
 //    }
 
+    private static final Metrics.Histogram pageFaultTime =
+            Machine.metrics().histogram("nachos_page_fault_service_ticks",
+                    "Ticks to make a faulting page resident, including swapping.");
+
     private static final int pageSize = Processor.pageSize;
+    private static final int initialMappings = 64;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
 }
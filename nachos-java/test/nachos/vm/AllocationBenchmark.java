@@ -0,0 +1,115 @@
+package test.nachos.vm;
+
+import nachos.ag.AutoGrader;
+import nachos.machine.*;
+import nachos.security.Privilege;
+import nachos.vm.*;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures how much the host JVM allocates while the VM kernel handles TLB
+ * misses, to check that the exception and TLB refill paths allocate nothing.
+ * Run it from a project directory with the configuration next to this class,
+ * and with <tt>AllocationBenchmark.Grader</tt> as the autograder, which opens
+ * the JVM's thread allocation counters before the kernel starts:
+ *
+ * <pre>
+ * cd nachos/proj3
+ * java nachos.machine.Machine -[] ../../test/nachos/vm/alloc.conf \
+ *     -- 'test.nachos.vm.AllocationBenchmark$Grader'
+ * </pre>
+ *
+ * <p>
+ * The program runs in a process that reads the allocation counter of its
+ * host thread on every exception, which splits the bytes allocated into those
+ * allocated by the kernel while refilling the TLB, and those allocated while
+ * the processor ran user code, which includes raising each exception. The
+ * second figure also includes timer interrupts, which may switch threads.
+ * Each figure is printed per TLB miss; both should be close to zero.
+ */
+public class AllocationBenchmark extends VMKernel {
+    public void selfTest() {
+    }
+
+    public void run() {
+        String program = Config.getString("AllocationBenchmark.program", "matmult.coff");
+        int warmups = Config.getInteger("AllocationBenchmark.warmups", 5);
+        int iterations = Config.getInteger("AllocationBenchmark.iterations", 20);
+
+        Lib.assertTrue(threadBean != null,
+                "run with -- test.nachos.vm.AllocationBenchmark$Grader");
+
+        for (int i = 0; i < warmups; i++)
+            runProgram(program);
+
+        misses = handlerBytes = userBytes = 0;
+        for (int i = 0; i < iterations; i++)
+            runProgram(program);
+
+        System.out.println(iterations + " x " + program + ": " + misses +
+                " TLB misses, " + ((double) handlerBytes / misses) +
+                " bytes/miss in the handler, " + ((double) userBytes / misses) +
+                " bytes/miss in user mode");
+
+        Machine.halt();
+    }
+
+    private void runProgram(String program) {
+        ProbeProcess process = new ProbeProcess();
+        Lib.assertTrue(process.execute(program, new String[]{program}));
+        process.join();
+    }
+
+    private static long allocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * A <tt>VMProcess</tt> that reads the allocation counter of its host
+     * thread around every exception it handles.
+     */
+    private class ProbeProcess extends VMProcess {
+        public void handleException(int cause) {
+            long before = allocatedBytes();
+            if (lastReturn != -1 && cause == Processor.exceptionTLBMiss)
+                userBytes += before - lastReturn;
+
+            super.handleException(cause);
+
+            long after = allocatedBytes();
+            if (cause == Processor.exceptionTLBMiss) {
+                misses++;
+                handlerBytes += after - before;
+                lastReturn = after;
+            } else {
+                lastReturn = -1;
+            }
+        }
+
+        private long lastReturn = -1;
+    }
+
+    /**
+     * An autograder that only opens the thread allocation counters, which the
+     * security manager does not let the kernel do itself.
+     */
+    public static class Grader extends AutoGrader {
+        public void start(Privilege privilege) {
+            privilege.doPrivileged(new Runnable() {
+                public void run() {
+                    threadBean = (com.sun.management.ThreadMXBean)
+                            ManagementFactory.getThreadMXBean();
+                    Lib.assertTrue(threadBean.isThreadAllocatedMemorySupported());
+                    threadBean.setThreadAllocatedMemoryEnabled(true);
+                }
+            });
+
+            super.start(privilege);
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean = null;
+
+    private long misses, handlerBytes, userBytes;
+}
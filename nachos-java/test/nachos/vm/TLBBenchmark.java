@@ -0,0 +1,58 @@
+package test.nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+/**
+ * Measures how quickly a user program runs under the VM kernel, so that TLB
+ * sizes can be compared. Each of the <tt>tlb*.conf</tt> files next to this
+ * class boots the benchmark with a different <tt>Processor.tlbSize</tt>; run
+ * them one after another from a project directory, for example:
+ *
+ * <pre>
+ * cd nachos/proj3
+ * java nachos.machine.Machine -[] ../../test/nachos/vm/tlb4.conf
+ * java nachos.machine.Machine -[] ../../test/nachos/vm/tlb64.conf
+ * java nachos.machine.Machine -[] ../../test/nachos/vm/tlb512.conf
+ * </pre>
+ *
+ * <p>
+ * The number of simulated ticks is the same for every run of the same
+ * program with the same TLB size, so only the host time varies. The TLB miss
+ * count is part of the statistics printed when the machine halts.
+ */
+public class TLBBenchmark extends VMKernel {
+    public void selfTest() {
+    }
+
+    public void run() {
+        String program = Config.getString("TLBBenchmark.program", "matmult.coff");
+        int warmups = Config.getInteger("TLBBenchmark.warmups", 5);
+        int iterations = Config.getInteger("TLBBenchmark.iterations", 20);
+
+        for (int i = 0; i < warmups; i++)
+            runProgram(program);
+
+        long startTicks = Machine.timer().getTime();
+        long startTime = System.nanoTime();
+
+        for (int i = 0; i < iterations; i++)
+            runProgram(program);
+
+        long millis = (System.nanoTime() - startTime) / 1000000;
+        long ticks = Machine.timer().getTime() - startTicks;
+
+        System.out.println("TLB size " + Machine.processor().getTLBSize() +
+                ": " + iterations + " x " + program + " in " + millis +
+                " ms, " + ticks + " ticks, " +
+                (ticks * 1000 / Math.max(millis, 1)) + " ticks/s");
+
+        Machine.halt();
+    }
+
+    private void runProgram(String program) {
+        VMProcess process = new VMProcess();
+        Lib.assertTrue(process.execute(program, new String[]{program}));
+        process.join();
+    }
+}